@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.StandInPasswordServer;
+import com.globant.andresserrano.fingerprintdemo.authflow.StandInPurchaseServer;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Where the backends are in debug builds: stand-in servers started in this process on first use.
+ * They accept any non-empty password and any purchase, and every app on the device can reach
+ * them, so release builds use the URLs in {@link BuildConfig} instead. Only debug builds
+ * depend on the stand-in servers at all.
+ */
+final class Endpoints {
+
+    private static URL sPasswordUrl;
+    private static URL sPurchaseUrl;
+
+    private Endpoints() {
+    }
+
+    /**
+     * @return the URL passwords are verified at. Blocks while the server starts, so never call
+     * it on the main thread.
+     */
+    static synchronized URL password() throws IOException {
+        if (sPasswordUrl == null) {
+            sPasswordUrl = new StandInPasswordServer(0).start();
+        }
+        return sPasswordUrl;
+    }
+
+    /**
+     * @return the URL purchases are delivered to. Blocks while the server starts, so never call
+     * it on the main thread.
+     */
+    static synchronized URL purchases() throws IOException {
+        if (sPurchaseUrl == null) {
+            sPurchaseUrl = new StandInPurchaseServer(0).start();
+        }
+        return sPurchaseUrl;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.content.Context;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.AuditLog;
+
+import java.io.File;
+
+/**
+ * The process-wide {@link AuditLog} of authentication events, kept for the fraud team.
+ *
+ * <p>Events are recorded on the main thread by the authentication dialog. The log lives in
+ * {@code files/audit} and takes at most {@link #MAX_SEGMENTS} times {@link #MAX_SEGMENT_BYTES};
+ * pull it with {@code adb exec-out run-as} and decode it with
+ * {@code ./gradlew :authflow:auditLogDump}.
+ */
+final class AuditTrail {
+
+    private static final String DIRECTORY = "audit";
+    /** About a hundred dialogs' worth, far more than can happen in one flush interval. */
+    private static final int CAPACITY = 1024;
+    private static final long MAX_SEGMENT_BYTES = 256 * 1024;
+    private static final int MAX_SEGMENTS = 8;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static AuditLog sInstance;
+
+    private AuditTrail() {
+    }
+
+    /**
+     * Returns the log, starting its writer on the first call. Never blocks: the files are
+     * opened by the writer. Any context will do, including one of an activity which isn't
+     * showing anything yet.
+     */
+    static synchronized AuditLog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new AuditLog(new File(context.getFilesDir(), DIRECTORY), CAPACITY,
+                    MAX_SEGMENT_BYTES, MAX_SEGMENTS, FLUSH_INTERVAL_MILLIS,
+                    new BackgroundThreadFactory("audit-log"));
+        }
+        return sInstance;
+    }
+}
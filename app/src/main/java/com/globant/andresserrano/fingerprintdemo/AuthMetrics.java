@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.LatencyHistogram;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide latency histograms and outcome counters for the purchase flow.
+ *
+ * <p>A purchase goes through four timed phases: click to dialog shown, dialog shown to sensor
+ * armed, sensor armed to fingerprint match, and match to ciphertext. Each {@code mark} method
+ * closes the previous phase and records it. Recording is lock-free and doesn't allocate, so the
+ * calls can stay in release builds. Read the numbers with {@link #snapshot()} or
+ * {@code adb shell dumpsys activity com.globant.andresserrano.fingerprintdemo}.
+ */
+final class AuthMetrics {
+
+    /**
+     * A timed step of the purchase flow.
+     */
+    enum Phase {
+        CLICK_TO_DIALOG,
+        DIALOG_TO_ARMED,
+        ARMED_TO_MATCH,
+        MATCH_TO_CIPHERTEXT,
+        /** The idle time between a match and the start of the crypto work. */
+        MATCH_TO_CRYPTO_START,
+        /** How long the dialog stays up after a match. */
+        MATCH_TO_DISMISS,
+        /** Not part of the chain: how long {@code Cipher.init} takes with a key store key. */
+        CIPHER_INIT
+    }
+
+    /**
+     * A counted event of the purchase flow.
+     */
+    enum Outcome {
+        CLICKED,
+        SENSOR_ARMED,
+        SUCCEEDED,
+        FAILED,
+        HELP,
+        ERROR,
+        ENCRYPTED,
+        ENCRYPT_FAILED,
+        KEY_INVALIDATED
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Outcome[] OUTCOMES = Outcome.values();
+
+    private static final AuthMetrics sInstance = new AuthMetrics();
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[PHASES.length];
+    private final AtomicLongArray mCounters = new AtomicLongArray(OUTCOMES.length);
+    /** Start time of the phase which is currently running, indexed by phase, 0 if none. */
+    private final AtomicLongArray mPhaseStarts = new AtomicLongArray(PHASES.length);
+    private final AtomicLong mSinceNanos = new AtomicLong(System.nanoTime());
+
+    private AuthMetrics() {
+        for (Phase phase : PHASES) {
+            mHistograms[phase.ordinal()] = new LatencyHistogram(phase.name());
+        }
+    }
+
+    static AuthMetrics getInstance() {
+        return sInstance;
+    }
+
+    /** The user asked for a purchase. */
+    void markClick() {
+        count(Outcome.CLICKED);
+        start(Phase.CLICK_TO_DIALOG);
+    }
+
+    /** The fingerprint dialog is on screen. */
+    void markDialogShown() {
+        finish(Phase.CLICK_TO_DIALOG);
+        start(Phase.DIALOG_TO_ARMED);
+    }
+
+    /** The fingerprint sensor is listening. */
+    void markSensorArmed() {
+        count(Outcome.SENSOR_ARMED);
+        finish(Phase.DIALOG_TO_ARMED);
+        start(Phase.ARMED_TO_MATCH);
+    }
+
+    /** The fingerprint matched. */
+    void markMatch() {
+        count(Outcome.SUCCEEDED);
+        finish(Phase.ARMED_TO_MATCH);
+        start(Phase.MATCH_TO_CIPHERTEXT);
+        start(Phase.MATCH_TO_CRYPTO_START);
+        start(Phase.MATCH_TO_DISMISS);
+    }
+
+    /** The crypto work for a match was started. */
+    void markCryptoStarted() {
+        finish(Phase.MATCH_TO_CRYPTO_START);
+    }
+
+    /** The fingerprint dialog was dismissed after a match. */
+    void markDialogDismissed() {
+        finish(Phase.MATCH_TO_DISMISS);
+    }
+
+    /** The purchase was encrypted after a match. */
+    void markCiphertext() {
+        count(Outcome.ENCRYPTED);
+        finish(Phase.MATCH_TO_CIPHERTEXT);
+    }
+
+    void count(Outcome outcome) {
+        mCounters.incrementAndGet(outcome.ordinal());
+    }
+
+    void record(Phase phase, long nanos) {
+        mHistograms[phase.ordinal()].record(nanos);
+    }
+
+    /**
+     * Clears every histogram and counter.
+     */
+    void reset() {
+        for (int i = 0; i < PHASES.length; i++) {
+            mHistograms[i].reset();
+            mPhaseStarts.set(i, 0);
+        }
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            mCounters.set(i, 0);
+        }
+        mSinceNanos.set(System.nanoTime());
+    }
+
+    private void start(Phase phase) {
+        mPhaseStarts.set(phase.ordinal(), System.nanoTime());
+    }
+
+    private void finish(Phase phase) {
+        // Phases which weren't started, e.g. a purchase within an open session which never
+        // showed the dialog, are not recorded.
+        long start = mPhaseStarts.getAndSet(phase.ordinal(), 0);
+        if (start != 0) {
+            record(phase, System.nanoTime() - start);
+        }
+    }
+
+    Snapshot snapshot() {
+        LatencyHistogram.Snapshot[] histograms = new LatencyHistogram.Snapshot[PHASES.length];
+        for (int i = 0; i < PHASES.length; i++) {
+            histograms[i] = mHistograms[i].snapshot();
+        }
+        long[] counters = new long[OUTCOMES.length];
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            counters[i] = mCounters.get(i);
+        }
+        return new Snapshot(histograms, counters,
+                (System.nanoTime() - mSinceNanos.get()) / 1000000);
+    }
+
+    /**
+     * An immutable copy of the metrics.
+     */
+    static final class Snapshot {
+
+        private final LatencyHistogram.Snapshot[] mHistograms;
+        private final long[] mCounters;
+        private final long mUptimeMillis;
+
+        Snapshot(LatencyHistogram.Snapshot[] histograms, long[] counters, long uptimeMillis) {
+            mHistograms = histograms;
+            mCounters = counters;
+            mUptimeMillis = uptimeMillis;
+        }
+
+        LatencyHistogram.Snapshot getHistogram(Phase phase) {
+            return mHistograms[phase.ordinal()];
+        }
+
+        long getCount(Outcome outcome) {
+            return mCounters[outcome.ordinal()];
+        }
+
+        /**
+         * @return how long the metrics have been collected for
+         */
+        long getUptimeMillis() {
+            return mUptimeMillis;
+        }
+
+        void dump(String prefix, PrintWriter writer) {
+            writer.print(prefix);
+            writer.println("Auth metrics (" + mUptimeMillis + "ms):");
+            for (LatencyHistogram.Snapshot histogram : mHistograms) {
+                writer.print(prefix);
+                writer.print("  ");
+                writer.println(histogram);
+            }
+            writer.print(prefix);
+            writer.print("  counters:");
+            for (Outcome outcome : OUTCOMES) {
+                writer.print(' ');
+                writer.print(outcome.name());
+                writer.print('=');
+                writer.print(mCounters[outcome.ordinal()]);
+            }
+            writer.println();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.support.annotation.RequiresApi;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+
+/**
+ * A time-bounded authorization window: after one fingerprint authentication, operations run
+ * back-to-back with a key that needs no further authentication until the window closes.
+ *
+ * <p>The window is backed by a separate key store key, {@link #KEY_NAME}, generated with
+ * {@link android.security.keystore.KeyGenParameterSpec.Builder#setUserAuthenticationValidityDurationSeconds(int)}.
+ * The key store enforces the window; this class mirrors it so callers know when to show the
+ * fingerprint dialog instead. Operations run in submission order on a dedicated thread and
+ * their results are delivered on the main thread. If the key store reports that the window has
+ * closed, the operation fails with {@link UserNotAuthenticatedException} and the session closes.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class AuthorizationSession {
+
+    static final String KEY_NAME = "session_key";
+
+    private static final Executor EXECUTOR =
+            Executors.newSingleThreadExecutor(new BackgroundThreadFactory("auth-session"));
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final KeyStoreSession mKeyStoreSession;
+    private final KeyLifecycleManager mKeyLifecycleManager;
+    private final CipherSuite mCipherSuite;
+    private final int mDurationSeconds;
+    private final ArrayDeque<Pending<?>> mPending = new ArrayDeque<>();
+
+    private long mExpiresAtMillis;
+    private boolean mDraining;
+
+    /**
+     * @param keyLifecycleManager replaces {@link #KEY_NAME} on {@link #revoke()}, so that key is
+     *                            only ever replaced on its thread
+     * @param durationSeconds how long one authentication is valid for, or 0 to disable sessions
+     */
+    AuthorizationSession(KeyStoreSession keyStoreSession, KeyLifecycleManager keyLifecycleManager,
+            CipherSuite cipherSuite, int durationSeconds) {
+        mKeyStoreSession = keyStoreSession;
+        mKeyLifecycleManager = keyLifecycleManager;
+        mCipherSuite = cipherSuite;
+        mDurationSeconds = durationSeconds;
+    }
+
+    boolean isEnabled() {
+        return mDurationSeconds > 0;
+    }
+
+    /**
+     * @return {@code true} if the user authenticated recently enough for operations to run
+     * without showing the fingerprint dialog
+     */
+    synchronized boolean isOpen() {
+        return isEnabled() && SystemClock.elapsedRealtime() < mExpiresAtMillis;
+    }
+
+    /**
+     * Starts the window. Call this right after a successful fingerprint authentication.
+     */
+    synchronized void open() {
+        if (!isEnabled()) {
+            return;
+        }
+        mExpiresAtMillis = SystemClock.elapsedRealtime() + mDurationSeconds * 1000L;
+        drain();
+    }
+
+    /**
+     * Queues {@code operation}. It runs right away if the session is open, or else as soon as it
+     * is {@link #open() opened}.
+     */
+    synchronized <T> void submit(Operation<T> operation, CryptoExecutor.Callback<T> callback) {
+        mPending.add(new Pending<>(operation, callback));
+        if (isOpen()) {
+            drain();
+        }
+    }
+
+    /**
+     * Closes the window and drops every queued operation. The session key is replaced in the
+     * background by {@link KeyLifecycleManager#promote(String)}, so the key store stops
+     * honouring the old authentication too. Does nothing if sessions are disabled, since there
+     * is no session key then.
+     */
+    void revoke() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (this) {
+            mExpiresAtMillis = 0;
+            mPending.clear();
+        }
+        mKeyLifecycleManager.promote(KEY_NAME);
+    }
+
+    private void drain() {
+        if (mDraining) {
+            return;
+        }
+        mDraining = true;
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Pending<?> pending;
+                    synchronized (AuthorizationSession.this) {
+                        pending = isOpen() ? mPending.poll() : null;
+                        if (pending == null) {
+                            mDraining = false;
+                            return;
+                        }
+                    }
+                    pending.run();
+                }
+            }
+        });
+    }
+
+    private Cipher newCipher() throws Exception {
+        Cipher cipher = Cipher.getInstance(mCipherSuite.getTransformation());
+        cipher.init(Cipher.ENCRYPT_MODE, mKeyStoreSession.getSecretKey(KEY_NAME));
+        return cipher;
+    }
+
+    private final class Pending<T> {
+
+        private final Operation<T> mOperation;
+        private final CryptoExecutor.Callback<T> mCallback;
+
+        Pending(Operation<T> operation, CryptoExecutor.Callback<T> callback) {
+            mOperation = operation;
+            mCallback = callback;
+        }
+
+        void run() {
+            T result = null;
+            Exception error = null;
+            try {
+                result = mOperation.run(newCipher());
+            } catch (UserNotAuthenticatedException e) {
+                // The key store closed the window before we expected it to.
+                synchronized (AuthorizationSession.this) {
+                    mExpiresAtMillis = 0;
+                }
+                error = e;
+            } catch (Exception e) {
+                error = e;
+            }
+            final T finalResult = result;
+            final Exception finalError = error;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (finalError != null) {
+                        mCallback.onError(finalError);
+                    } else {
+                        mCallback.onResult(finalResult);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Work which needs a cipher authorized by the session.
+     */
+    public interface Operation<T> {
+
+        /**
+         * Runs on a background thread with a cipher initialized for encryption.
+         */
+        T run(Cipher cipher) throws Exception;
+    }
+}
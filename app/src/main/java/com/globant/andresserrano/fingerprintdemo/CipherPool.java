@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * A small per-alias pool of {@link Cipher} instances which are initialized ahead of time on a
+ * background thread, so a purchase click can hand a ready {@link FingerprintManager.CryptoObject}
+ * to the fingerprint dialog without touching the key store.
+ *
+ * <p>Every cipher handed out is consumed by the operation it authorizes, so the pool re-arms
+ * itself in the background after each {@link #acquire(String, Callback)}. If the key behind an
+ * alias has been permanently invalidated, callers are told so through
+ * {@link Callback#onKeyInvalidated()} until the alias is {@link #reset(String)}. Any other
+ * failure to arm a cipher is passed to the callbacks waiting at the time through
+ * {@link Callback#onError(Exception)}, and the next {@link #acquire} tries again.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class CipherPool {
+
+    private static final String TAG = CipherPool.class.getSimpleName();
+
+    private static final Executor EXECUTOR =
+            Executors.newSingleThreadExecutor(new BackgroundThreadFactory("cipher-pool"));
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final KeyStoreSession mKeyStoreSession;
+    private final CipherSuite mCipherSuite;
+    private final int mSize;
+    private final Map<String, Slot> mSlots = new HashMap<>();
+
+    /**
+     * @param cipherSuite the transformation of the pooled ciphers, which must match the keys
+     * @param size how many initialized ciphers to keep ready per alias
+     */
+    CipherPool(KeyStoreSession keyStoreSession, CipherSuite cipherSuite, int size) {
+        mKeyStoreSession = keyStoreSession;
+        mCipherSuite = cipherSuite;
+        mSize = size;
+    }
+
+    /**
+     * Initializes ciphers for {@code alias} on the calling thread until the pool for it is full,
+     * or until one fails to initialize. Meant to be called from a background thread, e.g. during
+     * {@link CryptoBootstrap}.
+     */
+    void fill(String alias) {
+        while (true) {
+            synchronized (this) {
+                Slot slot = slot(alias);
+                if (slot.mInvalidated || slot.mReady.size() + slot.mPending >= mSize) {
+                    return;
+                }
+                slot.mPending++;
+            }
+            if (!arm(alias)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands an initialized cipher for {@code alias} to {@code callback}. The callback runs
+     * immediately if a cipher is ready, otherwise on the main thread once one has been armed.
+     */
+    void acquire(String alias, Callback callback) {
+        Cipher cipher;
+        boolean invalidated;
+        synchronized (this) {
+            Slot slot = slot(alias);
+            invalidated = slot.mInvalidated;
+            cipher = slot.mReady.poll();
+            if (!invalidated && cipher == null) {
+                slot.mWaiting.add(callback);
+            }
+        }
+        if (invalidated) {
+            callback.onKeyInvalidated();
+            return;
+        }
+        refill(alias);
+        if (cipher != null) {
+            callback.onCipherReady(new FingerprintManager.CryptoObject(cipher));
+        }
+    }
+
+    /**
+     * Drops every cipher armed for {@code alias}, e.g. because its key has been regenerated, and
+     * starts arming new ones.
+     */
+    void reset(String alias) {
+        synchronized (this) {
+            Slot slot = slot(alias);
+            slot.mReady.clear();
+            slot.mInvalidated = false;
+            slot.mGeneration++;
+        }
+        refill(alias);
+    }
+
+    private void refill(final String alias) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                fill(alias);
+            }
+        });
+    }
+
+    /**
+     * Creates and initializes one cipher, then either gives it to the oldest waiting callback or
+     * parks it in the pool.
+     *
+     * @return {@code false} if the cipher could not be initialized
+     */
+    private boolean arm(String alias) {
+        int generation;
+        synchronized (this) {
+            generation = slot(alias).mGeneration;
+        }
+        Cipher cipher = null;
+        boolean invalidated = false;
+        Exception error = null;
+        long start = System.nanoTime();
+        Tracing.beginSection("Cipher.init");
+        try {
+            cipher = newCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, mKeyStoreSession.getSecretKey(alias));
+            AuthMetrics.getInstance()
+                    .record(AuthMetrics.Phase.CIPHER_INIT, System.nanoTime() - start);
+        } catch (KeyPermanentlyInvalidatedException e) {
+            AuthMetrics.getInstance().count(AuthMetrics.Outcome.KEY_INVALIDATED);
+            // This happens if the lock screen has been disabled or reset after the key was
+            // generated, or if a fingerprint got enrolled after the key was generated.
+            mKeyStoreSession.invalidate(alias);
+            invalidated = true;
+        } catch (InvalidKeyException | RuntimeException e) {
+            // Thrown on the pool's thread, so hand it to whoever is waiting instead.
+            Log.e(TAG, "Failed to init Cipher for " + alias, e);
+            error = e;
+        } finally {
+            Tracing.endSection();
+        }
+
+        List<Callback> failedCallbacks = null;
+        Callback readyCallback = null;
+        boolean stale = false;
+        synchronized (this) {
+            Slot slot = slot(alias);
+            slot.mPending--;
+            if (generation != slot.mGeneration) {
+                // The key changed while this cipher was being initialized.
+                stale = true;
+            } else if (invalidated) {
+                slot.mInvalidated = true;
+                slot.mReady.clear();
+                failedCallbacks = new ArrayList<>(slot.mWaiting);
+                slot.mWaiting.clear();
+            } else if (error != null) {
+                failedCallbacks = new ArrayList<>(slot.mWaiting);
+                slot.mWaiting.clear();
+            } else if (!slot.mWaiting.isEmpty()) {
+                readyCallback = slot.mWaiting.remove(0);
+            } else {
+                slot.mReady.add(cipher);
+            }
+        }
+        if (stale) {
+            refill(alias);
+        } else if (failedCallbacks != null) {
+            final Exception failure = error;
+            for (final Callback callback : failedCallbacks) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (failure != null) {
+                            callback.onError(failure);
+                        } else {
+                            callback.onKeyInvalidated();
+                        }
+                    }
+                });
+            }
+        } else if (readyCallback != null) {
+            final Callback callback = readyCallback;
+            final FingerprintManager.CryptoObject cryptoObject =
+                    new FingerprintManager.CryptoObject(cipher);
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onCipherReady(cryptoObject);
+                }
+            });
+        }
+        return error == null;
+    }
+
+    private Cipher newCipher() {
+        try {
+            return Cipher.getInstance(mCipherSuite.getTransformation());
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException("Failed to get an instance of Cipher", e);
+        }
+    }
+
+    private Slot slot(String alias) {
+        Slot slot = mSlots.get(alias);
+        if (slot == null) {
+            slot = new Slot();
+            mSlots.put(alias, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * The pool state of a single alias. Guarded by the {@link CipherPool} instance.
+     */
+    private static final class Slot {
+        final ArrayDeque<Cipher> mReady = new ArrayDeque<>();
+        final List<Callback> mWaiting = new ArrayList<>();
+        int mPending;
+        int mGeneration;
+        boolean mInvalidated;
+    }
+
+    public interface Callback {
+
+        void onCipherReady(FingerprintManager.CryptoObject cryptoObject);
+
+        void onKeyInvalidated();
+
+        /**
+         * Called on the main thread if the cipher for this callback could not be initialized
+         * for any reason other than an invalidated key.
+         */
+        void onError(Exception e);
+    }
+}
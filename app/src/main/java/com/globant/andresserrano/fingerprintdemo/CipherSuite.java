@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.security.keystore.KeyProperties;
+import android.support.annotation.Nullable;
+
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * The AES transformations the app can encrypt with. The suite is selected in the settings and
+ * is used consistently for key generation, cipher initialization and the stored IV format.
+ */
+enum CipherSuite {
+
+    /** AES in CBC mode with PKCS#7 padding. */
+    CBC(1, KeyProperties.BLOCK_MODE_CBC, KeyProperties.ENCRYPTION_PADDING_PKCS7),
+
+    /** AES in GCM mode, which also authenticates the ciphertext with a 128 bit tag. */
+    GCM(2, KeyProperties.BLOCK_MODE_GCM, KeyProperties.ENCRYPTION_PADDING_NONE);
+
+    static final int GCM_TAG_LENGTH_BITS = 128;
+
+    private final int mId;
+    private final String mBlockMode;
+    private final String mPadding;
+    private final String mTransformation;
+
+    CipherSuite(int id, String blockMode, String padding) {
+        mId = id;
+        mBlockMode = blockMode;
+        mPadding = padding;
+        mTransformation = KeyProperties.KEY_ALGORITHM_AES + "/" + blockMode + "/" + padding;
+    }
+
+    /**
+     * @return the stable identifier stored alongside ciphertext
+     */
+    int getId() {
+        return mId;
+    }
+
+    String getBlockMode() {
+        return mBlockMode;
+    }
+
+    String getPadding() {
+        return mPadding;
+    }
+
+    /**
+     * @return the transformation to pass to {@link javax.crypto.Cipher#getInstance(String)}
+     */
+    String getTransformation() {
+        return mTransformation;
+    }
+
+    /**
+     * @return the parameters needed to decrypt data which was encrypted with {@code iv}
+     */
+    AlgorithmParameterSpec getParameterSpec(byte[] iv) {
+        if (this == GCM) {
+            return new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv);
+        }
+        return new IvParameterSpec(iv);
+    }
+
+    /**
+     * @return the suite with the given {@link #getId() id}
+     * @throws IllegalArgumentException if there is none
+     */
+    static CipherSuite fromId(int id) {
+        for (CipherSuite suite : values()) {
+            if (suite.mId == id) {
+                return suite;
+            }
+        }
+        throw new IllegalArgumentException("Unknown cipher suite " + id);
+    }
+
+    /**
+     * @return the suite named by a preference value, or {@link #CBC} if it is unset or unknown
+     */
+    static CipherSuite fromPreference(@Nullable String value) {
+        if (value != null) {
+            for (CipherSuite suite : values()) {
+                if (suite.name().equals(value)) {
+                    return suite;
+                }
+            }
+        }
+        return CBC;
+    }
+}
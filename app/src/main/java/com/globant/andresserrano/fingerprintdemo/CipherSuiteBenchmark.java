@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.os.SystemClock;
+import android.security.keystore.KeyProperties;
+
+import java.io.PrintWriter;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Compares the throughput of every {@link CipherSuite} on the device, using software keys so the
+ * numbers reflect the cipher implementation rather than key store round trips.
+ *
+ * <p>Run it on a debug build with
+ * {@code adb shell dumpsys activity com.globant.andresserrano.fingerprintdemo cipher-benchmark}.
+ * It runs on the dumpsys binder thread, so it encrypts only about 7 MiB in total, to stay well
+ * within the dumpsys timeout on slow devices; {@code CipherBenchmark} in the benchmarks module
+ * covers the same suites on the JVM with larger payloads.
+ */
+final class CipherSuiteBenchmark {
+
+    private static final int[] PAYLOAD_SIZES = {1024, 16 * 1024, 256 * 1024};
+    private static final long BYTES_PER_RUN = 1024 * 1024;
+    private static final int WARM_UP_ITERATIONS = 2;
+
+    private CipherSuiteBenchmark() {
+    }
+
+    static void run(PrintWriter writer) {
+        SecretKey key;
+        try {
+            KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES);
+            keyGenerator.init(256);
+            key = keyGenerator.generateKey();
+        } catch (GeneralSecurityException e) {
+            writer.println("Failed to generate a benchmark key: " + e);
+            return;
+        }
+        writer.println("suite, payload bytes, iterations, MiB/s");
+        for (CipherSuite suite : CipherSuite.values()) {
+            for (int size : PAYLOAD_SIZES) {
+                try {
+                    measure(writer, suite, key, new byte[size]);
+                } catch (GeneralSecurityException e) {
+                    writer.println(suite + ", " + size + ", failed: " + e);
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    private static void measure(PrintWriter writer, CipherSuite suite, SecretKey key,
+            byte[] payload) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(suite.getTransformation());
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            encrypt(cipher, key, payload);
+        }
+        int iterations = (int) Math.max(1, BYTES_PER_RUN / payload.length);
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < iterations; i++) {
+            encrypt(cipher, key, payload);
+        }
+        long nanos = SystemClock.elapsedRealtimeNanos() - start;
+        double mebibytes = (double) iterations * payload.length / (1024.0 * 1024.0);
+        writer.println(String.format("%s, %d, %d, %.1f", suite, payload.length, iterations,
+                mebibytes / (nanos / 1e9)));
+    }
+
+    private static void encrypt(Cipher cipher, SecretKey key, byte[] payload)
+            throws GeneralSecurityException {
+        // A fresh random IV on every init, as GCM must never reuse one with the same key.
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        cipher.doFinal(payload);
+    }
+}
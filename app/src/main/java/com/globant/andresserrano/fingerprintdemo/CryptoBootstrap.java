@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.AccountKeyRegistry;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Prepares the {@link KeyStoreSession}, {@link KeyGenerator}, keys, {@link CipherPool},
+ * {@link KeyLifecycleManager}, {@link AccountKeyRegistry} and {@link PurchaseVault} used by
+ * {@link MainActivity} on a background thread, so the activity can draw its first frame without
+ * waiting for them. The result is delivered on the main thread through {@link Callback}.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class CryptoBootstrap {
+
+    private static final String TAG = CryptoBootstrap.class.getSimpleName();
+
+    private static final int CIPHER_POOL_SIZE = 2;
+    /** Starts the alias of every per-account key, see {@link AccountKeyRegistry}. */
+    static final String ACCOUNT_KEY_PREFIX = "account:";
+    private static final int ACCOUNT_KEY_CACHE_SIZE = 16;
+    private static final int ACCOUNT_CIPHER_CACHE_SIZE = 4;
+
+    private static final Executor EXECUTOR =
+            Executors.newSingleThreadExecutor(new BackgroundThreadFactory("crypto-bootstrap"));
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Context mContext;
+    private final Callback mCallback;
+    private final Settings mSettings;
+    private final boolean mCreateKeys;
+    private volatile boolean mCancelled;
+
+    /**
+     * @param context used to look up which keys have already been provisioned
+     * @param callback notified on the main thread once the bootstrap finishes
+     * @param settings read once loaded; its cipher suite and session duration decide which keys
+     *                 and ciphers are prepared
+     * @param createKeys {@code false} to skip key provisioning, e.g. when no fingerprint is
+     *                   enrolled
+     */
+    CryptoBootstrap(Context context, Callback callback, Settings settings, boolean createKeys) {
+        mContext = context.getApplicationContext();
+        mCallback = callback;
+        mSettings = settings;
+        mCreateKeys = createKeys;
+    }
+
+    /**
+     * Starts the bootstrap. The callback is invoked exactly once unless {@link #cancel()} is
+     * called first.
+     */
+    void start() {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Result result = prepare();
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            mCallback.onCryptoReady(result);
+                        }
+                    });
+                } catch (final RuntimeException e) {
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            mCallback.onCryptoFailed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the pending result, for example because the activity is being destroyed.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    private void deliver(final Runnable runnable) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    runnable.run();
+                }
+            }
+        });
+    }
+
+    private Result prepare() {
+        Result result = new Result();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        result.mSettings = mSettings.get();
+        CipherSuite cipherSuite = result.mSettings.getCipherSuite();
+        int sessionDurationSeconds = result.mSettings.getSessionDurationSeconds();
+        start = result.record(Step.SETTINGS, start);
+
+        result.mKeyStoreSession = KeyStoreSession.getInstance();
+        start = result.record(Step.KEY_STORE, start);
+
+        try {
+            result.mKeyGenerator = KeyGenerator
+                    .getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+            throw new RuntimeException("Failed to get an instance of KeyGenerator", e);
+        }
+        start = result.record(Step.KEY_GENERATOR, start);
+
+        result.mKeyProvisioner =
+                new KeyProvisioner(mContext, result.mKeyStoreSession, result.mKeyGenerator);
+        KeyGenParameterSpec defaultKeySpec =
+                KeyProvisioner.buildKeySpec(MainActivity.DEFAULT_KEY_NAME, true, cipherSuite);
+        KeyGenParameterSpec notInvalidatedKeySpec = KeyProvisioner.buildKeySpec(
+                MainActivity.KEY_NAME_NOT_INVALIDATED, false, cipherSuite);
+        KeyGenParameterSpec signingKeySpec =
+                KeyProvisioner.buildSigningKeySpec(MainActivity.SIGNING_KEY_NAME);
+        KeyGenParameterSpec sessionKeySpec = sessionDurationSeconds > 0
+                ? KeyProvisioner.buildSessionKeySpec(AuthorizationSession.KEY_NAME,
+                        sessionDurationSeconds, cipherSuite)
+                : null;
+        if (mCreateKeys) {
+            result.mKeyProvisioner.ensureKey(defaultKeySpec);
+            result.mKeyProvisioner.ensureKey(notInvalidatedKeySpec);
+            result.mKeyProvisioner.ensureKey(signingKeySpec);
+            if (sessionKeySpec != null) {
+                result.mKeyProvisioner.ensureKey(sessionKeySpec);
+            }
+            start = result.record(Step.KEYS, start);
+        } else {
+            start = SystemClock.elapsedRealtimeNanos();
+        }
+
+        result.mCipherPool =
+                new CipherPool(result.mKeyStoreSession, cipherSuite, CIPHER_POOL_SIZE);
+        result.mKeyLifecycleManager = new KeyLifecycleManager(result.mKeyStoreSession,
+                result.mKeyProvisioner, result.mCipherPool, cipherSuite);
+        if (mCreateKeys) {
+            // The user has to opt in again before the default key is replaced, see
+            // FingerprintAuthenticationDialogFragment; the others are replaced right away.
+            result.mKeyLifecycleManager.register(defaultKeySpec, true, true);
+            result.mKeyLifecycleManager.register(notInvalidatedKeySpec, true, false);
+            result.mKeyLifecycleManager.register(signingKeySpec, false, false);
+            if (sessionKeySpec != null) {
+                result.mKeyLifecycleManager.register(sessionKeySpec, false, false);
+            }
+        }
+        result.mAccountKeyRegistry = newAccountKeyRegistry(result, cipherSuite);
+        result.mAuthorizationSession = new AuthorizationSession(result.mKeyStoreSession,
+                result.mKeyLifecycleManager, cipherSuite, sessionDurationSeconds);
+        if (mCreateKeys) {
+            result.mCipherPool.fill(MainActivity.DEFAULT_KEY_NAME);
+            result.mCipherPool.fill(MainActivity.KEY_NAME_NOT_INVALIDATED);
+            start = result.record(Step.CIPHERS, start);
+        } else {
+            start = SystemClock.elapsedRealtimeNanos();
+        }
+        try {
+            result.mPurchaseVault = new PurchaseVault(mContext, result.mKeyStoreSession);
+        } catch (IOException e) {
+            // Everything but purchases still works, so the activity only disables those.
+            Log.e(TAG, "Failed to open the purchase vault", e);
+        }
+        result.record(Step.VAULT, start);
+
+        for (Step step : Step.values()) {
+            Log.d(TAG, step + " took " + result.getStepMillis(step) + " ms");
+        }
+        return result;
+    }
+
+    /**
+     * Creates the registry of per-account keys. Nothing is loaded until an account needs its key.
+     */
+    private static AccountKeyRegistry newAccountKeyRegistry(Result result,
+            final CipherSuite cipherSuite) {
+        final KeyGenerator keyGenerator = result.mKeyGenerator;
+        return new AccountKeyRegistry(result.mKeyStoreSession.getKeyStore(), null,
+                ACCOUNT_KEY_PREFIX, cipherSuite.getTransformation(),
+                new AccountKeyRegistry.KeyCreator() {
+                    @Override
+                    public void createKey(KeyStore keyStore, String alias)
+                            throws GeneralSecurityException {
+                        synchronized (keyGenerator) {
+                            keyGenerator.init(
+                                    KeyProvisioner.buildKeySpec(alias, true, cipherSuite));
+                            keyGenerator.generateKey();
+                        }
+                    }
+                }, ACCOUNT_KEY_CACHE_SIZE, ACCOUNT_CIPHER_CACHE_SIZE);
+    }
+
+    /**
+     * The bootstrap stages, in the order they run.
+     */
+    enum Step {
+        SETTINGS,
+        KEY_STORE,
+        KEY_GENERATOR,
+        KEYS,
+        CIPHERS,
+        VAULT
+    }
+
+    /**
+     * The objects prepared by the bootstrap, along with how long each {@link Step} took.
+     */
+    static final class Result {
+
+        private final long[] mStepNanos = new long[Step.values().length];
+        private Settings.Snapshot mSettings;
+        private KeyStoreSession mKeyStoreSession;
+        private KeyGenerator mKeyGenerator;
+        private KeyProvisioner mKeyProvisioner;
+        private CipherPool mCipherPool;
+        private AuthorizationSession mAuthorizationSession;
+        private KeyLifecycleManager mKeyLifecycleManager;
+        private AccountKeyRegistry mAccountKeyRegistry;
+        private PurchaseVault mPurchaseVault;
+
+        private long record(Step step, long start) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            mStepNanos[step.ordinal()] = now - start;
+            return now;
+        }
+
+        /**
+         * @return the settings the keys and ciphers were prepared for
+         */
+        Settings.Snapshot getSettings() {
+            return mSettings;
+        }
+
+        KeyStoreSession getKeyStoreSession() {
+            return mKeyStoreSession;
+        }
+
+        KeyGenerator getKeyGenerator() {
+            return mKeyGenerator;
+        }
+
+        KeyProvisioner getKeyProvisioner() {
+            return mKeyProvisioner;
+        }
+
+        CipherPool getCipherPool() {
+            return mCipherPool;
+        }
+
+        AuthorizationSession getAuthorizationSession() {
+            return mAuthorizationSession;
+        }
+
+        KeyLifecycleManager getKeyLifecycleManager() {
+            return mKeyLifecycleManager;
+        }
+
+        AccountKeyRegistry getAccountKeyRegistry() {
+            return mAccountKeyRegistry;
+        }
+
+        /**
+         * @return the vault, or {@code null} if it could not be opened
+         */
+        @Nullable
+        PurchaseVault getPurchaseVault() {
+            return mPurchaseVault;
+        }
+
+        /**
+         * @return the time spent in {@code step}, or 0 if the step was skipped
+         */
+        long getStepMillis(Step step) {
+            return mStepNanos[step.ordinal()] / 1000000L;
+        }
+    }
+
+    public interface Callback {
+
+        void onCryptoReady(Result result);
+
+        void onCryptoFailed(RuntimeException e);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs crypto work such as {@link javax.crypto.Cipher#doFinal} on a dedicated background thread
+ * and delivers the result on the main thread.
+ *
+ * <p>The queue is bounded: a job is rejected when the queue is full, and a job whose key matches
+ * one that is already queued or running is coalesced into it (i.e. dropped), so double-taps can't
+ * pile up work. Jobs can be cancelled individually or all at once when their owner goes away.
+ */
+class CryptoExecutor {
+
+    private static final String TAG = CryptoExecutor.class.getSimpleName();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final Set<String> mActiveKeys = new HashSet<>();
+    private final Set<Job<?>> mJobs = new HashSet<>();
+
+    /**
+     * @param queueCapacity how many jobs may wait behind the running one before new ones are
+     *                      rejected
+     */
+    CryptoExecutor(int queueCapacity) {
+        mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new BackgroundThreadFactory("crypto"));
+    }
+
+    /**
+     * Queues {@code task}. Its result or error is passed to {@code callback} on the main thread
+     * unless the job is cancelled first.
+     *
+     * @param key jobs with the same key are coalesced while one of them is pending
+     * @return the queued job, or {@code null} if it was coalesced or the queue is full
+     */
+    @Nullable
+    <T> Job<T> submit(String key, Callable<T> task, Callback<T> callback) {
+        Job<T> job = new Job<>(key, task, callback);
+        synchronized (this) {
+            if (!mActiveKeys.add(key)) {
+                Log.d(TAG, "Coalesced " + key);
+                return null;
+            }
+            try {
+                job.mFuture = mExecutor.submit(job);
+            } catch (RejectedExecutionException e) {
+                mActiveKeys.remove(key);
+                Log.w(TAG, "Rejected " + key + ", queue is full");
+                return null;
+            }
+            mJobs.add(job);
+        }
+        return job;
+    }
+
+    /**
+     * Cancels every pending job, e.g. because the user cancelled the fingerprint dialog.
+     */
+    void cancelAll() {
+        List<Job<?>> jobs;
+        synchronized (this) {
+            jobs = new ArrayList<>(mJobs);
+        }
+        for (Job<?> job : jobs) {
+            job.cancel();
+        }
+    }
+
+    /**
+     * Cancels every pending job and stops the worker thread.
+     */
+    void shutdown() {
+        cancelAll();
+        mExecutor.shutdown();
+    }
+
+    private synchronized void finish(Job<?> job) {
+        mJobs.remove(job);
+        mActiveKeys.remove(job.mKey);
+    }
+
+    /**
+     * A queued piece of crypto work.
+     */
+    final class Job<T> implements Runnable {
+
+        private final String mKey;
+        private final Callable<T> mTask;
+        private final Callback<T> mCallback;
+        private volatile boolean mCancelled;
+        private Future<?> mFuture;
+
+        private Job(String key, Callable<T> task, Callback<T> callback) {
+            mKey = key;
+            mTask = task;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                finish(this);
+                return;
+            }
+            T result = null;
+            Exception error = null;
+            try {
+                result = mTask.call();
+            } catch (Exception e) {
+                error = e;
+            }
+            final T finalResult = result;
+            final Exception finalError = error;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    finish(Job.this);
+                    if (mCancelled) {
+                        return;
+                    }
+                    if (finalError != null) {
+                        mCallback.onError(finalError);
+                    } else {
+                        mCallback.onResult(finalResult);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cancels the job. If it hasn't started it never will, otherwise its result is dropped.
+         */
+        void cancel() {
+            mCancelled = true;
+            Future<?> future;
+            synchronized (CryptoExecutor.this) {
+                future = mFuture;
+            }
+            if (future != null && future.cancel(false)) {
+                finish(this);
+            }
+        }
+    }
+
+    public interface Callback<T> {
+
+        void onResult(T result);
+
+        void onError(Exception e);
+    }
+}
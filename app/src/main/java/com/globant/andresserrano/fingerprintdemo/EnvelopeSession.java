@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.support.annotation.RequiresApi;
+import android.util.Base64;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Envelope encryption for bulk data: a software AES data key, stored wrapped by a
+ * fingerprint-bound key store key, is unwrapped once per session and then used at full CPU
+ * speed without going through the key store.
+ *
+ * <p>A session is opened by authenticating the cipher from {@link #newUnlockCipher()} with
+ * fingerprint and passing it to {@link #open(Cipher)}. The first time, that wraps a freshly
+ * generated data key; afterwards it unwraps the stored one. The wrapped key is stored with the
+ * key store alias it was wrapped under, and is forgotten once that alias is replaced, see
+ * {@link KeyProvisioner#promoteKey}, or it fails to unwrap. The session ends, and the data key is
+ * wiped from memory, on {@link #close()} or after the timeout given to the constructor. Owners
+ * should also close it when they are paused. {@link PurchaseHistoryExport} is the bulk operation
+ * which runs in a session.
+ *
+ * <p>Bulk ciphertext has the form {@code IV (12 bytes) | AES-GCM ciphertext | tag}.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class EnvelopeSession {
+
+    private static final String TAG = EnvelopeSession.class.getSimpleName();
+
+    private static final String PREFERENCES_NAME = "envelope";
+    private static final String PREF_WRAPPED_KEY = "wrapped_key";
+    private static final String PREF_WRAPPED_KEY_IV = "wrapped_key_iv";
+    private static final String PREF_WRAPPED_KEY_SUITE = "wrapped_key_suite";
+    private static final String PREF_WRAPPED_KEY_ALIAS = "wrapped_key_alias";
+
+    private static final String DATA_TRANSFORMATION = CipherSuite.GCM.getTransformation();
+    private static final int DATA_KEY_LENGTH_BYTES = 32;
+    private static final int DATA_IV_LENGTH_BYTES = 12;
+    private static final int DATA_TAG_LENGTH_BYTES = CipherSuite.GCM_TAG_LENGTH_BITS / 8;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final SecureRandom mRandom = new SecureRandom();
+    private final SharedPreferences mPreferences;
+    private final KeyStoreSession mKeyStoreSession;
+    private final String mAlias;
+    private final CipherSuite mCipherSuite;
+    private final long mTimeoutMillis;
+
+    private DataKey mDataKey;
+    private Cipher mDataCipher;
+    private int mOperations;
+    /** Saved by the sessions which have been closed. */
+    private long mClosedOperationsSaved;
+
+    /**
+     * @param alias the fingerprint-bound key store key which wraps the data key
+     * @param cipherSuite the suite of that key
+     * @param timeoutMillis how long a session stays open before it is closed automatically
+     */
+    EnvelopeSession(Context context, KeyStoreSession keyStoreSession, String alias,
+            CipherSuite cipherSuite, long timeoutMillis) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mKeyStoreSession = keyStoreSession;
+        mAlias = alias;
+        mCipherSuite = cipherSuite;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Creates the key store cipher to authenticate with fingerprint before calling
+     * {@link #open(Cipher)}: a decrypt cipher if a wrapped data key exists, otherwise an encrypt
+     * cipher to wrap a new one.
+     *
+     * @throws KeyPermanentlyInvalidatedException if the wrapping key can no longer be used, in
+     * which case the stored data key is lost as well
+     */
+    Cipher newUnlockCipher() throws KeyPermanentlyInvalidatedException {
+        byte[] iv = wrappedKeyIv();
+        try {
+            Cipher cipher = Cipher.getInstance(mCipherSuite.getTransformation());
+            if (iv == null) {
+                cipher.init(Cipher.ENCRYPT_MODE, mKeyStoreSession.getSecretKey(mAlias));
+            } else {
+                cipher.init(Cipher.DECRYPT_MODE, mKeyStoreSession.getSecretKey(mAlias),
+                        mCipherSuite.getParameterSpec(iv));
+            }
+            return cipher;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            mKeyStoreSession.invalidate(mAlias);
+            forgetWrappedKey();
+            throw e;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+                | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException("Failed to init Cipher", e);
+        }
+    }
+
+    /**
+     * Opens a session with a cipher from {@link #newUnlockCipher()} which the user has just
+     * authorized. This is the only key store operation of the session.
+     *
+     * @return {@code false} if the stored data key failed to unwrap. It has been forgotten, so
+     * the next cipher from {@link #newUnlockCipher()} wraps a fresh one.
+     */
+    synchronized boolean open(Cipher authorizedCipher) throws GeneralSecurityException {
+        closeLocked();
+        byte[] key;
+        byte[] wrapped = wrappedKey();
+        if (wrapped == null) {
+            key = new byte[DATA_KEY_LENGTH_BYTES];
+            mRandom.nextBytes(key);
+            byte[] newWrapped = authorizedCipher.doFinal(key);
+            mPreferences.edit()
+                    .putString(PREF_WRAPPED_KEY, Base64.encodeToString(newWrapped, Base64.NO_WRAP))
+                    .putString(PREF_WRAPPED_KEY_IV,
+                            Base64.encodeToString(authorizedCipher.getIV(), Base64.NO_WRAP))
+                    .putInt(PREF_WRAPPED_KEY_SUITE, mCipherSuite.getId())
+                    .putString(PREF_WRAPPED_KEY_ALIAS, mKeyStoreSession.resolveAlias(mAlias))
+                    .apply();
+        } else {
+            try {
+                key = authorizedCipher.doFinal(wrapped);
+            } catch (BadPaddingException | IllegalBlockSizeException e) {
+                Log.w(TAG, "Failed to unwrap the data key, a new one will be wrapped", e);
+                forgetWrappedKey();
+                return false;
+            }
+        }
+        mDataKey = new DataKey(key);
+        Arrays.fill(key, (byte) 0);
+        mDataCipher = Cipher.getInstance(DATA_TRANSFORMATION);
+        mOperations = 0;
+        mMainHandler.postDelayed(mTimeoutRunnable, mTimeoutMillis);
+        return true;
+    }
+
+    synchronized boolean isOpen() {
+        return mDataKey != null;
+    }
+
+    /**
+     * Encrypts {@code plaintext} with the session's data key.
+     *
+     * @throws IllegalStateException if the session is not open
+     */
+    synchronized byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        checkOpen();
+        byte[] iv = new byte[DATA_IV_LENGTH_BYTES];
+        mRandom.nextBytes(iv);
+        mDataCipher.init(Cipher.ENCRYPT_MODE, mDataKey,
+                new GCMParameterSpec(CipherSuite.GCM_TAG_LENGTH_BITS, iv));
+        byte[] output = new byte[iv.length + mDataCipher.getOutputSize(plaintext.length)];
+        System.arraycopy(iv, 0, output, 0, iv.length);
+        mDataCipher.doFinal(plaintext, 0, plaintext.length, output, iv.length);
+        mOperations++;
+        return output;
+    }
+
+    /**
+     * Decrypts {@code ciphertext} produced by {@link #encrypt(byte[])}.
+     *
+     * @throws IllegalStateException if the session is not open
+     */
+    synchronized byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException {
+        checkOpen();
+        if (ciphertext.length < DATA_IV_LENGTH_BYTES + DATA_TAG_LENGTH_BYTES) {
+            throw new IllegalArgumentException("Ciphertext too short");
+        }
+        mDataCipher.init(Cipher.DECRYPT_MODE, mDataKey, new GCMParameterSpec(
+                CipherSuite.GCM_TAG_LENGTH_BITS, ciphertext, 0, DATA_IV_LENGTH_BYTES));
+        byte[] plaintext = mDataCipher.doFinal(ciphertext, DATA_IV_LENGTH_BYTES,
+                ciphertext.length - DATA_IV_LENGTH_BYTES);
+        mOperations++;
+        return plaintext;
+    }
+
+    /**
+     * @return how many key store operations the current or last session avoided, i.e. the
+     * number of bulk operations beyond the single unwrap
+     */
+    synchronized int getKeyStoreOperationsSaved() {
+        return Math.max(0, mOperations - 1);
+    }
+
+    /**
+     * @return how many key store operations every session so far avoided
+     */
+    synchronized long getTotalKeyStoreOperationsSaved() {
+        return mClosedOperationsSaved + (mDataKey != null ? getKeyStoreOperationsSaved() : 0);
+    }
+
+    /**
+     * Ends the session and wipes the data key. Safe to call when no session is open.
+     */
+    synchronized void close() {
+        closeLocked();
+    }
+
+    private void closeLocked() {
+        mMainHandler.removeCallbacks(mTimeoutRunnable);
+        if (mDataKey == null) {
+            return;
+        }
+        mDataKey.wipe();
+        mDataKey = null;
+        mDataCipher = null;
+        mClosedOperationsSaved += getKeyStoreOperationsSaved();
+        Log.d(TAG, "Session closed after " + mOperations + " operations, "
+                + getKeyStoreOperationsSaved() + " key store operations saved");
+    }
+
+    private void checkOpen() {
+        if (mDataKey == null) {
+            throw new IllegalStateException("Envelope session is not open");
+        }
+    }
+
+    private byte[] wrappedKey() {
+        String wrapped = mPreferences.getString(PREF_WRAPPED_KEY, null);
+        return wrapped == null ? null : Base64.decode(wrapped, Base64.NO_WRAP);
+    }
+
+    private byte[] wrappedKeyIv() {
+        if (mPreferences.getInt(PREF_WRAPPED_KEY_SUITE, -1) != mCipherSuite.getId()) {
+            // The wrapping key has been regenerated for another suite, the old data key is gone.
+            forgetWrappedKey();
+            return null;
+        }
+        if (!mKeyStoreSession.resolveAlias(mAlias)
+                .equals(mPreferences.getString(PREF_WRAPPED_KEY_ALIAS, null))) {
+            // Same once the wrapping key has been replaced under a new alias.
+            forgetWrappedKey();
+            return null;
+        }
+        String iv = mPreferences.getString(PREF_WRAPPED_KEY_IV, null);
+        return iv == null ? null : Base64.decode(iv, Base64.NO_WRAP);
+    }
+
+    private void forgetWrappedKey() {
+        mPreferences.edit()
+                .remove(PREF_WRAPPED_KEY)
+                .remove(PREF_WRAPPED_KEY_IV)
+                .remove(PREF_WRAPPED_KEY_SUITE)
+                .remove(PREF_WRAPPED_KEY_ALIAS)
+                .apply();
+    }
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            close();
+        }
+    };
+
+    /**
+     * An AES key whose material can be wiped. Providers receive a copy through
+     * {@link #getEncoded()}, so wiping is best effort: it clears the copy held by the session.
+     */
+    private static final class DataKey implements SecretKey {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mKey;
+
+        DataKey(byte[] key) {
+            mKey = key.clone();
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "AES";
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            return mKey.clone();
+        }
+
+        void wipe() {
+            Arrays.fill(mKey, (byte) 0);
+        }
+    }
+}
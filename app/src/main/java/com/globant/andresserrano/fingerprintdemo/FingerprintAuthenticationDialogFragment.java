@@ -18,12 +18,13 @@ package com.globant.andresserrano.fingerprintdemo;
 
 import android.app.DialogFragment;
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.DialogInterface;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.support.annotation.RequiresApi;
+import android.support.v4.view.AsyncLayoutInflater;
+import android.view.ContextThemeWrapper;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -36,30 +37,59 @@ import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.globant.andresserrano.fingerprintdemo.authflow.AuditLog;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuditingAuthenticator;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.Event;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.State;
+import com.globant.andresserrano.fingerprintdemo.authflow.Authenticator;
+import com.globant.andresserrano.fingerprintdemo.authflow.PasswordVerifier;
+
+import java.io.IOException;
+
 /**
  * A dialog which uses fingerprint APIs to authenticate the user, and falls back to password
  * authentication if fingerprint is not available.
+ *
+ * <p>The flow itself lives in {@link AuthStateMachine}; this class turns view and sensor
+ * callbacks into its events and performs the actions it returns.
+ *
+ * <p>One instance is shown for every purchase. Its views are inflated ahead of time with
+ * {@link #preinflate}, kept across shows and reset each time the dialog comes up.
+ *
+ * <p>Sensor callbacks, state changes and password attempts are recorded in the
+ * {@link AuditTrail}, one session per show.
  */
 public class FingerprintAuthenticationDialogFragment extends DialogFragment
         implements TextView.OnEditorActionListener, FingerprintUiHelper.Callback {
 
+    private static final int DIALOG_THEME = android.R.style.Theme_Material_Light_Dialog;
+
+    private View mView;
+    /** The activity {@link #mView} was inflated for, it's inflated again for any other. */
+    private Context mViewOwner;
     private Button mCancelButton;
     private Button mSecondDialogButton;
-    private View mFingerprintContent;
-    private View mBackupContent;
+    private View[] mFingerprintViews;
+    private View[] mPasswordViews;
     private EditText mPassword;
     private CheckBox mUseFingerprintFutureCheckBox;
     private TextView mPasswordDescriptionTextView;
-    private TextView mNewFingerprintEnrolledTextView;
 
-    private Stage mStage = Stage.FINGERPRINT;
+    private State mInitialState = State.FINGERPRINT;
+    private AuthStateMachine mStateMachine;
 
     private FingerprintManager.CryptoObject mCryptoObject;
+    /** The password verification in flight, if any. */
+    private Authenticator.Cancellable mPasswordRequest;
     private FingerprintUiHelper mFingerprintUiHelper;
     private MainActivity mActivity;
 
     private InputMethodManager mInputMethodManager;
-    private SharedPreferences mSharedPreferences;
+    private Settings mSettings;
+    private AuditLog mAuditLog;
+    /** Audit session of the current show; the instance is reused, so work is tagged with it. */
+    private int mShowId;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -67,20 +97,79 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
 
         // Do not create a new Fragment when the Activity is re-created such as orientation changes.
         setRetainInstance(true);
-        setStyle(DialogFragment.STYLE_NORMAL, android.R.style.Theme_Material_Light_Dialog);
+        setStyle(DialogFragment.STYLE_NORMAL, DIALOG_THEME);
+        mStateMachine = new AuthStateMachine(mInitialState, mSettings.get().isPipelined());
+        mShowId = mAuditLog.beginSession();
+        mAuditLog.record(AuditLog.Event.SESSION_STARTED, mInitialState.ordinal(), 0);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
+        Tracing.beginSection("FingerprintDialog.onCreateView");
+        try {
+            return createView(inflater, container);
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    /**
+     * Inflates the dialog's views on a background thread, so that showing the dialog only has to
+     * reset them. Does nothing if they already exist.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    void preinflate(final Context activity) {
+        if (mView != null) {
+            return;
+        }
+        new AsyncLayoutInflater(new ContextThemeWrapper(activity, DIALOG_THEME)).inflate(
+                R.layout.fingerprint_dialog, null,
+                new AsyncLayoutInflater.OnInflateFinishedListener() {
+                    @Override
+                    public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                        // The dialog may have been shown, and inflated its own views, meanwhile.
+                        if (mView == null) {
+                            bindViews(view, activity);
+                        }
+                    }
+                });
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private View createView(LayoutInflater inflater, ViewGroup container) {
         getDialog().setTitle(getString(R.string.sign_in));
-        View v = inflater.inflate(R.layout.fingerprint_dialog_container, container, false);
+        if (mView == null || mViewOwner != getActivity()) {
+            bindViews(inflater.inflate(R.layout.fingerprint_dialog, container, false),
+                    getActivity());
+        } else if (mView.getParent() != null) {
+            // Still attached to the window of the previous dialog.
+            ((ViewGroup) mView.getParent()).removeView(mView);
+        }
+        resetViews();
+        fire(Event.VIEW_CREATED);
+
+        // If fingerprint authentication is not available, switch immediately to the backup
+        // (password) screen.
+        if (!mFingerprintUiHelper.isFingerprintAuthAvailable()) {
+            fire(Event.FINGERPRINT_UNAVAILABLE);
+        }
+        return mView;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void bindViews(View v, Context owner) {
+        // Preinflated views are bound before the fragment is attached, so onAttach may not have
+        // run yet.
+        mAuditLog = AuditTrail.getInstance(owner);
+        mView = v;
+        mViewOwner = owner;
         mCancelButton = (Button) v.findViewById(R.id.cancel_button);
         mCancelButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                dismiss();
+                fire(Event.CANCEL);
             }
         });
 
@@ -88,54 +177,67 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
         mSecondDialogButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                if (mStage == Stage.FINGERPRINT) {
-                    goToBackup();
+                if (mStateMachine.getState() == State.FINGERPRINT) {
+                    mAuditLog.record(AuditLog.Event.PASSWORD_FALLBACK,
+                            State.FINGERPRINT.ordinal(), 0);
+                    fire(Event.USE_PASSWORD);
                 } else {
                     verifyPassword();
                 }
             }
         });
-        mFingerprintContent = v.findViewById(R.id.fingerprint_container);
-        mBackupContent = v.findViewById(R.id.backup_container);
         mPassword = (EditText) v.findViewById(R.id.password);
         mPassword.setOnEditorActionListener(this);
         mPasswordDescriptionTextView = (TextView) v.findViewById(R.id.password_description);
         mUseFingerprintFutureCheckBox = (CheckBox)
                 v.findViewById(R.id.use_fingerprint_in_future_check);
-        mNewFingerprintEnrolledTextView = (TextView)
-                v.findViewById(R.id.new_fingerprint_enrolled_description);
+        ImageView icon = (ImageView) v.findViewById(R.id.fingerprint_icon);
+        TextView status = (TextView) v.findViewById(R.id.fingerprint_status);
+        mFingerprintViews = new View[] {
+                v.findViewById(R.id.fingerprint_description), icon, status};
+        mPasswordViews = new View[] {mPasswordDescriptionTextView, mPassword};
         mFingerprintUiHelper = new FingerprintUiHelper(
-                mActivity.getSystemService(FingerprintManager.class),
-                (ImageView) v.findViewById(R.id.fingerprint_icon),
-                (TextView) v.findViewById(R.id.fingerprint_status), this);
-        updateStage();
+                new AuditingAuthenticator<>(new FingerprintManagerAuthenticator(
+                        owner.getSystemService(FingerprintManager.class)), mAuditLog),
+                icon, status, this,
+                owner.getResources().getInteger(R.integer.fingerprint_success_delay_millis),
+                owner.getResources().getInteger(R.integer.fingerprint_error_timeout_millis));
+    }
 
-        // If fingerprint authentication is not available, switch immediately to the backup
-        // (password) screen.
-        if (!mFingerprintUiHelper.isFingerprintAuthAvailable()) {
-            goToBackup();
-        }
-        return v;
+    /**
+     * Undoes whatever the previous purchase left on the reused views.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void resetViews() {
+        mPassword.removeCallbacks(mShowKeyboardRunnable);
+        mPassword.setText("");
+        mPassword.setError(null);
+        mPasswordDescriptionTextView.setText(R.string.password_description);
+        mUseFingerprintFutureCheckBox.setChecked(true);
+        mUseFingerprintFutureCheckBox.setVisibility(View.GONE);
+        mFingerprintUiHelper.showHint();
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
     public void onResume() {
         super.onResume();
-        if (mStage == Stage.FINGERPRINT) {
-            mFingerprintUiHelper.startListening(mCryptoObject);
-        }
+        fire(Event.RESUME);
     }
 
-    public void setStage(Stage stage) {
-        mStage = stage;
+    /**
+     * Sets the state the dialog starts in: {@link State#FINGERPRINT}, {@link State#PASSWORD} or
+     * {@link State#NEW_FINGERPRINT_ENROLLED}. Must be called before the dialog is shown.
+     */
+    public void setStage(State stage) {
+        mInitialState = stage;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
     public void onPause() {
         super.onPause();
-        mFingerprintUiHelper.stopListening();
+        fire(Event.PAUSE);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -144,7 +246,8 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
         super.onAttach(context);
         mActivity = (MainActivity) getActivity();
         mInputMethodManager = context.getSystemService(InputMethodManager.class);
-        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+        mSettings = Settings.getInstance(context);
+        mAuditLog = AuditTrail.getInstance(context);
     }
 
     /**
@@ -154,57 +257,152 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
         mCryptoObject = cryptoObject;
     }
 
+    /**
+     * Feeds {@code event} to the state machine and performs the resulting actions.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void fire(Event event) {
+        State previous = mStateMachine.getState();
+        int actions = mStateMachine.fire(event);
+        State state = mStateMachine.getState();
+        if (state != previous) {
+            mAuditLog.record(AuditLog.Event.STATE_CHANGED, state.ordinal(), previous.ordinal());
+        }
+        if ((actions & AuthStateMachine.ACTION_STOP_LISTENING) != 0) {
+            mFingerprintUiHelper.stopListening();
+        }
+        if ((actions & AuthStateMachine.ACTION_SHOW_FINGERPRINT) != 0) {
+            showFingerprint();
+        }
+        if ((actions & AuthStateMachine.ACTION_SHOW_PASSWORD) != 0) {
+            showPassword();
+        }
+        if ((actions & AuthStateMachine.ACTION_START_LISTENING) != 0) {
+            AuthMetrics.getInstance().markDialogShown();
+            mFingerprintUiHelper.startListening(mCryptoObject);
+        }
+        if ((actions & AuthStateMachine.ACTION_SAVE_ENROLLMENT_CHOICE) != 0) {
+            saveEnrollmentChoice();
+        }
+        if ((actions & AuthStateMachine.ACTION_SIGN_IN_WITH_PASSWORD) != 0) {
+            mPassword.setText("");
+            mActivity.signInWhitFingerPrint(false /* without Fingerprint */, null, mShowId);
+        }
+        if ((actions & AuthStateMachine.ACTION_START_FINGERPRINT_WORK) != 0) {
+            // Let the activity know that authentication was successful. In pipelined mode it
+            // reports back with onWorkDone(), passing mShowId back.
+            mActivity.signInWhitFingerPrint(true /* withFingerprint */, mCryptoObject, mShowId);
+        }
+        if (state == State.CANCELLED && previous != State.CANCELLED) {
+            mActivity.onAuthenticationCancelled();
+        }
+        if ((actions & AuthStateMachine.ACTION_DISMISS) != 0) {
+            AuthMetrics.getInstance().markDialogDismissed();
+            dismiss();
+        }
+    }
+
+    private void showFingerprint() {
+        mCancelButton.setText(R.string.cancel);
+        mSecondDialogButton.setText(R.string.use_password);
+        setVisibility(mPasswordViews, View.GONE);
+        setVisibility(mFingerprintViews, View.VISIBLE);
+    }
+
     /**
      * Switches to backup (password) screen. This either can happen when fingerprint is not
      * available or the user chooses to use the password authentication method by pressing the
      * button. This can also happen when the user had too many fingerprint attempts.
      */
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private void goToBackup() {
-        mStage = Stage.PASSWORD;
-        updateStage();
+    private void showPassword() {
+        mCancelButton.setText(R.string.cancel);
+        mSecondDialogButton.setText(R.string.ok);
+        setVisibility(mFingerprintViews, View.GONE);
+        setVisibility(mPasswordViews, View.VISIBLE);
+        if (mStateMachine.getState() == State.NEW_FINGERPRINT_ENROLLED) {
+            mPasswordDescriptionTextView.setText(R.string.new_fingerprint_enrolled_description);
+            mUseFingerprintFutureCheckBox.setVisibility(View.VISIBLE);
+        }
         mPassword.requestFocus();
 
         // Show the keyboard.
         mPassword.postDelayed(mShowKeyboardRunnable, 500);
+    }
 
-        // Fingerprint is not used anymore. Stop listening for it.
-        mFingerprintUiHelper.stopListening();
+    private static void setVisibility(View[] views, int visibility) {
+        for (View view : views) {
+            view.setVisibility(visibility);
+        }
     }
 
     /**
-     * Checks whether the current entered password is correct, and dismisses the the dialog and
-     * let's the activity know about the result.
+     * Sends the entered password to the backend, and once it is accepted dismisses the dialog
+     * and lets the activity know. Submitting again, from the keyboard and the button, joins the
+     * request in flight.
      */
     @RequiresApi(api = Build.VERSION_CODES.M)
     private void verifyPassword() {
-        if (!checkPassword(mPassword.getText().toString())) {
+        String password = mPassword.getText().toString();
+        if (password.isEmpty()) {
             return;
         }
-        if (mStage == Stage.NEW_FINGERPRINT_ENROLLED) {
-            SharedPreferences.Editor editor = mSharedPreferences.edit();
-            editor.putBoolean(getString(R.string.use_fingerprint_to_authenticate_key),
-                    mUseFingerprintFutureCheckBox.isChecked());
-            editor.apply();
-
-            if (mUseFingerprintFutureCheckBox.isChecked()) {
-                // Re-create the key so that fingerprints including new ones are validated.
-                mActivity.createKey(MainActivity.DEFAULT_KEY_NAME, true);
-                mStage = Stage.FINGERPRINT;
-            }
+        Authenticator.Cancellable previous = mPasswordRequest;
+        mPasswordRequest = PasswordBackend.getInstance().verify(password,
+                new PasswordVerifier.Callback() {
+                    @Override
+                    public void onVerified(boolean accepted) {
+                        mPasswordRequest = null;
+                        mAuditLog.record(accepted
+                                        ? AuditLog.Event.PASSWORD_ACCEPTED
+                                        : AuditLog.Event.PASSWORD_REJECTED,
+                                mStateMachine.getState().ordinal(), 0);
+                        if (accepted) {
+                            fire(Event.PASSWORD_ACCEPTED);
+                        } else {
+                            mPassword.setError(getString(R.string.password_rejected));
+                        }
+                    }
+
+                    @Override
+                    public void onError(IOException e) {
+                        mPasswordRequest = null;
+                        mAuditLog.record(AuditLog.Event.PASSWORD_ERROR,
+                                mStateMachine.getState().ordinal(), 0);
+                        mPassword.setError(getString(R.string.password_verification_failed));
+                    }
+                });
+        if (previous != null) {
+            // Cancelled after the new request joined it, so an identical one keeps running.
+            previous.cancel();
         }
-        mPassword.setText("");
-        mActivity.signInWhitFingerPrint(false /* without Fingerprint */, null);
-        dismiss();
     }
 
-    /**
-     * @return true if {@code password} is correct, false otherwise
-     */
-    private boolean checkPassword(String password) {
-        // Assume the password is always correct.
-        // In the real world situation, the password needs to be verified in the server side.
-        return password.length() > 0;
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    public void onCancel(DialogInterface dialog) {
+        super.onCancel(dialog);
+        // Back and touches outside the dialog cancel it just like the cancel button.
+        fire(Event.CANCEL);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    public void onDismiss(DialogInterface dialog) {
+        super.onDismiss(dialog);
+        if (mPasswordRequest != null) {
+            mPasswordRequest.cancel();
+            mPasswordRequest = null;
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void saveEnrollmentChoice() {
+        mSettings.setFingerprintEnabled(mUseFingerprintFutureCheckBox.isChecked());
+
+        if (mUseFingerprintFutureCheckBox.isChecked()) {
+            // Swap in the replacement key, which fingerprints including new ones unlock.
+            mActivity.replaceKey(MainActivity.DEFAULT_KEY_NAME);
+        }
     }
 
     private final Runnable mShowKeyboardRunnable = new Runnable() {
@@ -214,18 +412,6 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
         }
     };
 
-    private void updateStage() {
-        switch (mStage) {
-            case FINGERPRINT:
-                mCancelButton.setText(R.string.cancel);
-                mSecondDialogButton.setText(R.string.use_password);
-                mFingerprintContent.setVisibility(View.VISIBLE);
-                mBackupContent.setVisibility(View.GONE);
-                break;
-
-        }
-    }
-
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
     public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
@@ -238,25 +424,33 @@ public class FingerprintAuthenticationDialogFragment extends DialogFragment
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
-    public void onAuthenticated() {
-        // Callback from FingerprintUiHelper. Let the activity know that authentication was
-        // successful.
-        mActivity.signInWhitFingerPrint(true /* withFingerprint */, mCryptoObject);
-        dismiss();
+    public void onMatched() {
+        fire(Event.MATCH);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
-    public void onError() {
-        goToBackup();
+    public void onAuthenticated() {
+        fire(Event.SUCCESS_SHOWN);
     }
 
     /**
-     * Enumeration to indicate which authentication method the user is trying to authenticate with.
+     * Called by the activity once the work started for a fingerprint match has finished,
+     * successfully or not. Work started by an earlier show of this dialog is ignored.
+     *
+     * @param showId the id passed to {@link MainActivity#signInWhitFingerPrint} for the work
      */
-    public enum Stage {
-        FINGERPRINT,
-        NEW_FINGERPRINT_ENROLLED,
-        PASSWORD
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    void onWorkDone(int showId) {
+        if (showId != mShowId) {
+            return;
+        }
+        fire(Event.WORK_DONE);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    public void onError() {
+        fire(Event.SENSOR_ERROR);
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.support.annotation.RequiresApi;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.Authenticator;
+
+/**
+ * {@link Authenticator} backed by the platform's {@link FingerprintManager}.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+final class FingerprintManagerAuthenticator
+        implements Authenticator<FingerprintManager.CryptoObject> {
+
+    private final FingerprintManager mFingerprintManager;
+
+    FingerprintManagerAuthenticator(FingerprintManager fingerprintManager) {
+        mFingerprintManager = fingerprintManager;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        // The line below prevents the false positive inspection from Android Studio
+        // noinspection ResourceType
+        return mFingerprintManager.isHardwareDetected()
+                && mFingerprintManager.hasEnrolledFingerprints();
+    }
+
+    @Override
+    public Cancellable authenticate(FingerprintManager.CryptoObject cryptoObject,
+            final Listener listener) {
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        // The line below prevents the false positive inspection from Android Studio
+        // noinspection ResourceType
+        mFingerprintManager.authenticate(cryptoObject, cancellationSignal, 0 /* flags */,
+                new FingerprintManager.AuthenticationCallback() {
+                    @Override
+                    public void onAuthenticationError(int errMsgId, CharSequence errString) {
+                        listener.onError(errMsgId, errString);
+                    }
+
+                    @Override
+                    public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
+                        listener.onHelp(helpMsgId, helpString);
+                    }
+
+                    @Override
+                    public void onAuthenticationFailed() {
+                        listener.onFailed();
+                    }
+
+                    @Override
+                    public void onAuthenticationSucceeded(
+                            FingerprintManager.AuthenticationResult result) {
+                        listener.onSucceeded();
+                    }
+                }, null);
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                cancellationSignal.cancel();
+            }
+        };
+    }
+}
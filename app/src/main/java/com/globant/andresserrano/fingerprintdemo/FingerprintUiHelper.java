@@ -18,131 +18,135 @@ package com.globant.andresserrano.fingerprintdemo;
 
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
-import android.os.CancellationSignal;
 import android.support.annotation.RequiresApi;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthController;
+import com.globant.andresserrano.fingerprintdemo.authflow.Authenticator;
+
 /**
  * Small helper class to manage text/icon around fingerprint authentication UI.
+ *
+ * <p>It only drives the views; listening, timing and late callbacks are handled by an
+ * {@link AuthController}, and what happens next is decided by the dialog's
+ * {@link com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine}.
  */
 @RequiresApi(api = Build.VERSION_CODES.M)
-public class FingerprintUiHelper extends FingerprintManager.AuthenticationCallback {
+public class FingerprintUiHelper implements AuthController.View, AuthController.Callback {
 
-    private static final long ERROR_TIMEOUT_MILLIS = 1600;
-    private static final long SUCCESS_DELAY_MILLIS = 1300;
+    private static final String ARMED_TO_MATCH_SECTION = "auth.armedToMatch";
+    private static final String SUCCESS_HOLD_SECTION = "auth.successHold";
 
-    private final FingerprintManager mFingerprintManager;
+    private final AuthController<FingerprintManager.CryptoObject> mController;
     private final ImageView mIcon;
     private final TextView mErrorTextView;
     private final Callback mCallback;
-    private CancellationSignal mCancellationSignal;
-
-    private boolean mSelfCancelled;
 
     /**
      * Constructor for {@link FingerprintUiHelper}.
+     *
+     * @param successDelayMillis how long the success state is shown after a match
+     * @param errorTimeoutMillis how long an error is shown before the hint comes back
      */
-    FingerprintUiHelper(FingerprintManager fingerprintManager,
-            ImageView icon, TextView errorTextView, Callback callback) {
-        mFingerprintManager = fingerprintManager;
+    FingerprintUiHelper(Authenticator<FingerprintManager.CryptoObject> authenticator,
+            ImageView icon, TextView errorTextView, Callback callback, long successDelayMillis,
+            long errorTimeoutMillis) {
         mIcon = icon;
         mErrorTextView = errorTextView;
         mCallback = callback;
+        mController = new AuthController<>(authenticator, new HandlerScheduler(), this, this,
+                successDelayMillis, errorTimeoutMillis);
     }
 
     public boolean isFingerprintAuthAvailable() {
-        // The line below prevents the false positive inspection from Android Studio
-        // noinspection ResourceType
-        return mFingerprintManager.isHardwareDetected()
-                && mFingerprintManager.hasEnrolledFingerprints();
+        return mController.isAvailable();
     }
 
     public void startListening(FingerprintManager.CryptoObject cryptoObject) {
-        if (!isFingerprintAuthAvailable()) {
-            return;
-        }
-        mCancellationSignal = new CancellationSignal();
-        mSelfCancelled = false;
-        // The line below prevents the false positive inspection from Android Studio
-        // noinspection ResourceType
-        mFingerprintManager
-                .authenticate(cryptoObject, mCancellationSignal, 0 /* flags */, this, null);
-        mIcon.setImageResource(R.drawable.ic_fp_40px);
+        Tracing.beginSection("FingerprintManager.authenticate");
+        mController.startListening(cryptoObject);
+        Tracing.endSection();
     }
 
     public void stopListening() {
-        if (mCancellationSignal != null) {
-            mSelfCancelled = true;
-            mCancellationSignal.cancel();
-            mCancellationSignal = null;
+        if (mController.isListening()) {
+            Tracing.endAsyncSection(ARMED_TO_MATCH_SECTION, Tracing.COOKIE_ARMED_TO_MATCH);
         }
+        mController.stopListening();
     }
 
     @Override
-    public void onAuthenticationError(int errMsgId, CharSequence errString) {
-        if (!mSelfCancelled) {
-            showError(errString);
-            mIcon.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mCallback.onError();
-                }
-            }, ERROR_TIMEOUT_MILLIS);
-        }
+    public void showListening() {
+        Tracing.beginAsyncSection(ARMED_TO_MATCH_SECTION, Tracing.COOKIE_ARMED_TO_MATCH);
+        AuthMetrics.getInstance().markSensorArmed();
+        mIcon.setImageResource(R.drawable.ic_fp_40px);
     }
 
     @Override
-    public void onAuthenticationHelp(int helpMsgId, CharSequence helpString) {
-        showError(helpString);
+    public void showHelp(CharSequence message) {
+        AuthMetrics.getInstance().count(AuthMetrics.Outcome.HELP);
+        showWarning(message);
     }
 
     @Override
-    public void onAuthenticationFailed() {
-        showError(mIcon.getResources().getString(
+    public void showFailed() {
+        AuthMetrics.getInstance().count(AuthMetrics.Outcome.FAILED);
+        showWarning(mIcon.getResources().getString(
                 R.string.fingerprint_not_recognized));
     }
 
     @Override
-    public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
-        mErrorTextView.removeCallbacks(mResetErrorTextRunnable);
+    public void showError(CharSequence message) {
+        Tracing.endAsyncSection(ARMED_TO_MATCH_SECTION, Tracing.COOKIE_ARMED_TO_MATCH);
+        AuthMetrics.getInstance().count(AuthMetrics.Outcome.ERROR);
+        showWarning(message);
+    }
+
+    private void showWarning(CharSequence message) {
+        mIcon.setImageResource(R.drawable.ic_fingerprint_error);
+        mErrorTextView.setText(message);
+        mErrorTextView.setTextColor(
+                mErrorTextView.getResources().getColor(R.color.warning_color, null));
+    }
+
+    @Override
+    public void showSuccess() {
+        AuthMetrics.getInstance().markMatch();
+        Tracing.endAsyncSection(ARMED_TO_MATCH_SECTION, Tracing.COOKIE_ARMED_TO_MATCH);
         mIcon.setImageResource(R.drawable.ic_fingerprint_success);
         mErrorTextView.setTextColor(
                 mErrorTextView.getResources().getColor(R.color.success_color, null));
         mErrorTextView.setText(
                 mErrorTextView.getResources().getString(R.string.fingerprint_success));
-        mIcon.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                mCallback.onAuthenticated();
-            }
-        }, SUCCESS_DELAY_MILLIS);
     }
 
-    private void showError(CharSequence error) {
-        mIcon.setImageResource(R.drawable.ic_fingerprint_error);
-        mErrorTextView.setText(error);
+    @Override
+    public void showHint() {
         mErrorTextView.setTextColor(
-                mErrorTextView.getResources().getColor(R.color.warning_color, null));
-        mErrorTextView.removeCallbacks(mResetErrorTextRunnable);
-        mErrorTextView.postDelayed(mResetErrorTextRunnable, ERROR_TIMEOUT_MILLIS);
+                mErrorTextView.getResources().getColor(R.color.hint_color, null));
+        mErrorTextView.setText(
+                mErrorTextView.getResources().getString(R.string.fingerprint_hint));
+        mIcon.setImageResource(R.drawable.ic_fp_40px);
     }
 
-    private Runnable mResetErrorTextRunnable = new Runnable() {
-        @Override
-        public void run() {
-            mErrorTextView.setTextColor(
-                    mErrorTextView.getResources().getColor(R.color.hint_color, null));
-            mErrorTextView.setText(
-                    mErrorTextView.getResources().getString(R.string.fingerprint_hint));
-            mIcon.setImageResource(R.drawable.ic_fp_40px);
-        }
-    };
+    @Override
+    public void onMatched() {
+        Tracing.beginAsyncSection(SUCCESS_HOLD_SECTION, Tracing.COOKIE_SUCCESS_HOLD);
+        mCallback.onMatched();
+    }
 
-    public interface Callback {
+    @Override
+    public void onAuthenticated() {
+        Tracing.endAsyncSection(SUCCESS_HOLD_SECTION, Tracing.COOKIE_SUCCESS_HOLD);
+        mCallback.onAuthenticated();
+    }
 
-        void onAuthenticated();
+    @Override
+    public void onError() {
+        mCallback.onError();
+    }
 
-        void onError();
+    public interface Callback extends AuthController.Callback {
     }
 }
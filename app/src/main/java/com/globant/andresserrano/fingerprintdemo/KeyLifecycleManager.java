@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.PurchaseBatch;
+
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+
+/**
+ * Finds keys which have been permanently invalidated, e.g. because a fingerprint was enrolled
+ * or the lock screen was reset, and replaces them in the background before a purchase runs into
+ * them.
+ *
+ * <p>{@link #check()} runs at startup and whenever the activity resumes. An invalidated key gets
+ * a replacement generated under a staging alias by {@link KeyProvisioner}; its ciphers are
+ * dropped so {@link CipherPool} reports the invalidation on the next click. Keys registered with
+ * {@code confirm} keep the old key until {@link #promote(String)}, because the user has to
+ * authenticate with their password and opt in first; all others are promoted right away. After
+ * a promotion the pool arms ciphers with the new key. Key store work only ever runs on this
+ * class's background thread; a key which can't be checked or replaced is logged and tried again
+ * on the next check.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class KeyLifecycleManager {
+
+    private static final String TAG = KeyLifecycleManager.class.getSimpleName();
+
+    private static final Executor EXECUTOR =
+            Executors.newSingleThreadExecutor(new BackgroundThreadFactory("key-lifecycle"));
+
+    private final KeyStoreSession mKeyStoreSession;
+    private final KeyProvisioner mKeyProvisioner;
+    private final CipherPool mCipherPool;
+    private final CipherSuite mCipherSuite;
+    /** Only touched on {@link #EXECUTOR}. */
+    private final Map<String, ManagedKey> mKeys = new LinkedHashMap<>();
+
+    KeyLifecycleManager(KeyStoreSession keyStoreSession, KeyProvisioner keyProvisioner,
+            CipherPool cipherPool, CipherSuite cipherSuite) {
+        mKeyStoreSession = keyStoreSession;
+        mKeyProvisioner = keyProvisioner;
+        mCipherPool = cipherPool;
+        mCipherSuite = cipherSuite;
+    }
+
+    /**
+     * Puts the key described by {@code spec} under management.
+     *
+     * @param pooled {@code true} if {@link CipherPool} arms ciphers with the key
+     * @param confirm {@code true} to stage a replacement but keep it until {@link #promote}
+     */
+    void register(final KeyGenParameterSpec spec, final boolean pooled, final boolean confirm) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mKeys.put(spec.getKeystoreAlias(), new ManagedKey(spec, pooled, confirm));
+            }
+        });
+    }
+
+    /**
+     * Looks for invalidated keys in the background and stages or swaps in their replacements.
+     */
+    void check() {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Tracing.beginSection("KeyLifecycleManager.check");
+                try {
+                    for (ManagedKey key : mKeys.values()) {
+                        try {
+                            checkKey(key);
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "Failed to check key " + key.mSpec.getKeystoreAlias(), e);
+                        }
+                    }
+                } finally {
+                    Tracing.endSection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the key named {@code name} in the background, using the replacement staged by
+     * {@link #check()} if there is one, and re-arms its ciphers. This is also how
+     * {@link AuthorizationSession#revoke()} replaces the session key, so no other thread
+     * replaces a managed key.
+     */
+    void promote(final String name) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ManagedKey key = mKeys.get(name);
+                if (key == null) {
+                    Log.w(TAG, "Can't promote unknown key " + name);
+                    return;
+                }
+                try {
+                    if (key.mStagingAlias == null) {
+                        key.mStagingAlias = mKeyProvisioner.stageKey(key.mSpec);
+                    }
+                    swap(key);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to promote key " + name, e);
+                }
+            }
+        });
+    }
+
+    private void checkKey(ManagedKey key) {
+        String name = key.mSpec.getKeystoreAlias();
+        if (key.mStagingAlias != null || !mKeyStoreSession.containsKey(name)
+                || !isInvalidated(key.mSpec)) {
+            return;
+        }
+        Log.d(TAG, "Key " + name + " was invalidated");
+        if (key.mPooled) {
+            // Armed ciphers of an invalidated key can't be authorized any more. Re-arming makes
+            // the pool notice the invalidation and report it on the next click.
+            mCipherPool.reset(name);
+        }
+        key.mStagingAlias = mKeyProvisioner.stageKey(key.mSpec);
+        if (!key.mConfirm) {
+            swap(key);
+        }
+    }
+
+    private void swap(ManagedKey key) {
+        mKeyProvisioner.promoteKey(key.mSpec, key.mStagingAlias);
+        key.mStagingAlias = null;
+        if (key.mPooled) {
+            mCipherPool.reset(key.mSpec.getKeystoreAlias());
+        }
+    }
+
+    /**
+     * Initializing a cipher or signature fails for a key which has been permanently invalidated.
+     * A time-bound key outside its validity window fails with
+     * {@link UserNotAuthenticatedException} instead, which means the key is still valid.
+     */
+    private boolean isInvalidated(KeyGenParameterSpec spec) {
+        String name = spec.getKeystoreAlias();
+        try {
+            if ((spec.getPurposes() & KeyProperties.PURPOSE_SIGN) != 0) {
+                Signature signature = Signature.getInstance(PurchaseBatch.SIGNATURE_ALGORITHM);
+                signature.initSign(mKeyStoreSession.getPrivateKey(name));
+            } else {
+                Cipher cipher = Cipher.getInstance(mCipherSuite.getTransformation());
+                cipher.init(Cipher.ENCRYPT_MODE, mKeyStoreSession.getSecretKey(name));
+            }
+            return false;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            mKeyStoreSession.invalidate(name);
+            return true;
+        } catch (UserNotAuthenticatedException e) {
+            return false;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to check key " + name, e);
+        }
+    }
+
+    private static final class ManagedKey {
+
+        final KeyGenParameterSpec mSpec;
+        final boolean mPooled;
+        final boolean mConfirm;
+        /** The replacement waiting to be promoted, if any. */
+        String mStagingAlias;
+
+        ManagedKey(KeyGenParameterSpec spec, boolean pooled, boolean confirm) {
+            mSpec = spec;
+            mPooled = pooled;
+            mConfirm = confirm;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.PurchaseBatch;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.KeyGenerator;
+
+/**
+ * Makes sure the keys used by the app exist in the Android Key Store without regenerating them
+ * on every launch.
+ *
+ * <p>A key is generated only if its alias is missing from the key store or if the
+ * {@link KeyGenParameterSpec} it was generated with has changed. The spec of each generated key
+ * is remembered in a private {@link SharedPreferences} file, and aliases known to be up to date
+ * are cached for the lifetime of the process, so warm launches and rotations skip the key store
+ * entirely.
+ *
+ * <p>A key which has to be replaced is generated under a staging alias, {@code <name>.<n>}, while
+ * the old one stays in use. Promoting it records the new alias and points the
+ * {@link KeyStoreSession} name at it in one step, then deletes the old entry.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class KeyProvisioner {
+
+    private static final String TAG = KeyProvisioner.class.getSimpleName();
+    private static final String PREFERENCES_NAME = "key_provisioning";
+    /** Prefix of the preferences holding the entry alias of a key which has been replaced. */
+    private static final String ALIAS_PREFIX = "alias:";
+
+    /** Aliases known to exist with the spec fingerprint they were generated with. */
+    private static final Map<String, String> sProvisionedAliases =
+            new ConcurrentHashMap<>();
+
+    private final SharedPreferences mPreferences;
+    private final KeyStoreSession mKeyStoreSession;
+    private final KeyGenerator mKeyGenerator;
+    private KeyPairGenerator mKeyPairGenerator;
+
+    KeyProvisioner(Context context, KeyStoreSession keyStoreSession, KeyGenerator keyGenerator) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mKeyStoreSession = keyStoreSession;
+        mKeyGenerator = keyGenerator;
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(ALIAS_PREFIX)) {
+                mKeyStoreSession.setAlias(entry.getKey().substring(ALIAS_PREFIX.length()),
+                        (String) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Builds the spec for a symmetric key which can only be used after the user has
+     * authenticated with fingerprint.
+     *
+     * @param keyName the name of the key to be created
+     * @param invalidatedByBiometricEnrollment if {@code false} is passed, the created key will not
+     *                                         be invalidated even if a new fingerprint is enrolled.
+     *                                         The default value is {@code true}. Note that this
+     *                                         parameter is only valid on Android N and later.
+     * @param cipherSuite the only block mode and padding the key may be used with
+     */
+    static KeyGenParameterSpec buildKeySpec(String keyName,
+            boolean invalidatedByBiometricEnrollment, CipherSuite cipherSuite) {
+        KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(keyName,
+                KeyProperties.PURPOSE_ENCRYPT |
+                        KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(cipherSuite.getBlockMode())
+                .setUserAuthenticationRequired(true)
+                .setEncryptionPaddings(cipherSuite.getPadding());
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            builder.setInvalidatedByBiometricEnrollment(invalidatedByBiometricEnrollment);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Builds the spec for the {@link AuthorizationSession} key, which may be used without further
+     * authentication for {@code validitySeconds} after the user has authenticated.
+     */
+    static KeyGenParameterSpec buildSessionKeySpec(String keyName, int validitySeconds,
+            CipherSuite cipherSuite) {
+        return new KeyGenParameterSpec.Builder(keyName,
+                KeyProperties.PURPOSE_ENCRYPT |
+                        KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(cipherSuite.getBlockMode())
+                .setUserAuthenticationRequired(true)
+                .setUserAuthenticationValidityDurationSeconds(validitySeconds)
+                .setEncryptionPaddings(cipherSuite.getPadding())
+                .build();
+    }
+
+    /**
+     * Builds the spec for an EC key pair whose private key signs {@link PurchaseBatch} roots and
+     * can only be used after the user has authenticated with fingerprint.
+     */
+    static KeyGenParameterSpec buildSigningKeySpec(String keyName) {
+        return new KeyGenParameterSpec.Builder(keyName, KeyProperties.PURPOSE_SIGN)
+                .setDigests(KeyProperties.DIGEST_SHA256)
+                .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                .setUserAuthenticationRequired(true)
+                .build();
+    }
+
+    /**
+     * Generates the key described by {@code spec} unless an identical one already exists.
+     *
+     * @return {@code true} if a key was generated, {@code false} if the existing one was kept
+     */
+    boolean ensureKey(KeyGenParameterSpec spec) {
+        String name = spec.getKeystoreAlias();
+        String fingerprint = fingerprintOf(spec);
+        if (fingerprint.equals(sProvisionedAliases.get(name))) {
+            return false;
+        }
+        if (fingerprint.equals(mPreferences.getString(name, null))
+                && mKeyStoreSession.containsKey(name)) {
+            sProvisionedAliases.put(name, fingerprint);
+            return false;
+        }
+        sProvisionedAliases.remove(name);
+        generateKey(withAlias(spec, mKeyStoreSession.resolveAlias(name)));
+        mPreferences.edit().putString(name, fingerprint).apply();
+        sProvisionedAliases.put(name, fingerprint);
+        return true;
+    }
+
+    /**
+     * Generates a replacement for the key described by {@code spec} under a new alias, leaving the
+     * current key in place. Blocks on key generation, so never call it on the main thread.
+     *
+     * @return the staging alias, to be passed to {@link #promoteKey}
+     */
+    String stageKey(KeyGenParameterSpec spec) {
+        String name = spec.getKeystoreAlias();
+        String current = mKeyStoreSession.resolveAlias(name);
+        int generation = current.equals(name)
+                ? 0 : Integer.parseInt(current.substring(name.length() + 1));
+        String staging = name + "." + (generation + 1);
+        generateKey(withAlias(spec, staging));
+        return staging;
+    }
+
+    /**
+     * Makes the key staged under {@code staging} the key named by {@code spec}, and deletes the
+     * key it replaces.
+     */
+    void promoteKey(KeyGenParameterSpec spec, String staging) {
+        String name = spec.getKeystoreAlias();
+        String fingerprint = fingerprintOf(spec);
+        String previous = mKeyStoreSession.resolveAlias(name);
+        // Committed before the swap so a restart never points the name at a deleted entry.
+        mPreferences.edit()
+                .putString(ALIAS_PREFIX + name, staging)
+                .putString(name, fingerprint)
+                .commit();
+        mKeyStoreSession.setAlias(name, staging);
+        sProvisionedAliases.put(name, fingerprint);
+        if (!previous.equals(staging)) {
+            mKeyStoreSession.deleteEntry(previous);
+        }
+        Log.d(TAG, "Replaced key " + name + " with " + staging);
+    }
+
+    private void generateKey(KeyGenParameterSpec spec) {
+        String alias = spec.getKeystoreAlias();
+        Tracing.beginSection("KeyProvisioner.generateKey");
+        try {
+            if ((spec.getPurposes() & KeyProperties.PURPOSE_SIGN) != 0) {
+                synchronized (this) {
+                    KeyPairGenerator keyPairGenerator = keyPairGenerator();
+                    keyPairGenerator.initialize(spec);
+                    keyPairGenerator.generateKeyPair();
+                }
+            } else {
+                synchronized (mKeyGenerator) {
+                    mKeyGenerator.init(spec);
+                    mKeyGenerator.generateKey();
+                }
+            }
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e);
+        } finally {
+            mKeyStoreSession.invalidateAlias(alias);
+            Tracing.endSection();
+        }
+        Log.d(TAG, "Generated key " + alias);
+    }
+
+    /**
+     * @return {@code spec} for the entry {@code alias}, which may differ from the name the spec
+     * was built for
+     */
+    private static KeyGenParameterSpec withAlias(KeyGenParameterSpec spec, String alias) {
+        if (alias.equals(spec.getKeystoreAlias())) {
+            return spec;
+        }
+        KeyGenParameterSpec.Builder builder =
+                new KeyGenParameterSpec.Builder(alias, spec.getPurposes())
+                        .setBlockModes(spec.getBlockModes())
+                        .setEncryptionPaddings(spec.getEncryptionPaddings())
+                        .setUserAuthenticationRequired(spec.isUserAuthenticationRequired());
+        if (spec.isDigestsSpecified()) {
+            builder.setDigests(spec.getDigests());
+        }
+        if (spec.getAlgorithmParameterSpec() != null) {
+            builder.setAlgorithmParameterSpec(spec.getAlgorithmParameterSpec());
+        }
+        if (spec.getKeySize() != -1) {
+            builder.setKeySize(spec.getKeySize());
+        }
+        if (spec.isUserAuthenticationRequired()
+                && spec.getUserAuthenticationValidityDurationSeconds() != -1) {
+            builder.setUserAuthenticationValidityDurationSeconds(
+                    spec.getUserAuthenticationValidityDurationSeconds());
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            builder.setInvalidatedByBiometricEnrollment(spec.isInvalidatedByBiometricEnrollment());
+        }
+        return builder.build();
+    }
+
+    private KeyPairGenerator keyPairGenerator() {
+        if (mKeyPairGenerator == null) {
+            try {
+                mKeyPairGenerator = KeyPairGenerator
+                        .getInstance(KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
+            } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+                throw new RuntimeException("Failed to get an instance of KeyPairGenerator", e);
+            }
+        }
+        return mKeyPairGenerator;
+    }
+
+    /**
+     * @return a string which changes whenever a property of {@code spec} that affects the
+     * generated key changes
+     */
+    static String fingerprintOf(KeyGenParameterSpec spec) {
+        StringBuilder sb = new StringBuilder()
+                .append(spec.getPurposes())
+                .append('|').append(Arrays.toString(spec.getBlockModes()))
+                .append('|').append(Arrays.toString(spec.getEncryptionPaddings()))
+                .append('|').append(spec.isDigestsSpecified()
+                        ? Arrays.toString(spec.getDigests()) : "")
+                .append('|').append(spec.getKeySize())
+                .append('|').append(spec.isUserAuthenticationRequired())
+                .append('|').append(spec.getUserAuthenticationValidityDurationSeconds());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            sb.append('|').append(spec.isInvalidatedByBiometricEnrollment());
+        }
+        return sb.toString();
+    }
+}
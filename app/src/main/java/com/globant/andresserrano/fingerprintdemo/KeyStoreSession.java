@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Process-wide handle on the Android Key Store.
+ *
+ * <p>The key store is loaded once per process and the key handle of each alias is
+ * cached after its first lookup, so initializing a cipher doesn't need a key store round trip.
+ * Callers must {@link #invalidate(String)} an alias when its key is reported as permanently
+ * invalidated. All methods are safe to call from any thread.
+ *
+ * <p>Keys are looked up by name. A name is usually the alias of its key store entry, but can be
+ * pointed at another entry with {@link #setAlias(String, String)}, which is how
+ * {@link KeyProvisioner} swaps in a replacement key without a window where the name is missing.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+final class KeyStoreSession {
+
+    private static volatile KeyStoreSession sInstance;
+
+    private final KeyStore mKeyStore;
+    /** Names which don't refer to the entry of the same alias. */
+    private final ConcurrentMap<String, String> mAliases = new ConcurrentHashMap<>();
+    /** Key handles by entry alias, so a swapped name never sees the old handle. */
+    private final ConcurrentMap<String, Key> mKeys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, PublicKey> mPublicKeys = new ConcurrentHashMap<>();
+
+    private KeyStoreSession(KeyStore keyStore) {
+        mKeyStore = keyStore;
+    }
+
+    /**
+     * Returns the session, loading the key store on the first call. The first call may block on
+     * the key store, so it should be made off the main thread.
+     */
+    static KeyStoreSession getInstance() {
+        KeyStoreSession session = sInstance;
+        if (session == null) {
+            synchronized (KeyStoreSession.class) {
+                session = sInstance;
+                if (session == null) {
+                    session = new KeyStoreSession(loadKeyStore());
+                    sInstance = session;
+                }
+            }
+        }
+        return session;
+    }
+
+    private static KeyStore loadKeyStore() {
+        Tracing.beginSection("KeyStore.load");
+        KeyStore keyStore;
+        try {
+            keyStore = KeyStore.getInstance("AndroidKeyStore");
+            keyStore.load(null);
+        } catch (KeyStoreException e) {
+            throw new RuntimeException("Failed to get an instance of KeyStore", e);
+        } catch (CertificateException | NoSuchAlgorithmException | IOException e) {
+            throw new RuntimeException("Failed to load KeyStore", e);
+        } finally {
+            Tracing.endSection();
+        }
+        return keyStore;
+    }
+
+    /**
+     * @return the loaded key store, for components which keep entries of their own such as an
+     * {@link com.globant.andresserrano.fingerprintdemo.authflow.AccountKeyRegistry}. Those
+     * entries must not share a name with the keys looked up here.
+     */
+    KeyStore getKeyStore() {
+        return mKeyStore;
+    }
+
+    /**
+     * Points {@code name} at the entry stored under {@code alias}. Lookups of the name use the
+     * new entry from the next call on.
+     */
+    void setAlias(String name, String alias) {
+        if (name.equals(alias)) {
+            mAliases.remove(name);
+        } else {
+            mAliases.put(name, alias);
+        }
+    }
+
+    /**
+     * @return the alias of the entry {@code name} refers to
+     */
+    String resolveAlias(String name) {
+        String alias = mAliases.get(name);
+        return alias != null ? alias : name;
+    }
+
+    /**
+     * @return the secret key named {@code name}, or {@code null} if there is none
+     */
+    @Nullable
+    SecretKey getSecretKey(String name) {
+        return (SecretKey) getKey(resolveAlias(name));
+    }
+
+    /**
+     * @return the private key of the key pair named {@code name}, or {@code null} if there is
+     * none
+     */
+    @Nullable
+    PrivateKey getPrivateKey(String name) {
+        return (PrivateKey) getKey(resolveAlias(name));
+    }
+
+    /**
+     * @return the public key of the key pair named {@code name}, or {@code null} if there is
+     * none. Using it doesn't require user authentication.
+     */
+    @Nullable
+    PublicKey getPublicKey(String name) {
+        String alias = resolveAlias(name);
+        PublicKey key = mPublicKeys.get(alias);
+        if (key != null) {
+            return key;
+        }
+        Certificate certificate;
+        try {
+            synchronized (mKeyStore) {
+                certificate = mKeyStore.getCertificate(alias);
+            }
+        } catch (KeyStoreException e) {
+            throw new RuntimeException("Failed to get certificate " + alias, e);
+        }
+        if (certificate == null) {
+            return null;
+        }
+        key = certificate.getPublicKey();
+        mPublicKeys.put(alias, key);
+        return key;
+    }
+
+    private Key getKey(String alias) {
+        Key key = mKeys.get(alias);
+        if (key != null) {
+            return key;
+        }
+        try {
+            synchronized (mKeyStore) {
+                key = mKeyStore.getKey(alias, null);
+            }
+        } catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException e) {
+            throw new RuntimeException("Failed to get key " + alias, e);
+        }
+        if (key != null) {
+            mKeys.put(alias, key);
+        }
+        return key;
+    }
+
+    /**
+     * @return {@code true} if the entry {@code name} refers to exists
+     */
+    boolean containsKey(String name) {
+        return containsAlias(resolveAlias(name));
+    }
+
+    /**
+     * @return {@code true} if there is an entry stored under {@code alias}
+     */
+    boolean containsAlias(String alias) {
+        if (mKeys.containsKey(alias)) {
+            return true;
+        }
+        try {
+            synchronized (mKeyStore) {
+                return mKeyStore.containsAlias(alias);
+            }
+        } catch (KeyStoreException e) {
+            throw new RuntimeException("Failed to look up key " + alias, e);
+        }
+    }
+
+    /**
+     * Deletes the entry stored under {@code alias}, if there is one.
+     */
+    void deleteEntry(String alias) {
+        invalidateAlias(alias);
+        try {
+            synchronized (mKeyStore) {
+                if (mKeyStore.containsAlias(alias)) {
+                    mKeyStore.deleteEntry(alias);
+                }
+            }
+        } catch (KeyStoreException e) {
+            throw new RuntimeException("Failed to delete key " + alias, e);
+        }
+    }
+
+    /**
+     * Forgets the cached handle of the key named {@code name}, so the next lookup goes to the
+     * key store.
+     */
+    void invalidate(String name) {
+        invalidateAlias(resolveAlias(name));
+    }
+
+    /**
+     * Forgets the cached handle of the entry stored under {@code alias}.
+     */
+    void invalidateAlias(String alias) {
+        mKeys.remove(alias);
+        mPublicKeys.remove(alias);
+    }
+}
@@ -19,14 +19,11 @@ package com.globant.andresserrano.fingerprintdemo;
 import android.app.Activity;
 import android.app.KeyguardManager;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
-import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyPermanentlyInvalidatedException;
-import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
 import android.util.Base64;
@@ -38,38 +35,85 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.globant.andresserrano.fingerprintdemo.authflow.AccountKeyRegistry;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuditLog;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine;
+import com.globant.andresserrano.fingerprintdemo.authflow.BatchVerifier;
+import com.globant.andresserrano.fingerprintdemo.authflow.CiphertextBuffer;
+import com.globant.andresserrano.fingerprintdemo.authflow.PurchaseBatch;
+
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyStore;
+import java.io.PrintWriter;
+import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
 
 /**
  * Main entry point for the sample, showing a backpack and "Purchase" button.
  */
-public class MainActivity extends Activity {
+public class MainActivity extends Activity implements CryptoBootstrap.Callback {
 
     private static final String TAG = MainActivity.class.getSimpleName();
 
     private static final String DIALOG_FRAGMENT_TAG = "myFragment";
-    private static final String SECRET_MESSAGE = "Very secret message";
-    private static final String KEY_NAME_NOT_INVALIDATED = "key_not_invalidated";
+    /** Show id for work which wasn't started by the fingerprint dialog. */
+    private static final int NO_DIALOG = 0;
+    private static final byte[] SECRET_MESSAGE = "Very secret message".getBytes();
+    static final String KEY_NAME_NOT_INVALIDATED = "key_not_invalidated";
     static final String DEFAULT_KEY_NAME = "default_key";
+    static final String SIGNING_KEY_NAME = "signing_key";
+    private static final String ENCRYPT_JOB_KEY = "encrypt";
+    private static final String SIGN_JOB_KEY = "sign";
+    private static final String EXPORT_JOB_KEY = "export";
+    private static final String PURCHASE_SECTION = "purchase";
+    private static final int CRYPTO_QUEUE_CAPACITY = 2;
+    /** One buffer on screen, one being encrypted into and one waiting to be shown. */
+    private static final int CIPHERTEXT_BUFFERS = 3;
+    private static final int CIPHERTEXT_CAPACITY = 64;
+    private static final long ENVELOPE_SESSION_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private static final CiphertextBuffer.Pool sCiphertextPool =
+            new CiphertextBuffer.Pool(CIPHERTEXT_BUFFERS, CIPHERTEXT_CAPACITY);
 
-    private KeyStore mKeyStore;
-    private KeyGenerator mKeyGenerator;
-    private SharedPreferences mSharedPreferences;
+    private KeyStoreSession mKeyStoreSession;
+    private KeyLifecycleManager mKeyLifecycleManager;
+    /** Nothing in this app has accounts yet, so its keys are only listed by {@link #dump}. */
+    private volatile AccountKeyRegistry mAccountKeyRegistry;
+    private volatile PurchaseVault mPurchaseVault;
+    /** The key the cipher of the purchase being authorized belongs to. */
+    private String mPurchaseKeyName = DEFAULT_KEY_NAME;
+    private CipherPool mCipherPool;
+    private EnvelopeSession mEnvelopeSession;
+    /** The cipher the dialog is authorizing to open {@link #mEnvelopeSession}, if any. */
+    private Cipher mEnvelopeUnlockCipher;
+    private AuthorizationSession mAuthorizationSession;
+    private Settings mSettings;
+    private CryptoBootstrap mCryptoBootstrap;
+    private CipherSuite mCipherSuite;
+    private final CryptoExecutor mCryptoExecutor = new CryptoExecutor(CRYPTO_QUEUE_CAPACITY);
+    private final PurchaseBatch mPurchaseBatch = new PurchaseBatch();
+    /** The buffer whose text {@code R.id.encrypted_message} shows, if any. */
+    private CiphertextBuffer mShownCiphertext;
+    /** Shown for every purchase, see {@link #showFingerprintDialog}. */
+    private FingerprintAuthenticationDialogFragment mFingerprintDialog;
+    private int mCartItemCount;
+    private Button mPurchaseButton;
+    private Button mPurchaseButtonNotInvalidated;
+    private Button mAddToCartButton;
+    private Button mCheckoutButton;
+    private boolean mHasEnrolledFingerprints;
 
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
@@ -77,46 +121,26 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        try {
-            mKeyStore = KeyStore.getInstance("AndroidKeyStore");
-        } catch (KeyStoreException e) {
-            throw new RuntimeException("Failed to get an instance of KeyStore", e);
-        }
-        try {
-            mKeyGenerator = KeyGenerator
-                    .getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
-        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-            throw new RuntimeException("Failed to get an instance of KeyGenerator", e);
-        }
-        Cipher defaultCipher;
-        Cipher cipherNotInvalidated;
-        try {
-            defaultCipher = Cipher.getInstance(KeyProperties.KEY_ALGORITHM_AES + "/"
-                    + KeyProperties.BLOCK_MODE_CBC + "/"
-                    + KeyProperties.ENCRYPTION_PADDING_PKCS7);
-            cipherNotInvalidated = Cipher.getInstance(KeyProperties.KEY_ALGORITHM_AES + "/"
-                    + KeyProperties.BLOCK_MODE_CBC + "/"
-                    + KeyProperties.ENCRYPTION_PADDING_PKCS7);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new RuntimeException("Failed to get an instance of Cipher", e);
-        }
-        mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        // Starts loading the preferences in the background; CryptoBootstrap waits for them.
+        mSettings = Settings.getInstance(this);
+        // Likewise starts the password backend, which the dialog's password fallback uses.
+        PasswordBackend.getInstance();
+        // Also resumes delivering purchases an earlier process couldn't.
+        PurchaseBackend.getInstance(this);
 
         KeyguardManager keyguardManager = getSystemService(KeyguardManager.class);
         FingerprintManager fingerprintManager = getSystemService(FingerprintManager.class);
-        Button purchaseButton = (Button) findViewById(R.id.purchase_button);
-        Button purchaseButtonNotInvalidated = (Button) findViewById(
+        mPurchaseButton = (Button) findViewById(R.id.purchase_button);
+        mPurchaseButtonNotInvalidated = (Button) findViewById(
                 R.id.purchase_button_not_invalidated);
+        mAddToCartButton = (Button) findViewById(R.id.add_to_cart_button);
+        mCheckoutButton = (Button) findViewById(R.id.checkout_button);
+        updateCheckoutButton();
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            purchaseButtonNotInvalidated.setEnabled(true);
-            purchaseButtonNotInvalidated.setOnClickListener(
-                    new PurchaseButtonClickListener(cipherNotInvalidated,
-                            KEY_NAME_NOT_INVALIDATED));
-        } else {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
             // Hide the purchase button which uses a non-invalidated key
             // if the app doesn't work on Android N preview
-            purchaseButtonNotInvalidated.setVisibility(View.GONE);
+            mPurchaseButtonNotInvalidated.setVisibility(View.GONE);
             findViewById(R.id.purchase_button_not_invalidated_description)
                     .setVisibility(View.GONE);
         }
@@ -127,8 +151,9 @@ public class MainActivity extends Activity {
                     "Secure lock screen hasn't set up.\n"
                             + "Go to 'Settings -> Security -> Fingerprint' to set up a fingerprint",
                     Toast.LENGTH_LONG).show();
-            purchaseButton.setEnabled(false);
-            purchaseButtonNotInvalidated.setEnabled(false);
+            mPurchaseButton.setEnabled(false);
+            mPurchaseButtonNotInvalidated.setEnabled(false);
+            mAddToCartButton.setEnabled(false);
             return;
         }
 
@@ -136,42 +161,234 @@ public class MainActivity extends Activity {
         // See http://developer.android.com/reference/android/Manifest.permission.html#USE_FINGERPRINT
         // The line below prevents the false positive inspection from Android Studio
         // noinspection ResourceType
-        if (!fingerprintManager.hasEnrolledFingerprints()) {
-            purchaseButton.setEnabled(false);
+        mHasEnrolledFingerprints = fingerprintManager.hasEnrolledFingerprints();
+        if (!mHasEnrolledFingerprints) {
             // This happens when no fingerprints are registered.
             Toast.makeText(this,
                     "Go to 'Settings -> Security -> Fingerprint' and register at least one fingerprint",
                     Toast.LENGTH_LONG).show();
+        }
+
+        // The key store, key generator, ciphers and keys are slow to create, so keep the buttons
+        // in a "preparing" state and build them off the main thread.
+        setPurchaseButtonsPreparing(true);
+        mCryptoBootstrap = new CryptoBootstrap(this, this, mSettings, mHasEnrolledFingerprints);
+        mCryptoBootstrap.start();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (mKeyLifecycleManager != null) {
+            // The user may have enrolled a fingerprint in the settings meanwhile.
+            mKeyLifecycleManager.check();
+        }
+        // Coming back is a good time to retry purchases the backend couldn't take before.
+        PurchaseBackend.getInstance(this).flushNow();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mEnvelopeSession != null) {
+            // Never keep the unwrapped data key around while the app is in the background.
+            mEnvelopeSession.close();
+        }
+        if (mPurchaseVault != null) {
+            // Same for purchases decrypted from the vault.
+            mPurchaseVault.wipeCache();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (mCryptoBootstrap != null) {
+            mCryptoBootstrap.cancel();
+        }
+        mCryptoExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    @Override
+    public void onCryptoReady(CryptoBootstrap.Result result) {
+        mCipherSuite = result.getSettings().getCipherSuite();
+        mKeyStoreSession = result.getKeyStoreSession();
+        mKeyLifecycleManager = result.getKeyLifecycleManager();
+        mAccountKeyRegistry = result.getAccountKeyRegistry();
+        mPurchaseVault = result.getPurchaseVault();
+        // Startup is when a fingerprint enrolled while the app wasn't running shows up.
+        mKeyLifecycleManager.check();
+        mCipherPool = result.getCipherPool();
+        mAuthorizationSession = result.getAuthorizationSession();
+        mEnvelopeSession = new EnvelopeSession(this, result.getKeyStoreSession(),
+                DEFAULT_KEY_NAME, mCipherSuite, ENVELOPE_SESSION_TIMEOUT_MILLIS);
+        setPurchaseButtonsPreparing(false);
+        // Startup is done, so build the dialog's views now rather than on the first click.
+        mFingerprintDialog = new FingerprintAuthenticationDialogFragment();
+        mFingerprintDialog.preinflate(this);
+
+        // Purchases are stored in the vault, so they can't be made without it.
+        boolean canPurchase = mPurchaseVault != null;
+        if (!canPurchase) {
+            Toast.makeText(this, R.string.purchases_unavailable, Toast.LENGTH_LONG).show();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            mPurchaseButtonNotInvalidated.setEnabled(canPurchase);
+            mPurchaseButtonNotInvalidated.setOnClickListener(
+                    new PurchaseButtonClickListener(KEY_NAME_NOT_INVALIDATED));
+        }
+        if (!mHasEnrolledFingerprints) {
+            mPurchaseButton.setEnabled(false);
+            return;
+        }
+        mPurchaseButton.setEnabled(canPurchase);
+        mPurchaseButton.setOnClickListener(
+                new PurchaseButtonClickListener(DEFAULT_KEY_NAME));
+        mAddToCartButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                mCartItemCount++;
+                mPurchaseBatch.add(("item-" + mCartItemCount + "@" + System.currentTimeMillis())
+                        .getBytes());
+                updateCheckoutButton();
+            }
+        });
+        mCheckoutButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                checkout();
+            }
+        });
+        updateCheckoutButton();
+    }
+
+    @Override
+    public void onCryptoFailed(RuntimeException e) {
+        // The purchase buttons stay disabled, the rest of the app keeps working.
+        Log.e(TAG, "Failed to prepare the keys", e);
+        setPurchaseButtonsPreparing(false);
+        Toast.makeText(this, R.string.purchases_unavailable, Toast.LENGTH_LONG).show();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+
+        if (id == R.id.action_settings) {
+            Intent intent = new Intent(this, SettingsActivity.class);
+            startActivity(intent);
+            return true;
+        }
+        if (id == R.id.action_export_history) {
+            exportHistory();
+            return true;
+        }
+        if (id == R.id.action_end_session) {
+            if (mAuthorizationSession != null) {
+                mAuthorizationSession.revoke();
+            }
+            Toast.makeText(this, R.string.session_ended, Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        List<String> arguments = args != null
+                ? Arrays.asList(args) : Collections.<String>emptyList();
+        AuthMetrics.getInstance().snapshot().dump(prefix, writer);
+        if (arguments.contains("reset-metrics")) {
+            AuthMetrics.getInstance().reset();
+        }
+        if (arguments.contains("tracing-on") || arguments.contains("tracing-off")) {
+            Tracing.setEnabled(arguments.contains("tracing-on"));
+        }
+        if (arguments.contains("cipher-benchmark")) {
+            if (BuildConfig.DEBUG) {
+                CipherSuiteBenchmark.run(writer);
+            } else {
+                writer.println(prefix + "cipher-benchmark is only available in debug builds");
+            }
+        }
+        PurchaseVault vault = mPurchaseVault;
+        if (arguments.contains("vault") && vault != null) {
+            writer.println(prefix + "Purchase vault: " + vault.size() + " records, "
+                    + vault.getDataLength() + " bytes, " + vault.getCachedCount() + " decrypted");
+            writer.println(prefix + "Purchase outbox: "
+                    + PurchaseBackend.getInstance(this).getPendingCount() + " undelivered");
+        }
+        EnvelopeSession envelopeSession = mEnvelopeSession;
+        if (arguments.contains("envelope") && envelopeSession != null) {
+            writer.println(prefix + "Envelope session: " + (envelopeSession.isOpen()
+                    ? "open, " + envelopeSession.getKeyStoreOperationsSaved() + " saved"
+                    : "closed") + ", " + envelopeSession.getTotalKeyStoreOperationsSaved()
+                    + " key store operations saved in total");
+        }
+        if (arguments.contains("audit")) {
+            AuditLog auditLog = AuditTrail.getInstance(this);
+            writer.println(prefix + "Audit log: " + auditLog.getWrittenCount() + " written, "
+                    + auditLog.getDroppedCount() + " dropped");
+        }
+        if (arguments.contains("accounts") || arguments.contains("delete-accounts")) {
+            boolean delete = arguments.contains("delete-accounts");
+            if (delete && !BuildConfig.DEBUG) {
+                writer.println(prefix + "delete-accounts is only available in debug builds");
+                delete = false;
+            }
+            dumpAccountKeys(prefix, writer, delete);
+        }
+    }
+
+    private void dumpAccountKeys(String prefix, PrintWriter writer, boolean delete) {
+        AccountKeyRegistry registry = mAccountKeyRegistry;
+        if (registry == null) {
+            writer.println(prefix + "Account keys: not ready");
             return;
         }
-        createKey(DEFAULT_KEY_NAME, true);
-        createKey(KEY_NAME_NOT_INVALIDATED, false);
-        purchaseButton.setEnabled(true);
-        purchaseButton.setOnClickListener(
-                new PurchaseButtonClickListener(defaultCipher, DEFAULT_KEY_NAME));
+        try {
+            List<String> aliases = registry.listAliases();
+            writer.println(prefix + "Account keys: " + aliases.size() + " ("
+                    + registry.getLoadedKeyCount() + " loaded)");
+            for (String alias : aliases) {
+                writer.println(prefix + "  " + alias);
+            }
+            if (delete) {
+                writer.println(prefix + "Deleted " + registry.deleteAll() + " account keys");
+            }
+        } catch (KeyStoreException e) {
+            writer.println(prefix + "Account keys: " + e);
+        }
+    }
+
+    private void updateCheckoutButton() {
+        int size = mPurchaseBatch.size();
+        mCheckoutButton.setText(getString(R.string.checkout, size));
+        mCheckoutButton.setEnabled(size > 0 && mKeyStoreSession != null
+                && mHasEnrolledFingerprints);
     }
 
     /**
-     * Initialize the {@link Cipher} instance with the created key in the
-     * {@link #createKey(String, boolean)} method.
-     *
-     * @param keyName the key name to init the cipher
-     * @return {@code true} if initialization is successful, {@code false} if the lock screen has
-     * been disabled or reset after the key was generated, or if a fingerprint got enrolled after
-     * the key was generated.
+     * Disables the purchase buttons and labels them as preparing, or restores their labels.
      */
-    @RequiresApi(api = Build.VERSION_CODES.M)
-    private boolean initCipher(Cipher cipher, String keyName) {
-        try {
-            mKeyStore.load(null);
-            SecretKey key = (SecretKey) mKeyStore.getKey(keyName, null);
-            cipher.init(Cipher.ENCRYPT_MODE, key);
-            return true;
-        } catch (KeyPermanentlyInvalidatedException e) {
-            return false;
-        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
-                | NoSuchAlgorithmException | InvalidKeyException e) {
-            throw new RuntimeException("Failed to init Cipher", e);
+    private void setPurchaseButtonsPreparing(boolean preparing) {
+        if (preparing) {
+            mPurchaseButton.setEnabled(false);
+            mPurchaseButton.setText(R.string.preparing);
+            mPurchaseButtonNotInvalidated.setEnabled(false);
+            mPurchaseButtonNotInvalidated.setText(R.string.preparing);
+        } else {
+            mPurchaseButton.setText(R.string.purchase);
+            mPurchaseButtonNotInvalidated.setText(R.string.purchase_not_invalidated);
         }
     }
 
@@ -180,128 +397,473 @@ public class MainActivity extends Activity {
      *
      * @param withFingerprint {@code true} if the purchase was made by using a fingerprint
      * @param cryptoObject the Crypto object
+     * @param showId the show of the dialog to report back to once the work is done
      */
     @RequiresApi(api = Build.VERSION_CODES.M)
     public void signInWhitFingerPrint(boolean withFingerprint,
-                                      @Nullable FingerprintManager.CryptoObject cryptoObject) {
+                                      @Nullable FingerprintManager.CryptoObject cryptoObject,
+                                      int showId) {
+        Cipher unlockCipher = mEnvelopeUnlockCipher;
+        if (unlockCipher != null) {
+            // The dialog was shown to export the purchase history, not for a purchase.
+            mEnvelopeUnlockCipher = null;
+            if (withFingerprint) {
+                runExport(unlockCipher, showId);
+            } else {
+                showConfirmation(getString(R.string.export_needs_fingerprint), showId);
+            }
+            return;
+        }
         if (withFingerprint) {
             // If the user has authenticated with fingerprint, verify that using cryptography and
             // then show the confirmation message.
             assert cryptoObject != null;
-            tryEncrypt(cryptoObject.getCipher());
+            AuthMetrics.getInstance().markCryptoStarted();
+            if (cryptoObject.getSignature() != null) {
+                // The checkout dialog authorized a signature over the whole cart.
+                signBatch(cryptoObject.getSignature(), showId);
+                return;
+            }
+            tryEncrypt(cryptoObject.getCipher(), showId);
+            // Purchases within the session window no longer need the dialog.
+            mAuthorizationSession.open();
         } else {
             // Authentication happened with backup password. Just show the confirmation message.
-            showConfirmation(null);
+            showConfirmation(null, showId);
         }
     }
 
     // Show confirmation, if fingerprint was used show crypto information.
-    private void showConfirmation(byte[] encrypted) {
+    private void showConfirmation(CharSequence encrypted, int showId) {
+        Tracing.endAsyncSection(PURCHASE_SECTION, Tracing.COOKIE_PURCHASE);
+        notifyWorkDone(showId);
         if (encrypted != null) {
             TextView v = (TextView) findViewById(R.id.encrypted_message);
             v.setVisibility(View.VISIBLE);
-            v.setText(Base64.encodeToString(encrypted, 0 /* flags */));
+            CiphertextBuffer previous = mShownCiphertext;
+            if (encrypted instanceof CiphertextBuffer) {
+                // The text view keeps referring to the buffer's characters instead of copying
+                // them, so the buffer stays out of the pool until something else is shown.
+                mShownCiphertext = (CiphertextBuffer) encrypted;
+                v.setText(mShownCiphertext.getChars(), 0, mShownCiphertext.length());
+            } else {
+                mShownCiphertext = null;
+                v.setText(encrypted);
+            }
+            if (previous != null && previous != mShownCiphertext) {
+                sCiphertextPool.release(previous);
+            }
         }
     }
 
     /**
-     * Tries to encrypt some data with the generated key in {@link #createKey} which is
-     * only works if the user has just authenticated via fingerprint.
+     * Tries to encrypt some data with the key provisioned by {@link CryptoBootstrap} which is
+     * only works if the user has just authenticated via fingerprint. The encryption runs on
+     * {@link #mCryptoExecutor} and the Base64 encoded result is shown once it is done.
      */
-    private void tryEncrypt(Cipher cipher) {
-        try {
-            byte[] encrypted = cipher.doFinal(SECRET_MESSAGE.getBytes());
-            showConfirmation(encrypted);
-        } catch (BadPaddingException | IllegalBlockSizeException e) {
-            Toast.makeText(this, "Failed to encrypt the data with the generated key. "
-                    + "Retry the purchase", Toast.LENGTH_LONG).show();
-            Log.e(TAG, "Failed to encrypt the data with the generated key." + e.getMessage());
+    private void tryEncrypt(final Cipher cipher, final int showId) {
+        final String keyName = mPurchaseKeyName;
+        final PurchaseVault vault = mPurchaseVault;
+        CryptoExecutor.Job<CiphertextBuffer> job = mCryptoExecutor.submit(ENCRYPT_JOB_KEY,
+                new Callable<CiphertextBuffer>() {
+                    @Override
+                    public CiphertextBuffer call() throws Exception {
+                        return store(vault, keyName, cipher, encryptSecretMessage(cipher));
+                    }
+                }, new CryptoExecutor.Callback<CiphertextBuffer>() {
+                    @Override
+                    public void onResult(CiphertextBuffer encrypted) {
+                        AuthMetrics.getInstance().markCiphertext();
+                        showConfirmation(encrypted, showId);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        AuthMetrics.getInstance().count(AuthMetrics.Outcome.ENCRYPT_FAILED);
+                        showEncryptionError(e, showId);
+                    }
+                });
+        if (job == null) {
+            // The user authorized this purchase, so don't drop it without telling them.
+            Log.w(TAG, "Dropped an encryption request, one is already pending");
+            notifyWorkDone(showId);
+            Toast.makeText(this, R.string.purchase_busy, Toast.LENGTH_LONG).show();
         }
     }
 
     /**
-     * Creates a symmetric key in the Android Key Store which can only be used after the user has
-     * authenticated with fingerprint.
-     *
-     * @param keyName the name of the key to be created
-     * @param invalidatedByBiometricEnrollment if {@code false} is passed, the created key will not
-     *                                         be invalidated even if a new fingerprint is enrolled.
-     *                                         The default value is {@code true}, so passing
-     *                                         {@code true} doesn't change the behavior
-     *                                         (the key will be invalidated if a new fingerprint is
-     *                                         enrolled.). Note that this parameter is only valid if
-     *                                         the app works on Android N developer preview.
-     *
+     * Encrypts the secret message with a cipher authorized by the {@link AuthorizationSession},
+     * without showing the fingerprint dialog. Falls back to the dialog if the key store reports
+     * that the session has expired.
+     */
+    private void tryEncryptInSession(final String keyName,
+            final PurchaseButtonClickListener listener) {
+        final PurchaseVault vault = mPurchaseVault;
+        mAuthorizationSession.submit(new AuthorizationSession.Operation<CiphertextBuffer>() {
+            @Override
+            public CiphertextBuffer run(Cipher cipher) throws Exception {
+                return store(vault, AuthorizationSession.KEY_NAME, cipher,
+                        encryptSecretMessage(cipher));
+            }
+        }, new CryptoExecutor.Callback<CiphertextBuffer>() {
+            @Override
+            public void onResult(CiphertextBuffer encrypted) {
+                AuthMetrics.getInstance().markCiphertext();
+                showConfirmation(encrypted, NO_DIALOG);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (e instanceof UserNotAuthenticatedException) {
+                    mCipherPool.acquire(keyName, listener);
+                } else {
+                    showEncryptionError(e, NO_DIALOG);
+                }
+            }
+        });
+    }
+
+    /**
+     * Shows the fingerprint dialog, reusing the instance and views of the previous purchase.
      */
     @RequiresApi(api = Build.VERSION_CODES.M)
-    public void createKey(String keyName, boolean invalidatedByBiometricEnrollment) {
-        try {
-            mKeyStore.load(null);
-            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(keyName,
-                    KeyProperties.PURPOSE_ENCRYPT |
-                            KeyProperties.PURPOSE_DECRYPT)
-                    .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
-                    .setUserAuthenticationRequired(true)
-                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7);
-
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                builder.setInvalidatedByBiometricEnrollment(invalidatedByBiometricEnrollment);
+    private void showFingerprintDialog(AuthStateMachine.State stage,
+            @Nullable FingerprintManager.CryptoObject cryptoObject) {
+        if (cryptoObject == null || cryptoObject.getCipher() != mEnvelopeUnlockCipher) {
+            // Only the dialog authorizing the unlock cipher leads to an export.
+            mEnvelopeUnlockCipher = null;
+        }
+        if (mFingerprintDialog == null || mFingerprintDialog.isAdded()) {
+            // The previous dialog is still being dismissed; this one inflates its own views.
+            mFingerprintDialog = new FingerprintAuthenticationDialogFragment();
+        }
+        mFingerprintDialog.setCryptoObject(cryptoObject);
+        mFingerprintDialog.setStage(stage);
+        mFingerprintDialog.show(getFragmentManager(), DIALOG_FRAGMENT_TAG);
+    }
+
+    /**
+     * Called by the fingerprint dialog when the user cancels it. Crypto work which hasn't started
+     * yet is dropped, and the result of work which has is not shown.
+     */
+    void onAuthenticationCancelled() {
+        mEnvelopeUnlockCipher = null;
+        mCryptoExecutor.cancelAll();
+    }
+
+    /**
+     * Lets a pipelined fingerprint dialog know that the work started at the match has finished,
+     * so it can be dismissed. The dialog ignores reports for a show other than {@code showId}.
+     */
+    private void notifyWorkDone(int showId) {
+        FingerprintAuthenticationDialogFragment fragment =
+                (FingerprintAuthenticationDialogFragment) getFragmentManager()
+                        .findFragmentByTag(DIALOG_FRAGMENT_TAG);
+        if (fragment != null && showId != NO_DIALOG) {
+            fragment.onWorkDone(showId);
+        }
+    }
+
+    /**
+     * Initializes a signature with {@link #SIGNING_KEY_NAME} off the main thread and asks for one
+     * fingerprint to authorize it for every purchase in the cart.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void checkout() {
+        if (getFragmentManager().findFragmentByTag(DIALOG_FRAGMENT_TAG) != null
+                || mPurchaseBatch.size() == 0) {
+            return;
+        }
+        AuthMetrics.getInstance().markClick();
+        Tracing.beginAsyncSection(PURCHASE_SECTION, Tracing.COOKIE_PURCHASE);
+        findViewById(R.id.encrypted_message).setVisibility(View.GONE);
+        mCryptoExecutor.submit(SIGN_JOB_KEY, new Callable<Signature>() {
+            @Override
+            public Signature call() throws Exception {
+                Signature signature = Signature.getInstance(PurchaseBatch.SIGNATURE_ALGORITHM);
+                signature.initSign(mKeyStoreSession.getPrivateKey(SIGNING_KEY_NAME));
+                return signature;
+            }
+        }, new CryptoExecutor.Callback<Signature>() {
+            @Override
+            public void onResult(Signature signature) {
+                if (isFinishing()) {
+                    return;
+                }
+                showFingerprintDialog(AuthStateMachine.State.FINGERPRINT,
+                        new FingerprintManager.CryptoObject(signature));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (!(e instanceof KeyPermanentlyInvalidatedException)) {
+                    throw new RuntimeException(e);
+                }
+                // A new fingerprint was enrolled since the last check. Replace the signing key
+                // in the background; the backend has to be sent the new public key before the
+                // next checkout.
+                mKeyLifecycleManager.check();
+                Toast.makeText(MainActivity.this, R.string.signing_key_reset,
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Exports the purchase history with {@link PurchaseHistoryExport}. Unless the envelope
+     * session is still open, asks for one fingerprint to open it first.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void exportHistory() {
+        if (getFragmentManager().findFragmentByTag(DIALOG_FRAGMENT_TAG) != null
+                || mEnvelopeSession == null) {
+            return;
+        }
+        if (mPurchaseVault == null) {
+            Toast.makeText(this, R.string.history_unavailable, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (mEnvelopeSession.isOpen()) {
+            runExport(null, NO_DIALOG);
+            return;
+        }
+        mCryptoExecutor.submit(EXPORT_JOB_KEY, new Callable<Cipher>() {
+            @Override
+            public Cipher call() throws Exception {
+                return mEnvelopeSession.newUnlockCipher();
+            }
+        }, new CryptoExecutor.Callback<Cipher>() {
+            @Override
+            public void onResult(Cipher cipher) {
+                if (isFinishing()) {
+                    return;
+                }
+                mEnvelopeUnlockCipher = cipher;
+                showFingerprintDialog(AuthStateMachine.State.FINGERPRINT,
+                        new FingerprintManager.CryptoObject(cipher));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                if (!(e instanceof KeyPermanentlyInvalidatedException)) {
+                    throw new RuntimeException(e);
+                }
+                // The wrapped data key is gone with the old key; replace the key and start over.
+                mKeyLifecycleManager.check();
+                Toast.makeText(MainActivity.this, R.string.export_key_reset,
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Opens the envelope session with {@code authorizedCipher}, unless it is {@code null}
+     * because the session is open already, and writes the export in the background.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void runExport(@Nullable final Cipher authorizedCipher, final int showId) {
+        final PurchaseVault vault = mPurchaseVault;
+        final EnvelopeSession session = mEnvelopeSession;
+        final File file = new File(getFilesDir(), PurchaseHistoryExport.FILE_NAME);
+        CryptoExecutor.Job<String> job = mCryptoExecutor.submit(EXPORT_JOB_KEY,
+                new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        if (authorizedCipher != null && !session.open(authorizedCipher)) {
+                            return null;
+                        }
+                        int count = PurchaseHistoryExport.write(vault, session, file);
+                        return getString(R.string.history_exported, count,
+                                session.getKeyStoreOperationsSaved());
+                    }
+                }, new CryptoExecutor.Callback<String>() {
+                    @Override
+                    public void onResult(String summary) {
+                        if (summary == null) {
+                            // The old data key is gone, the next fingerprint wraps a new one.
+                            notifyWorkDone(showId);
+                            Toast.makeText(MainActivity.this, R.string.export_key_renewed,
+                                    Toast.LENGTH_LONG).show();
+                            return;
+                        }
+                        showConfirmation(summary, showId);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        notifyWorkDone(showId);
+                        Log.e(TAG, "Failed to export the purchase history", e);
+                        Toast.makeText(MainActivity.this, R.string.export_failed,
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+        if (job == null) {
+            notifyWorkDone(showId);
+        }
+    }
+
+    /**
+     * Signs the Merkle root of the cart with the fingerprint-authorized {@code signature} and
+     * checks the result the way the backend would.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void signBatch(final Signature signature, final int showId) {
+        mCryptoExecutor.submit(SIGN_JOB_KEY, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                PurchaseBatch.SignedBatch batch = mPurchaseBatch.sign(signature);
+                boolean verified = new BatchVerifier(
+                        mKeyStoreSession.getPublicKey(SIGNING_KEY_NAME)).verify(batch);
+                return getString(R.string.batch_signed, batch.getEntries().size(),
+                        Base64.encodeToString(batch.getRoot(), Base64.NO_WRAP),
+                        String.valueOf(verified));
+            }
+        }, new CryptoExecutor.Callback<String>() {
+            @Override
+            public void onResult(String summary) {
+                AuthMetrics.getInstance().markCiphertext();
+                updateCheckoutButton();
+                showConfirmation(summary, showId);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                notifyWorkDone(showId);
+                if (!(e instanceof SignatureException)) {
+                    throw new RuntimeException(e);
+                }
+                Toast.makeText(MainActivity.this, "Failed to sign the cart. Retry the checkout",
+                        Toast.LENGTH_LONG).show();
+                Log.e(TAG, "Failed to sign the cart." + e.getMessage());
             }
-            mKeyGenerator.init(builder.build());
-            mKeyGenerator.generateKey();
-        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException
-                | CertificateException | IOException e) {
+        });
+    }
+
+    /**
+     * Encrypts the secret message into a pooled buffer, which goes back to the pool once
+     * {@link #showConfirmation} replaces it. Allocates nothing once the pool is warm.
+     */
+    private static CiphertextBuffer encryptSecretMessage(Cipher cipher)
+            throws GeneralSecurityException {
+        CiphertextBuffer buffer = sCiphertextPool.acquire();
+        Tracing.beginSection("CiphertextBuffer.encrypt");
+        try {
+            return buffer.encrypt(cipher, SECRET_MESSAGE, 0, SECRET_MESSAGE.length);
+        } catch (GeneralSecurityException | RuntimeException e) {
+            sCiphertextPool.release(buffer);
+            throw e;
+        } finally {
+            Tracing.endSection();
+        }
+    }
+
+    /**
+     * Appends the ciphertext of a purchase to the vault and queues the record for the backend
+     * under a new idempotency key. The purchase has been authorized either way, so failing to
+     * store it is only logged.
+     */
+    private CiphertextBuffer store(PurchaseVault vault, String keyName, Cipher cipher,
+            CiphertextBuffer encrypted) {
+        Tracing.beginSection("storePurchase");
+        try {
+            int index = vault.append(keyName, mCipherSuite, cipher, encrypted.getCiphertext(), 0,
+                    encrypted.getCiphertextLength());
+            PurchaseBackend.getInstance(this).submit(UUID.randomUUID().toString(),
+                    vault.getRecord(index));
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store the purchase", e);
+        } finally {
+            Tracing.endSection();
+        }
+        return encrypted;
+    }
+
+    private void showEncryptionError(Exception e, int showId) {
+        notifyWorkDone(showId);
+        if (!(e instanceof BadPaddingException || e instanceof IllegalBlockSizeException)) {
             throw new RuntimeException(e);
         }
+        Toast.makeText(this, "Failed to encrypt the data with the generated key. "
+                + "Retry the purchase", Toast.LENGTH_LONG).show();
+        Log.e(TAG, "Failed to encrypt the data with the generated key." + e.getMessage());
+    }
+
+    /**
+     * Swaps in a replacement for the invalidated key {@code keyName} once the user has agreed to
+     * keep using fingerprint. The key is generated and swapped in the background.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    public void replaceKey(String keyName) {
+        mKeyLifecycleManager.promote(keyName);
     }
 
-    private class PurchaseButtonClickListener implements View.OnClickListener {
+    private class PurchaseButtonClickListener implements View.OnClickListener,
+            CipherPool.Callback {
 
-        Cipher mCipher;
         String mKeyName;
 
-        PurchaseButtonClickListener(Cipher cipher, String keyName) {
-            mCipher = cipher;
+        PurchaseButtonClickListener(String keyName) {
             mKeyName = keyName;
         }
 
         @RequiresApi(api = Build.VERSION_CODES.M)
         @Override
         public void onClick(View view) {
+            if (getFragmentManager().findFragmentByTag(DIALOG_FRAGMENT_TAG) != null) {
+                // Ignore double-taps while the dialog is already being shown.
+                return;
+            }
+            AuthMetrics.getInstance().markClick();
+            Tracing.beginAsyncSection(PURCHASE_SECTION, Tracing.COOKIE_PURCHASE);
             findViewById(R.id.encrypted_message).setVisibility(View.GONE);
 
-            // Set up the crypto object for later. The object will be authenticated by use
-            // of the fingerprint.
-            if (initCipher(mCipher, mKeyName)) {
-
-                // Show the fingerprint dialog. The user has the option to use the fingerprint with
-                // crypto, or you can fall back to using a server-side verified password.
-                FingerprintAuthenticationDialogFragment fragment
-                        = new FingerprintAuthenticationDialogFragment();
-                fragment.setCryptoObject(new FingerprintManager.CryptoObject(mCipher));
-                boolean useFingerprintPreference = mSharedPreferences
-                        .getBoolean(getString(R.string.use_fingerprint_to_authenticate_key),
-                                true);
-                if (useFingerprintPreference) {
-                    fragment.setStage(
-                            FingerprintAuthenticationDialogFragment.Stage.FINGERPRINT);
-                } else {
-                    fragment.setStage(
-                            FingerprintAuthenticationDialogFragment.Stage.PASSWORD);
-                }
-                fragment.show(getFragmentManager(), DIALOG_FRAGMENT_TAG);
+            if (mAuthorizationSession.isOpen()) {
+                // The user authenticated recently, so purchase without asking again.
+                tryEncryptInSession(mKeyName, this);
+                return;
+            }
+
+            // Take a crypto object which has been set up ahead of time. The object will be
+            // authenticated by use of the fingerprint.
+            mCipherPool.acquire(mKeyName, this);
+        }
+
+        @Override
+        public void onCipherReady(FingerprintManager.CryptoObject cryptoObject) {
+            if (isFinishing()) {
+                return;
+            }
+            mPurchaseKeyName = mKeyName;
+            // Show the fingerprint dialog. The user has the option to use the fingerprint with
+            // crypto, or you can fall back to using a server-side verified password.
+            if (mSettings.get().isFingerprintEnabled()) {
+                showFingerprintDialog(AuthStateMachine.State.FINGERPRINT, cryptoObject);
             } else {
-                // This happens if the lock screen has been disabled or or a fingerprint got
-                // enrolled. Thus show the dialog to authenticate with their password first
-                // and ask the user if they want to authenticate with fingerprints in the
-                // future
-                FingerprintAuthenticationDialogFragment fragment
-                        = new FingerprintAuthenticationDialogFragment();
-                fragment.setCryptoObject(new FingerprintManager.CryptoObject(mCipher));
-                fragment.setStage(
-                        FingerprintAuthenticationDialogFragment.Stage.NEW_FINGERPRINT_ENROLLED);
-                fragment.show(getFragmentManager(), DIALOG_FRAGMENT_TAG);
+                showFingerprintDialog(AuthStateMachine.State.PASSWORD, cryptoObject);
+            }
+        }
+
+        @Override
+        public void onKeyInvalidated() {
+            if (isFinishing()) {
+                return;
+            }
+            // This happens if the lock screen has been disabled or or a fingerprint got
+            // enrolled. Thus show the dialog to authenticate with their password first
+            // and ask the user if they want to authenticate with fingerprints in the
+            // future
+            showFingerprintDialog(AuthStateMachine.State.NEW_FINGERPRINT_ENROLLED, null);
+        }
+
+        @Override
+        public void onError(Exception e) {
+            // The key store could not initialize the purchase cipher; the next click retries.
+            Tracing.endAsyncSection(PURCHASE_SECTION, Tracing.COOKIE_PURCHASE);
+            if (isFinishing()) {
+                return;
             }
+            Toast.makeText(MainActivity.this, R.string.purchase_cipher_failed,
+                    Toast.LENGTH_LONG).show();
         }
     }
 }
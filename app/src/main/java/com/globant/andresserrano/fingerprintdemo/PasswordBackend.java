@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.Authenticator;
+import com.globant.andresserrano.fingerprintdemo.authflow.PasswordVerifier;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The process-wide {@link PasswordVerifier} the fingerprint dialog's password fallback uses.
+ *
+ * <p>The verifier is created in the background by {@link #getInstance()} for the URL from
+ * {@link Endpoints}, which in debug builds starts a stand-in server. Requests made before it is
+ * ready wait for it off the main thread. Results, including a failure to start, are delivered
+ * on the main thread.
+ */
+final class PasswordBackend {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    private static PasswordBackend sInstance;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor =
+            Executors.newCachedThreadPool(new BackgroundThreadFactory("password-verifier"));
+    private final Executor mMainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            mMainHandler.post(runnable);
+        }
+    };
+    private Future<PasswordVerifier> mVerifier;
+
+    private PasswordBackend() {
+        mVerifier = startVerifier();
+    }
+
+    /**
+     * Returns the backend, starting it on the first call. Never blocks.
+     */
+    static synchronized PasswordBackend getInstance() {
+        if (sInstance == null) {
+            sInstance = new PasswordBackend();
+        }
+        return sInstance;
+    }
+
+    /**
+     * See {@link PasswordVerifier#verify}. Never blocks; if the backend failed to start, the
+     * callback gets the error and the next request starts it again.
+     */
+    Authenticator.Cancellable verify(String password, PasswordVerifier.Callback callback) {
+        Request request = new Request(getVerifier(), password, callback);
+        if (request.mStartup.isDone()) {
+            request.run();
+        } else {
+            mExecutor.execute(request);
+        }
+        return request;
+    }
+
+    private synchronized Future<PasswordVerifier> getVerifier() {
+        return mVerifier;
+    }
+
+    private synchronized void restartVerifier(Future<PasswordVerifier> failed) {
+        if (mVerifier == failed) {
+            mVerifier = startVerifier();
+        }
+    }
+
+    private Future<PasswordVerifier> startVerifier() {
+        return mExecutor.submit(new Callable<PasswordVerifier>() {
+            @Override
+            public PasswordVerifier call() throws IOException {
+                return new PasswordVerifier(Endpoints.password(), mExecutor, mMainExecutor,
+                        CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+            }
+        });
+    }
+
+    /**
+     * Passes a password on to the verifier once it is ready.
+     */
+    private final class Request implements Runnable, Authenticator.Cancellable {
+
+        private final Future<PasswordVerifier> mStartup;
+        private final String mPassword;
+        private final PasswordVerifier.Callback mCallback;
+        private Authenticator.Cancellable mCall;
+        private boolean mCancelled;
+
+        Request(Future<PasswordVerifier> startup, String password,
+                PasswordVerifier.Callback callback) {
+            mStartup = startup;
+            mPassword = password;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            PasswordVerifier verifier;
+            try {
+                verifier = mStartup.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail(new InterruptedIOException("Interrupted while starting the password backend"));
+                return;
+            } catch (ExecutionException e) {
+                restartVerifier(mStartup);
+                fail(new IOException("Failed to start the password backend", e.getCause()));
+                return;
+            }
+            synchronized (this) {
+                if (!mCancelled) {
+                    mCall = verifier.verify(mPassword, mCallback);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void cancel() {
+            mCancelled = true;
+            if (mCall != null) {
+                mCall.cancel();
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private void fail(final IOException e) {
+            mMainExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isCancelled()) {
+                        mCallback.onError(e);
+                    }
+                }
+            });
+        }
+    }
+}
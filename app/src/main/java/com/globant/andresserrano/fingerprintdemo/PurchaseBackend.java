@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.PurchaseOutbox;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * The process-wide {@link PurchaseOutbox} which delivers authorized purchases to the backend.
+ *
+ * <p>Purchases are delivered to the URL from {@link Endpoints}, which in debug builds starts a
+ * stand-in server. The outbox is opened in the background by {@link #getInstance(Context)},
+ * which also resumes delivering purchases left over from an earlier process.
+ */
+final class PurchaseBackend {
+
+    private static final String TAG = PurchaseBackend.class.getSimpleName();
+    private static final String OUTBOX_NAME = "purchases.outbox";
+    private static final int MAX_BATCH_PURCHASES = 50;
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    private static PurchaseBackend sInstance;
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(
+            new BackgroundThreadFactory("purchase-outbox"));
+    private final Future<PurchaseOutbox> mOutbox;
+
+    private PurchaseBackend(final Context context) {
+        mOutbox = mExecutor.submit(new Callable<PurchaseOutbox>() {
+            @Override
+            public PurchaseOutbox call() throws IOException {
+                return new PurchaseOutbox(context.getFilesDir(), OUTBOX_NAME,
+                        Endpoints.purchases(), mExecutor, MAX_BATCH_PURCHASES,
+                        MIN_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS, new PurchaseOutbox.Listener() {
+                            @Override
+                            public void onDelivered(List<String> idempotencyKeys) {
+                                Log.d(TAG, "Delivered " + idempotencyKeys.size() + " purchases");
+                            }
+
+                            @Override
+                            public void onDeliveryFailed(IOException e, long retryInMillis) {
+                                Log.w(TAG, "Delivery failed, retrying in " + retryInMillis
+                                        + " ms: " + e.getMessage());
+                            }
+                        });
+            }
+        });
+    }
+
+    /**
+     * Returns the backend, opening the outbox on the first call. Never blocks.
+     */
+    static synchronized PurchaseBackend getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PurchaseBackend(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * See {@link PurchaseOutbox#enqueue}. Blocks until the purchase is on storage, so call it
+     * off the main thread.
+     */
+    boolean submit(String idempotencyKey, byte[] purchase) throws IOException {
+        return getOutbox().enqueue(idempotencyKey, purchase);
+    }
+
+    /**
+     * Retries undelivered purchases now rather than when their backoff ends. Never blocks.
+     */
+    void flushNow() {
+        if (!mOutbox.isDone()) {
+            return;
+        }
+        try {
+            getOutbox().flushNow();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to flush the purchase outbox: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of purchases not yet delivered, or -1 while the outbox is opening or if
+     * it failed to open
+     */
+    int getPendingCount() {
+        if (!mOutbox.isDone()) {
+            return -1;
+        }
+        try {
+            return getOutbox().getPendingCount();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @throws IOException if the outbox failed to open, e.g. because no backend is configured
+     */
+    private PurchaseOutbox getOutbox() throws IOException {
+        try {
+            return mOutbox.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening the purchase outbox");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to open the purchase outbox", e.getCause());
+        }
+    }
+}
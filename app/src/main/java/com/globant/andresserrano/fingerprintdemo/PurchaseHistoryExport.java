@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Writes every record of the {@link PurchaseVault} to one file, each sealed with the data key of
+ * an open {@link EnvelopeSession}. However many purchases there are, the export costs a single
+ * fingerprint and a single key store operation, the unwrap of the data key.
+ *
+ * <p>The file is {@code count (4) | (length (4) | sealed record)*}. A sealed record decrypts with
+ * {@link EnvelopeSession#decrypt(byte[])} to the record as the vault stores it.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+final class PurchaseHistoryExport {
+
+    static final String FILE_NAME = "purchases.export";
+
+    private PurchaseHistoryExport() {
+    }
+
+    /**
+     * Replaces {@code file} with the sealed records of {@code vault}.
+     *
+     * @return the number of records written
+     * @throws IllegalStateException if the session is not open
+     */
+    static int write(PurchaseVault vault, EnvelopeSession session, File file)
+            throws IOException, GeneralSecurityException {
+        Tracing.beginSection("PurchaseHistoryExport.write");
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            int count = vault.size();
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] sealed = session.encrypt(vault.getRecord(i));
+                    out.writeInt(sealed.length);
+                    out.write(sealed);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Failed to replace " + file);
+            }
+            return count;
+        } finally {
+            temporary.delete();
+            Tracing.endSection();
+        }
+    }
+}
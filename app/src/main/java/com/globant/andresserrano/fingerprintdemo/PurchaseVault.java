@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyPermanentlyInvalidatedException;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.DecryptedEntryCache;
+import com.globant.andresserrano.fingerprintdemo.authflow.MappedRecordStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+
+/**
+ * Keeps the ciphertext of every purchase, along with what it takes to decrypt it, in a
+ * {@link MappedRecordStore} in the app's files.
+ *
+ * <p>A record is {@code suite id (1) | key name length (1) | key name | IV length (1) | IV |
+ * ciphertext}. Reading one back takes a cipher from {@link #newDecryptCipher(int)} which the user
+ * has authorized with fingerprint, unless the key is within an {@link AuthorizationSession}.
+ * Decrypted records are kept in a {@link DecryptedEntryCache} for a minute; owners must
+ * {@link #wipeCache()} when they are paused. Records of a key which has since been replaced can
+ * no longer be decrypted.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+class PurchaseVault {
+
+    private static final String FILE_NAME = "purchases.vault";
+    private static final String INDEX_FILE_NAME = "purchases.vault.idx";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CACHE_ENTRIES = 32;
+    private static final long CACHE_BYTES = 16 * 1024;
+    private static final long CACHE_TTL_MILLIS = 60 * 1000;
+
+    private final MappedRecordStore mStore;
+    private final KeyStoreSession mKeyStoreSession;
+    private final DecryptedEntryCache mCache = new DecryptedEntryCache(CACHE_ENTRIES,
+            CACHE_BYTES, CACHE_TTL_MILLIS, new HandlerScheduler());
+    /** The record being appended, reused so a purchase only allocates when it grows. */
+    private byte[] mRecord = new byte[128];
+
+    /**
+     * Opens the vault, creating it on first use. Maps the files, so call it off the main thread.
+     */
+    PurchaseVault(Context context, KeyStoreSession keyStoreSession) throws IOException {
+        mStore = new MappedRecordStore(new File(context.getFilesDir(), FILE_NAME),
+                new File(context.getFilesDir(), INDEX_FILE_NAME));
+        mKeyStoreSession = keyStoreSession;
+    }
+
+    /**
+     * Stores the ciphertext a purchase produced with the key named {@code keyName}.
+     *
+     * @param cipher the cipher which encrypted it, for its IV
+     * @return the index of the record
+     */
+    synchronized int append(String keyName, CipherSuite cipherSuite, Cipher cipher,
+            byte[] ciphertext, int offset, int length) throws IOException {
+        byte[] name = keyName.getBytes(UTF_8);
+        byte[] iv = cipher.getIV();
+        int size = 3 + name.length + iv.length + length;
+        if (mRecord.length < size) {
+            mRecord = new byte[Math.max(size, mRecord.length * 2)];
+        }
+        int position = 0;
+        mRecord[position++] = (byte) cipherSuite.getId();
+        mRecord[position++] = (byte) name.length;
+        System.arraycopy(name, 0, mRecord, position, name.length);
+        position += name.length;
+        mRecord[position++] = (byte) iv.length;
+        System.arraycopy(iv, 0, mRecord, position, iv.length);
+        position += iv.length;
+        System.arraycopy(ciphertext, offset, mRecord, position, length);
+        return mStore.append(mRecord, 0, size);
+    }
+
+    int size() {
+        return mStore.size();
+    }
+
+    /**
+     * @return record {@code index} as stored, still encrypted
+     */
+    byte[] getRecord(int index) {
+        return mStore.read(index);
+    }
+
+    /**
+     * Creates the cipher which decrypts record {@code index}, to be authorized by the user.
+     *
+     * @throws KeyPermanentlyInvalidatedException if the key can no longer be used
+     * @throws KeyStoreException if the key of the record no longer exists
+     */
+    Cipher newDecryptCipher(int index) throws KeyPermanentlyInvalidatedException,
+            KeyStoreException {
+        Record record = new Record(mStore.read(index));
+        SecretKey key = mKeyStoreSession.getSecretKey(record.mKeyName);
+        if (key == null) {
+            throw new KeyStoreException("Key " + record.mKeyName + " no longer exists");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(record.mCipherSuite.getTransformation());
+            cipher.init(Cipher.DECRYPT_MODE, key, record.mCipherSuite.getParameterSpec(
+                    record.mIv));
+            return cipher;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            mKeyStoreSession.invalidate(record.mKeyName);
+            throw e;
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException
+                | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException("Failed to init Cipher", e);
+        }
+    }
+
+    /**
+     * @return the plaintext of record {@code index} if it was decrypted recently, so no cipher
+     * needs to be authorized
+     */
+    @Nullable
+    byte[] getCached(int index) {
+        return mCache.get(index);
+    }
+
+    /**
+     * Decrypts record {@code index} with a cipher from {@link #newDecryptCipher(int)} which the
+     * user has authorized, and caches the plaintext.
+     */
+    byte[] decrypt(int index, Cipher authorizedCipher) throws GeneralSecurityException {
+        byte[] plaintext = mCache.get(index);
+        if (plaintext != null) {
+            return plaintext;
+        }
+        Record record = new Record(mStore.read(index));
+        plaintext = authorizedCipher.doFinal(record.mBytes, record.mCiphertextOffset,
+                record.mBytes.length - record.mCiphertextOffset);
+        mCache.put(index, plaintext);
+        return plaintext;
+    }
+
+    /**
+     * Drops every decrypted record from memory.
+     */
+    void wipeCache() {
+        mCache.wipe();
+    }
+
+    /**
+     * @return the bytes taken by the records
+     */
+    long getDataLength() {
+        return mStore.getDataLength();
+    }
+
+    int getCachedCount() {
+        return mCache.size();
+    }
+
+    /**
+     * A record split into its fields.
+     */
+    private static final class Record {
+
+        final byte[] mBytes;
+        final CipherSuite mCipherSuite;
+        final String mKeyName;
+        final byte[] mIv;
+        final int mCiphertextOffset;
+
+        Record(byte[] bytes) {
+            mBytes = bytes;
+            int position = 0;
+            mCipherSuite = CipherSuite.fromId(bytes[position++]);
+            int nameLength = bytes[position++] & 0xff;
+            mKeyName = new String(bytes, position, nameLength, UTF_8);
+            position += nameLength;
+            int ivLength = bytes[position++] & 0xff;
+            mIv = new byte[ivLength];
+            System.arraycopy(bytes, position, mIv, 0, ivLength);
+            mCiphertextOffset = position + ivLength;
+        }
+    }
+}
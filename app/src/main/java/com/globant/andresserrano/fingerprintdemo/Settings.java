@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The app's preferences as an immutable, typed {@link Snapshot}.
+ *
+ * <p>The preference file is read once on a background thread. After that, {@link #get()} is a
+ * volatile read, and the snapshot is replaced by an {@link
+ * SharedPreferences.OnSharedPreferenceChangeListener} whenever a preference changes, whether it
+ * was edited in {@link SettingsActivity} or written by the app. {@link MainActivity},
+ * {@link FingerprintAuthenticationDialogFragment} and the settings screen share one instance.
+ */
+final class Settings implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final Executor EXECUTOR =
+            Executors.newSingleThreadExecutor(new BackgroundThreadFactory("settings"));
+
+    private static Settings sInstance;
+
+    private final String mUseFingerprintKey;
+    private final String mPipelinedKey;
+    private final String mCipherSuiteKey;
+    private final String mSessionDurationKey;
+    private final CountDownLatch mLoaded = new CountDownLatch(1);
+    private volatile SharedPreferences mPreferences;
+    private volatile Snapshot mSnapshot;
+
+    private Settings(Context context) {
+        // Resolve the keys once rather than on every read.
+        mUseFingerprintKey = context.getString(R.string.use_fingerprint_to_authenticate_key);
+        mPipelinedKey = context.getString(R.string.pipelined_authentication_key);
+        mCipherSuiteKey = context.getString(R.string.cipher_suite_key);
+        mSessionDurationKey = context.getString(R.string.session_duration_key);
+    }
+
+    /**
+     * Returns the settings, starting the background load on the first call. Never blocks.
+     */
+    static synchronized Settings getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new Settings(context.getApplicationContext());
+            sInstance.load(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private void load(final Context context) {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Tracing.beginSection("Settings.load");
+                try {
+                    SharedPreferences preferences =
+                            PreferenceManager.getDefaultSharedPreferences(context);
+                    // The preferences hold listeners weakly; the singleton keeps this one alive.
+                    preferences.registerOnSharedPreferenceChangeListener(Settings.this);
+                    mSnapshot = read(preferences);
+                    mPreferences = preferences;
+                } finally {
+                    mLoaded.countDown();
+                    Tracing.endSection();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the current settings. This only waits if the initial load hasn't finished yet,
+     * which the main thread avoids by reading settings only once {@link CryptoBootstrap}, which
+     * loads them first, is done.
+     */
+    Snapshot get() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            awaitLoaded();
+            snapshot = mSnapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Stores whether purchases should be authenticated with fingerprint. The snapshot is
+     * updated through the change listener.
+     */
+    void setFingerprintEnabled(boolean enabled) {
+        awaitLoaded();
+        mPreferences.edit().putBoolean(mUseFingerprintKey, enabled).apply();
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+        mSnapshot = read(preferences);
+    }
+
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mLoaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mSnapshot == null) {
+            throw new IllegalStateException("Failed to load the preferences");
+        }
+    }
+
+    private Snapshot read(SharedPreferences preferences) {
+        return new Snapshot(
+                preferences.getBoolean(mUseFingerprintKey, true),
+                preferences.getBoolean(mPipelinedKey, true),
+                CipherSuite.fromPreference(preferences.getString(mCipherSuiteKey, null)),
+                parseSeconds(preferences.getString(mSessionDurationKey, "0")));
+    }
+
+    private static int parseSeconds(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The value of every preference at one point in time.
+     */
+    static final class Snapshot {
+
+        private final boolean mFingerprintEnabled;
+        private final boolean mPipelined;
+        private final CipherSuite mCipherSuite;
+        private final int mSessionDurationSeconds;
+
+        Snapshot(boolean fingerprintEnabled, boolean pipelined, CipherSuite cipherSuite,
+                int sessionDurationSeconds) {
+            mFingerprintEnabled = fingerprintEnabled;
+            mPipelined = pipelined;
+            mCipherSuite = cipherSuite;
+            mSessionDurationSeconds = sessionDurationSeconds;
+        }
+
+        /**
+         * @return {@code false} if the user chose to authenticate with their password instead
+         */
+        boolean isFingerprintEnabled() {
+            return mFingerprintEnabled;
+        }
+
+        /**
+         * @return whether crypto work starts at the fingerprint match, see
+         * {@link com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine}
+         */
+        boolean isPipelined() {
+            return mPipelined;
+        }
+
+        CipherSuite getCipherSuite() {
+            return mCipherSuite;
+        }
+
+        /**
+         * @return the {@link AuthorizationSession} duration, or 0 if sessions are off
+         */
+        int getSessionDurationSeconds() {
+            return mSessionDurationSeconds;
+        }
+    }
+}
@@ -39,6 +39,9 @@ public class SettingsActivity extends Activity {
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
+            // Edits made here reach the shared snapshot through its change listener, which has
+            // to be registered even if this screen is opened before the main one.
+            Settings.getInstance(getActivity());
             addPreferencesFromResource(R.xml.preferences);
         }
     }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Thin wrapper around {@link Trace} for systrace and Perfetto captures of the purchase flow.
+ *
+ * <p>Tracing is compiled in only when {@code BuildConfig.ENABLE_TRACING} is set, which is the
+ * case for debug builds. In release builds every method is a constant-false branch, so the calls
+ * cost nothing. Debug builds can also switch it off at runtime with {@link #setEnabled(boolean)}.
+ *
+ * <p>Async slices, for work which starts in one callback and ends in another, use the hidden
+ * {@code Trace.asyncTraceBegin/End} methods through reflection because the public API only
+ * appeared in Android Q.
+ */
+final class Tracing {
+
+    private static final String TAG = Tracing.class.getSimpleName();
+
+    /** {@code Trace.TRACE_TAG_APP}, which is what the public {@link Trace} methods use. */
+    private static final long TRACE_TAG_APP = 1L << 12;
+
+    /** Cookies of the async slices, so that overlapping slices with one name can be told apart. */
+    static final int COOKIE_PURCHASE = 1;
+    static final int COOKIE_ARMED_TO_MATCH = 2;
+    static final int COOKIE_SUCCESS_HOLD = 3;
+
+    private static volatile boolean sEnabled = true;
+    private static Method sAsyncTraceBegin;
+    private static Method sAsyncTraceEnd;
+    private static boolean sAsyncLookedUp;
+
+    private Tracing() {
+    }
+
+    static boolean isEnabled() {
+        return BuildConfig.ENABLE_TRACING && sEnabled
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Starts a section on the current thread. Must be paired with {@link #endSection()} on the
+     * same thread.
+     */
+    static void beginSection(String name) {
+        if (isEnabled()) {
+            Trace.beginSection(name);
+        }
+    }
+
+    static void endSection() {
+        if (isEnabled()) {
+            Trace.endSection();
+        }
+    }
+
+    /**
+     * Starts a slice which may end on another thread or in a later callback.
+     */
+    static void beginAsyncSection(String name, int cookie) {
+        if (isEnabled() && lookUpAsync()) {
+            invoke(sAsyncTraceBegin, name, cookie);
+        }
+    }
+
+    static void endAsyncSection(String name, int cookie) {
+        if (isEnabled() && lookUpAsync()) {
+            invoke(sAsyncTraceEnd, name, cookie);
+        }
+    }
+
+    private static synchronized boolean lookUpAsync() {
+        if (!sAsyncLookedUp) {
+            sAsyncLookedUp = true;
+            try {
+                sAsyncTraceBegin = Trace.class.getMethod("asyncTraceBegin",
+                        long.class, String.class, int.class);
+                sAsyncTraceEnd = Trace.class.getMethod("asyncTraceEnd",
+                        long.class, String.class, int.class);
+            } catch (NoSuchMethodException e) {
+                Log.w(TAG, "Async trace sections are not available", e);
+            }
+        }
+        return sAsyncTraceBegin != null && sAsyncTraceEnd != null;
+    }
+
+    private static void invoke(Method method, String name, int cookie) {
+        try {
+            method.invoke(null, TRACE_TAG_APP, name, cookie);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            Log.w(TAG, "Failed to trace " + name, e);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.globant.andresserrano.fingerprintdemo;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Where the backends are in release builds, as configured in {@link BuildConfig}. A backend whose
+ * URL is empty is reported as unreachable.
+ */
+final class Endpoints {
+
+    private Endpoints() {
+    }
+
+    /**
+     * @return the URL passwords are verified at
+     */
+    static URL password() throws IOException {
+        return parse(BuildConfig.PASSWORD_BACKEND_URL, "password");
+    }
+
+    /**
+     * @return the URL purchases are delivered to
+     */
+    static URL purchases() throws IOException {
+        return parse(BuildConfig.PURCHASE_BACKEND_URL, "purchase");
+    }
+
+    private static URL parse(String url, String backend) throws IOException {
+        if (url.isEmpty()) {
+            throw new IOException("No " + backend + " backend is configured");
+        }
+        return new URL(url);
+    }
+}
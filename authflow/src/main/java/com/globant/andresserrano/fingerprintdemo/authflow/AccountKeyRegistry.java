@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * One key per account, e.g. per user profile or merchant on a shared device, in a single
+ * {@link KeyStore}.
+ *
+ * <p>The alias of an account's key is derived from the account id with SHA-256, so ids never
+ * appear in the key store and any id is a valid alias. Keys are created the first time an account
+ * needs one. Loaded key handles and initialized ciphers are kept in LRU caches of a fixed size, so
+ * memory stays flat however many accounts there are. {@link #listAliases()} and
+ * {@link #deleteAll()} work from {@link KeyStore#aliases()} without loading any key.
+ *
+ * <p>Safe to use from any thread. The caches are guarded by this object's lock. Every call on
+ * the key store is made while holding the key store itself, which is the lock the app's other
+ * users of the same instance take. Keys are created by the {@link KeyCreator} outside that lock.
+ */
+public final class AccountKeyRegistry {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** Bytes of the account id hash used in the alias; 128 bits won't collide. */
+    private static final int ALIAS_HASH_BYTES = 16;
+
+    private final KeyStore mKeyStore;
+    private final char[] mPassword;
+    private final String mPrefix;
+    private final String mTransformation;
+    private final KeyCreator mKeyCreator;
+    private final MessageDigest mDigest;
+    private final LruCache<SecretKey> mKeys;
+    private final LruCache<Cipher> mCiphers;
+
+    /**
+     * @param keyStore a loaded key store
+     * @param password the password protecting the keys, {@code null} for the Android Key Store
+     * @param prefix starts every alias of this registry, so its keys can be told apart from others
+     * @param transformation what {@link #acquireCipher(String)} initializes
+     * @param keyCreator generates a key in {@code keyStore} when an account has none yet
+     * @param keyCacheSize how many key handles to keep loaded
+     * @param cipherCacheSize how many initialized ciphers to keep
+     */
+    public AccountKeyRegistry(KeyStore keyStore, char[] password, String prefix,
+            String transformation, KeyCreator keyCreator, int keyCacheSize,
+            int cipherCacheSize) {
+        mKeyStore = keyStore;
+        mPassword = password;
+        mPrefix = prefix;
+        mTransformation = transformation;
+        mKeyCreator = keyCreator;
+        mKeys = new LruCache<>(keyCacheSize);
+        mCiphers = new LruCache<>(cipherCacheSize);
+        try {
+            mDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @return the alias of the key of {@code accountId}, whether or not it exists yet
+     */
+    public synchronized String aliasFor(String accountId) {
+        byte[] hash = mDigest.digest(accountId.getBytes(UTF_8));
+        char[] alias = new char[mPrefix.length() + ALIAS_HASH_BYTES * 2];
+        mPrefix.getChars(0, mPrefix.length(), alias, 0);
+        int j = mPrefix.length();
+        for (int i = 0; i < ALIAS_HASH_BYTES; i++) {
+            alias[j++] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            alias[j++] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(alias);
+    }
+
+    /**
+     * Returns the key of {@code accountId}, creating it if the account has none.
+     */
+    public synchronized SecretKey getKey(String accountId) throws GeneralSecurityException {
+        String alias = aliasFor(accountId);
+        SecretKey key = mKeys.get(alias);
+        if (key != null) {
+            return key;
+        }
+        key = loadKey(alias);
+        if (key == null) {
+            mKeyCreator.createKey(mKeyStore, alias);
+            key = loadKey(alias);
+            if (key == null) {
+                throw new KeyStoreException("No key was created for " + alias);
+            }
+        }
+        mKeys.put(alias, key);
+        return key;
+    }
+
+    private SecretKey loadKey(String alias) throws GeneralSecurityException {
+        synchronized (mKeyStore) {
+            return (SecretKey) mKeyStore.getKey(alias, mPassword);
+        }
+    }
+
+    /**
+     * Initializes a cipher for {@code accountId} ahead of time, so {@link #acquireCipher} can hand
+     * it out without touching the key store.
+     */
+    public synchronized void warmCipher(String accountId) throws GeneralSecurityException {
+        String alias = aliasFor(accountId);
+        if (mCiphers.get(alias) == null) {
+            mCiphers.put(alias, newCipher(accountId));
+        }
+    }
+
+    /**
+     * Returns a cipher initialized for encryption with the key of {@code accountId}. The cipher
+     * belongs to the caller: it is taken out of the cache, because an operation authorized by
+     * the user consumes it.
+     *
+     * @throws java.security.InvalidKeyException if the key can't be used, e.g. because it was
+     * permanently invalidated; its cached handle is dropped so a new key is loaded next time
+     */
+    public synchronized Cipher acquireCipher(String accountId) throws GeneralSecurityException {
+        Cipher cipher = mCiphers.remove(aliasFor(accountId));
+        return cipher != null ? cipher : newCipher(accountId);
+    }
+
+    private Cipher newCipher(String accountId) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(mTransformation);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, getKey(accountId));
+        } catch (GeneralSecurityException e) {
+            mKeys.remove(aliasFor(accountId));
+            throw e;
+        }
+        return cipher;
+    }
+
+    /**
+     * @return whether {@code accountId} has a key, without loading or creating it
+     */
+    public synchronized boolean hasKey(String accountId) throws KeyStoreException {
+        String alias = aliasFor(accountId);
+        if (mKeys.get(alias) != null) {
+            return true;
+        }
+        synchronized (mKeyStore) {
+            return mKeyStore.containsAlias(alias);
+        }
+    }
+
+    /**
+     * @return the alias of every key of this registry, read without loading any key
+     */
+    public synchronized List<String> listAliases() throws KeyStoreException {
+        List<String> aliases = new ArrayList<>();
+        synchronized (mKeyStore) {
+            Enumeration<String> all = mKeyStore.aliases();
+            while (all.hasMoreElements()) {
+                String alias = all.nextElement();
+                if (alias.startsWith(mPrefix)) {
+                    aliases.add(alias);
+                }
+            }
+        }
+        return aliases;
+    }
+
+    /**
+     * Deletes the key of {@code accountId}, if it has one.
+     */
+    public synchronized void delete(String accountId) throws KeyStoreException {
+        String alias = aliasFor(accountId);
+        mKeys.remove(alias);
+        mCiphers.remove(alias);
+        synchronized (mKeyStore) {
+            if (mKeyStore.containsAlias(alias)) {
+                mKeyStore.deleteEntry(alias);
+            }
+        }
+    }
+
+    /**
+     * Deletes every key of this registry, e.g. when the device is handed to someone else.
+     *
+     * @return the number of keys deleted
+     */
+    public synchronized int deleteAll() throws KeyStoreException {
+        // Collected first, deleting while enumerating isn't supported by every key store.
+        List<String> aliases = listAliases();
+        synchronized (mKeyStore) {
+            for (String alias : aliases) {
+                mKeyStore.deleteEntry(alias);
+            }
+        }
+        mKeys.clear();
+        mCiphers.clear();
+        return aliases.size();
+    }
+
+    /**
+     * @return how many key handles are loaded
+     */
+    public synchronized int getLoadedKeyCount() {
+        return mKeys.size();
+    }
+
+    /**
+     * Generates the key of a new account.
+     */
+    public interface KeyCreator {
+
+        /**
+         * Creates a secret key stored under {@code alias} in {@code keyStore}.
+         */
+        void createKey(KeyStore keyStore, String alias) throws GeneralSecurityException;
+    }
+
+    /**
+     * A map which drops its least recently used entry once it is full. Guarded by the registry.
+     */
+    private static final class LruCache<V> {
+
+        private final Map<String, V> mMap;
+
+        LruCache(final int capacity) {
+            mMap = new LinkedHashMap<String, V>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        V get(String key) {
+            return mMap.get(key);
+        }
+
+        void put(String key, V value) {
+            mMap.put(key, value);
+        }
+
+        V remove(String key) {
+            return mMap.remove(key);
+        }
+
+        void clear() {
+            mMap.clear();
+        }
+
+        int size() {
+            return mMap.size();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only log of what happened during authentication, for fraud analysis.
+ *
+ * <p>{@link #record} is called on the thread which drives the flow and must not slow it down: it
+ * writes a fixed-size binary record into a ring buffer with plain stores and publishes it with
+ * one ordered write, without locks or allocation. If the ring is full the record is dropped and
+ * counted, rather than blocking. A background thread drains the ring in batches into segment
+ * files named {@code audit-<n>.log}; a segment is rotated when it reaches its size limit and the
+ * oldest are deleted beyond the segment limit, so the log never takes more than their product.
+ * Each process starts a new segment. Records reach the page cache, so they survive the process
+ * dying but not necessarily the device losing power. Decode the log with {@link AuditLogReader}.
+ *
+ * <p>A segment starts with {@code magic (4) | version (2) | record size (2) | created millis (8)}.
+ * A record is {@code time millis (8) | sequence (4) | session (4) | event id (2) | state (2) |
+ * code (4)}, big-endian. Sequence numbers count every {@code record} call, so a gap shows how
+ * many records were dropped.
+ */
+public final class AuditLog implements Closeable {
+
+    public static final int RECORD_BYTES = 24;
+    /** The state of a record which isn't about one. */
+    public static final int NO_STATE = -1;
+
+    static final int MAGIC = 0x41554454;
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_BYTES = 16;
+    static final String SEGMENT_PREFIX = "audit-";
+    static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * What a record is about. The ids are written to the log, so they must never change.
+     */
+    public enum Event {
+        /** The dialog came up; the state is the one it starts in. */
+        SESSION_STARTED(1),
+        /** The dialog moved to another state; the code is the previous state. */
+        STATE_CHANGED(2),
+        FINGERPRINT_SUCCEEDED(3),
+        FINGERPRINT_FAILED(4),
+        /** The code is the platform's help code. */
+        FINGERPRINT_HELP(5),
+        /** The code is the platform's error code. */
+        FINGERPRINT_ERROR(6),
+        /** The user chose the password over the fingerprint. */
+        PASSWORD_FALLBACK(7),
+        PASSWORD_ACCEPTED(8),
+        PASSWORD_REJECTED(9),
+        /** The backend couldn't check the password. */
+        PASSWORD_ERROR(10);
+
+        private final int mId;
+
+        Event(int id) {
+            mId = id;
+        }
+
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * @return the event with the given id, or {@code null} if it is unknown, e.g. written by
+         * a newer version
+         */
+        public static Event fromId(int id) {
+            for (Event event : values()) {
+                if (event.mId == id) {
+                    return event;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSegmentBytes;
+    private final int mMaxSegments;
+    private final long mFlushIntervalNanos;
+    private final ByteBuffer mRing;
+    private final int mMask;
+    private final Thread mWriter;
+
+    /** Records before this one are readable by the writer. Written by the producer only. */
+    private final AtomicLong mPublished = new AtomicLong();
+    /** Records before this one have been written out. Written by the writer only. */
+    private final AtomicLong mConsumed = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile boolean mClosing;
+    private volatile IOException mError;
+
+    // Producer thread only.
+    private int mSequence;
+    private int mSession;
+
+    // Writer thread only.
+    private FileChannel mSegment;
+    private long mSegmentBytes;
+    private int mNextSegment;
+
+    /**
+     * Starts the writer thread; the directory isn't touched until the first records are written.
+     *
+     * @param capacity how many records the ring holds, a power of two
+     * @param maxSegmentBytes how large a segment may grow
+     * @param maxSegments how many segments to keep
+     * @param flushIntervalMillis how long records may wait in the ring before they're written,
+     *                            unless it fills up faster
+     */
+    public AuditLog(File directory, int capacity, long maxSegmentBytes, int maxSegments,
+            long flushIntervalMillis, ThreadFactory threadFactory) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        if (maxSegmentBytes < SEGMENT_HEADER_BYTES + RECORD_BYTES) {
+            throw new IllegalArgumentException("Segments too small: " + maxSegmentBytes);
+        }
+        mDirectory = directory;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mMaxSegments = maxSegments;
+        mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        mRing = ByteBuffer.allocate(capacity * RECORD_BYTES);
+        mMask = capacity - 1;
+        mWriter = threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+        mWriter.start();
+    }
+
+    /**
+     * Starts a new session, e.g. because the dialog came up. Records are tagged with the session
+     * until the next one starts. Call it on the thread which calls {@link #record}.
+     *
+     * @return the number of the session, unique within the process
+     */
+    public int beginSession() {
+        return ++mSession;
+    }
+
+    /**
+     * Appends a record to the log. Must only ever be called from one thread at a time.
+     *
+     * @param state the flow state the record is about, e.g. an {@link AuthStateMachine.State}
+     *              ordinal, or {@link #NO_STATE}
+     * @param code details of the event, 0 if there are none
+     * @return {@code false} if the record was dropped because the writer has fallen behind
+     */
+    public boolean record(Event event, int state, int code) {
+        int sequence = mSequence++;
+        long published = mPublished.get();
+        int capacity = mMask + 1;
+        if (mClosing || published - mConsumed.get() >= capacity) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        int offset = (int) (published & mMask) * RECORD_BYTES;
+        mRing.putLong(offset, System.currentTimeMillis());
+        mRing.putInt(offset + 8, sequence);
+        mRing.putInt(offset + 12, mSession);
+        mRing.putShort(offset + 16, (short) event.getId());
+        mRing.putShort(offset + 18, (short) state);
+        mRing.putInt(offset + 20, code);
+        // Ordered after the stores above, so the writer never sees a partial record.
+        mPublished.lazySet(published + 1);
+        if (published + 1 - mConsumed.get() == capacity / 2) {
+            // Filling up faster than the flush interval; write now.
+            LockSupport.unpark(mWriter);
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of records dropped because the ring was full or the log closed
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return the number of records written out
+     */
+    public long getWrittenCount() {
+        return mConsumed.get();
+    }
+
+    /**
+     * @return the last error of the writer, if any; records it couldn't write are dropped
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Writes out everything recorded so far and stops the writer. Call it on the thread which
+     * calls {@link #record}, or once that has stopped; later records are dropped.
+     */
+    @Override
+    public void close() {
+        mClosing = true;
+        LockSupport.unpark(mWriter);
+        boolean interrupted = false;
+        while (mWriter.isAlive()) {
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        ByteBuffer ring = mRing.duplicate();
+        while (true) {
+            long consumed = mConsumed.get();
+            long published = mPublished.get();
+            if (published == consumed) {
+                if (mClosing) {
+                    break;
+                }
+                LockSupport.parkNanos(this, mFlushIntervalNanos);
+                continue;
+            }
+            try {
+                write(ring, consumed, published);
+            } catch (IOException e) {
+                mError = e;
+                closeSegment();
+                mDropped.addAndGet(published - consumed);
+            }
+            // The slots can be reused once they're written, not before.
+            mConsumed.lazySet(published);
+        }
+        closeSegment();
+    }
+
+    /**
+     * Writes records {@code [from, to)} of the ring, rotating segments as they fill up.
+     */
+    private void write(ByteBuffer ring, long from, long to) throws IOException {
+        int capacity = mMask + 1;
+        while (from < to) {
+            if (mSegment == null || mSegmentBytes + RECORD_BYTES > mMaxSegmentBytes) {
+                openSegment();
+            }
+            long room = (mMaxSegmentBytes - mSegmentBytes) / RECORD_BYTES;
+            int slot = (int) (from & mMask);
+            // Up to the end of the ring, the segment's room, or the last record.
+            int count = (int) Math.min(Math.min(to - from, capacity - slot), room);
+            ring.limit((slot + count) * RECORD_BYTES);
+            ring.position(slot * RECORD_BYTES);
+            while (ring.hasRemaining()) {
+                mSegment.write(ring);
+            }
+            ring.clear();
+            mSegmentBytes += count * RECORD_BYTES;
+            from += count;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        closeSegment();
+        if (mNextSegment == 0) {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Failed to create " + mDirectory);
+            }
+            List<File> segments = AuditLogReader.listSegments(mDirectory);
+            mNextSegment = segments.isEmpty()
+                    ? 1 : AuditLogReader.segmentNumber(segments.get(segments.size() - 1)) + 1;
+        }
+        File file = new File(mDirectory, String.format(Locale.US, "%s%08d%s",
+                SEGMENT_PREFIX, mNextSegment++, SEGMENT_SUFFIX));
+        FileChannel segment = new FileOutputStream(file).getChannel();
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES);
+        header.putInt(MAGIC).putShort((short) VERSION).putShort((short) RECORD_BYTES)
+                .putLong(System.currentTimeMillis()).flip();
+        try {
+            while (header.hasRemaining()) {
+                segment.write(header);
+            }
+        } catch (IOException e) {
+            segment.close();
+            throw e;
+        }
+        mSegment = segment;
+        mSegmentBytes = SEGMENT_HEADER_BYTES;
+
+        List<File> segments = AuditLogReader.listSegments(mDirectory);
+        for (int i = 0; i < segments.size() - mMaxSegments; i++) {
+            if (!segments.get(i).delete()) {
+                throw new IOException("Failed to delete " + segments.get(i));
+            }
+        }
+    }
+
+    private void closeSegment() {
+        if (mSegment == null) {
+            return;
+        }
+        try {
+            mSegment.close();
+        } catch (IOException e) {
+            mError = e;
+        }
+        mSegment = null;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Decodes the segments an {@link AuditLog} wrote, oldest first.
+ *
+ * <p>A record cut short by the process dying mid-write is ignored.
+ */
+public final class AuditLogReader {
+
+    private AuditLogReader() {
+    }
+
+    /**
+     * @return the segments in {@code directory}, oldest first
+     */
+    public static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> segments = new ArrayList<>();
+        for (File file : files) {
+            if (segmentNumber(file) > 0) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                int x = segmentNumber(a);
+                int y = segmentNumber(b);
+                return x < y ? -1 : x == y ? 0 : 1;
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * @return the number in the name of {@code segment}, or 0 if it isn't a segment
+     */
+    static int segmentNumber(File segment) {
+        String name = segment.getName();
+        if (!name.startsWith(AuditLog.SEGMENT_PREFIX) || !name.endsWith(AuditLog.SEGMENT_SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(name.substring(AuditLog.SEGMENT_PREFIX.length(),
+                    name.length() - AuditLog.SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return every record in {@code directory}, oldest first
+     */
+    public static List<Record> readAll(File directory) throws IOException {
+        List<Record> records = new ArrayList<>();
+        for (File segment : listSegments(directory)) {
+            records.addAll(readSegment(segment));
+        }
+        return records;
+    }
+
+    /**
+     * @return the records of one segment
+     * @throws IOException if the file isn't a segment this version can read
+     */
+    public static List<Record> readSegment(File segment) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment)));
+        try {
+            int magic;
+            try {
+                magic = in.readInt();
+            } catch (EOFException e) {
+                // Created, but the header never made it.
+                return Collections.emptyList();
+            }
+            int version = in.readUnsignedShort();
+            int recordBytes = in.readUnsignedShort();
+            in.readLong();
+            if (magic != AuditLog.MAGIC || version != AuditLog.VERSION
+                    || recordBytes != AuditLog.RECORD_BYTES) {
+                throw new IOException(segment + " is not an audit log segment this reader knows");
+            }
+            List<Record> records = new ArrayList<>();
+            byte[] record = new byte[recordBytes];
+            while (true) {
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    return records;
+                }
+                records.add(Record.decode(record));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * One decoded record.
+     */
+    public static final class Record {
+
+        private static final AuthStateMachine.State[] STATES = AuthStateMachine.State.values();
+
+        private final long mTimeMillis;
+        private final int mSequence;
+        private final int mSession;
+        private final int mEventId;
+        private final int mState;
+        private final int mCode;
+
+        private Record(long timeMillis, int sequence, int session, int eventId, int state,
+                int code) {
+            mTimeMillis = timeMillis;
+            mSequence = sequence;
+            mSession = session;
+            mEventId = eventId;
+            mState = state;
+            mCode = code;
+        }
+
+        static Record decode(byte[] record) {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            return new Record(buffer.getLong(0), buffer.getInt(8), buffer.getInt(12),
+                    buffer.getShort(16), buffer.getShort(18), buffer.getInt(20));
+        }
+
+        public long getTimeMillis() {
+            return mTimeMillis;
+        }
+
+        public int getSequence() {
+            return mSequence;
+        }
+
+        public int getSession() {
+            return mSession;
+        }
+
+        /**
+         * @return the event, or {@code null} if this reader doesn't know its id
+         */
+        public AuditLog.Event getEvent() {
+            return AuditLog.Event.fromId(mEventId);
+        }
+
+        public int getState() {
+            return mState;
+        }
+
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String toString() {
+            SimpleDateFormat format =
+                    new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            AuditLog.Event event = getEvent();
+            StringBuilder line = new StringBuilder()
+                    .append(format.format(new Date(mTimeMillis)))
+                    .append(" #").append(mSequence & 0xffffffffL)
+                    .append(" session=").append(mSession)
+                    .append(' ').append(event != null ? event.name() : "EVENT_" + mEventId);
+            if (mState != AuditLog.NO_STATE) {
+                line.append(" state=").append(stateName(mState));
+            }
+            if (event == AuditLog.Event.STATE_CHANGED) {
+                line.append(" from=").append(stateName(mCode));
+            } else if (mCode != 0) {
+                line.append(" code=").append(mCode);
+            }
+            return line.toString();
+        }
+
+        private static String stateName(int state) {
+            return state >= 0 && state < STATES.length ? STATES[state].name() : "STATE_" + state;
+        }
+    }
+}
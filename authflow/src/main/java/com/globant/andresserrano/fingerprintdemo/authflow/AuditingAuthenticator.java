@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+/**
+ * Records the callbacks of another {@link Authenticator} in an {@link AuditLog} before passing
+ * them on. Callbacks must arrive on the thread which records to the log.
+ *
+ * @param <C> the crypto object type which an authentication unlocks
+ */
+public final class AuditingAuthenticator<C> implements Authenticator<C> {
+
+    private final Authenticator<C> mAuthenticator;
+    private final AuditLog mLog;
+
+    /**
+     * @throws NullPointerException if there is no log, rather than on the first callback
+     */
+    public AuditingAuthenticator(Authenticator<C> authenticator, AuditLog log) {
+        if (authenticator == null || log == null) {
+            throw new NullPointerException("Both an authenticator and a log are required");
+        }
+        mAuthenticator = authenticator;
+        mLog = log;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return mAuthenticator.isAvailable();
+    }
+
+    @Override
+    public Cancellable authenticate(C cryptoObject, final Listener listener) {
+        return mAuthenticator.authenticate(cryptoObject, new Listener() {
+            @Override
+            public void onError(int errorCode, CharSequence message) {
+                mLog.record(AuditLog.Event.FINGERPRINT_ERROR, AuditLog.NO_STATE, errorCode);
+                listener.onError(errorCode, message);
+            }
+
+            @Override
+            public void onHelp(int helpCode, CharSequence message) {
+                mLog.record(AuditLog.Event.FINGERPRINT_HELP, AuditLog.NO_STATE, helpCode);
+                listener.onHelp(helpCode, message);
+            }
+
+            @Override
+            public void onFailed() {
+                mLog.record(AuditLog.Event.FINGERPRINT_FAILED, AuditLog.NO_STATE, 0);
+                listener.onFailed();
+            }
+
+            @Override
+            public void onSucceeded() {
+                mLog.record(AuditLog.Event.FINGERPRINT_SUCCEEDED, AuditLog.NO_STATE, 0);
+                listener.onSucceeded();
+            }
+        });
+    }
+}
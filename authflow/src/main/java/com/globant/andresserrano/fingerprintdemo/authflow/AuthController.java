@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+/**
+ * Drives one fingerprint prompt: listens through an {@link Authenticator}, tells its
+ * {@link View} what to show and reports the outcome to its {@link Callback}, with the success
+ * hold and error timeout scheduled on a {@link Scheduler}.
+ *
+ * <p>Every call to {@link #startListening(Object)} gets its own session, and callbacks from
+ * older sessions, such as the error which follows a cancel, are ignored. {@link #stopListening()}
+ * also removes every pending post, so a dismissed prompt doesn't leave runnables behind.
+ *
+ * <p>Instances are not thread safe; use them from the thread the scheduler runs on.
+ */
+public final class AuthController<C> {
+
+    private final Authenticator<C> mAuthenticator;
+    private final Scheduler mScheduler;
+    private final View mView;
+    private final Callback mCallback;
+    private final long mSuccessDelayMillis;
+    private final long mErrorTimeoutMillis;
+
+    private Session mSession;
+
+    private final Runnable mResetErrorRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mView.showHint();
+        }
+    };
+
+    private final Runnable mAuthenticatedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onAuthenticated();
+        }
+    };
+
+    private final Runnable mErrorRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mCallback.onError();
+        }
+    };
+
+    /**
+     * @param successDelayMillis how long the success state is shown after a match
+     * @param errorTimeoutMillis how long an error is shown before the hint comes back, and
+     *                           before an unrecoverable error is reported
+     */
+    public AuthController(Authenticator<C> authenticator, Scheduler scheduler, View view,
+            Callback callback, long successDelayMillis, long errorTimeoutMillis) {
+        mAuthenticator = authenticator;
+        mScheduler = scheduler;
+        mView = view;
+        mCallback = callback;
+        mSuccessDelayMillis = successDelayMillis;
+        mErrorTimeoutMillis = errorTimeoutMillis;
+    }
+
+    public boolean isAvailable() {
+        return mAuthenticator.isAvailable();
+    }
+
+    /**
+     * @return {@code true} while an authentication session is running
+     */
+    public boolean isListening() {
+        return mSession != null;
+    }
+
+    public void startListening(C cryptoObject) {
+        if (!isAvailable()) {
+            return;
+        }
+        stopListening();
+        Session session = new Session();
+        mSession = session;
+        session.mCancellable = mAuthenticator.authenticate(cryptoObject, session);
+        mView.showListening();
+    }
+
+    public void stopListening() {
+        Session session = mSession;
+        mSession = null;
+        if (session != null) {
+            session.mCancellable.cancel();
+        }
+        mScheduler.cancel(mResetErrorRunnable);
+        mScheduler.cancel(mAuthenticatedRunnable);
+        mScheduler.cancel(mErrorRunnable);
+    }
+
+    /**
+     * Brings the hint back once the current error has been shown for long enough.
+     */
+    private void scheduleHintReset() {
+        mScheduler.cancel(mResetErrorRunnable);
+        mScheduler.postDelayed(mResetErrorRunnable, mErrorTimeoutMillis);
+    }
+
+    private final class Session implements Authenticator.Listener {
+
+        Authenticator.Cancellable mCancellable;
+
+        @Override
+        public void onError(int errorCode, CharSequence message) {
+            if (mSession != this) {
+                return;
+            }
+            mSession = null;
+            mView.showError(message);
+            scheduleHintReset();
+            mScheduler.postDelayed(mErrorRunnable, mErrorTimeoutMillis);
+        }
+
+        @Override
+        public void onHelp(int helpCode, CharSequence message) {
+            if (mSession != this) {
+                return;
+            }
+            mView.showHelp(message);
+            scheduleHintReset();
+        }
+
+        @Override
+        public void onFailed() {
+            if (mSession != this) {
+                return;
+            }
+            mView.showFailed();
+            scheduleHintReset();
+        }
+
+        @Override
+        public void onSucceeded() {
+            if (mSession != this) {
+                return;
+            }
+            mSession = null;
+            mScheduler.cancel(mResetErrorRunnable);
+            mView.showSuccess();
+            mCallback.onMatched();
+            mScheduler.postDelayed(mAuthenticatedRunnable, mSuccessDelayMillis);
+        }
+    }
+
+    /**
+     * What the prompt shows.
+     */
+    public interface View {
+
+        /** The sensor is listening. */
+        void showListening();
+
+        /** Show {@code message} as a recoverable problem. */
+        void showHelp(CharSequence message);
+
+        /** Show that the fingerprint was not recognized. */
+        void showFailed();
+
+        /** Show {@code message} as an unrecoverable error. */
+        void showError(CharSequence message);
+
+        /** Show that the fingerprint matched. */
+        void showSuccess();
+
+        /** Go back to the hint after an error has been shown for long enough. */
+        void showHint();
+    }
+
+    /**
+     * The outcome of the prompt.
+     */
+    public interface Callback {
+
+        /** Called as soon as a fingerprint matched. */
+        void onMatched();
+
+        /** Called once the success state has been shown after a match. */
+        void onAuthenticated();
+
+        /** Called once an unrecoverable error has been shown. */
+        void onError();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+/**
+ * The states and transitions of the fingerprint dialog, free of any Android dependency.
+ *
+ * <p>Transitions are looked up in a table indexed by state and event. {@link #fire(Event)}
+ * returns the actions the caller has to perform as a bit set of the {@code ACTION_*} constants,
+ * so handling an event never allocates. Events which don't apply to the current state, such as
+ * a late fingerprint match after switching to the password screen, are ignored and return 0.
+ *
+ * <p>In pipelined mode the work for a fingerprint match starts right away and the dialog is
+ * dismissed once both the work is done and the success state has been shown. Otherwise the work
+ * only starts after the success state has been shown.
+ *
+ * <p>Instances are not thread safe; feed all events from one thread.
+ */
+public final class AuthStateMachine {
+
+    /** Start listening for fingerprints. */
+    public static final int ACTION_START_LISTENING = 1;
+    /** Stop listening for fingerprints. */
+    public static final int ACTION_STOP_LISTENING = 1 << 1;
+    /** Show the fingerprint screen. */
+    public static final int ACTION_SHOW_FINGERPRINT = 1 << 2;
+    /** Show the password screen, for {@link State#PASSWORD} or
+     * {@link State#NEW_FINGERPRINT_ENROLLED}. */
+    public static final int ACTION_SHOW_PASSWORD = 1 << 3;
+    /** Start the work authorized by the fingerprint, e.g. encrypting with its crypto object. */
+    public static final int ACTION_START_FINGERPRINT_WORK = 1 << 4;
+    /** Let the app know that the user signed in with the password. */
+    public static final int ACTION_SIGN_IN_WITH_PASSWORD = 1 << 5;
+    /** Store whether the user wants to keep using fingerprints after a new enrollment. */
+    public static final int ACTION_SAVE_ENROLLMENT_CHOICE = 1 << 6;
+    /** Close the dialog. */
+    public static final int ACTION_DISMISS = 1 << 7;
+
+    /**
+     * Where the dialog is in the authentication flow.
+     */
+    public enum State {
+        /** Waiting for a fingerprint. */
+        FINGERPRINT,
+        /** A new fingerprint was enrolled, so the password is needed first. */
+        NEW_FINGERPRINT_ENROLLED,
+        /** Waiting for the backup password. */
+        PASSWORD,
+        /** A fingerprint matched and the success state is being shown. */
+        MATCHED,
+        /** Pipelined only: the success state has been shown, the work is still running. */
+        AWAITING_WORK,
+        /** Pipelined only: the work is done, the success state is still being shown. */
+        AWAITING_SUCCESS_SHOWN,
+        /** The user authenticated and the dialog was dismissed. */
+        DONE,
+        /** The user cancelled the dialog. */
+        CANCELLED
+    }
+
+    /**
+     * Something that happened in the dialog.
+     */
+    public enum Event {
+        /** The dialog's views were created and need to show the current state. */
+        VIEW_CREATED,
+        /** The dialog became visible. */
+        RESUME,
+        /** The dialog was hidden. */
+        PAUSE,
+        /** The device can't authenticate with fingerprints. */
+        FINGERPRINT_UNAVAILABLE,
+        /** The user asked for the password screen. */
+        USE_PASSWORD,
+        /** The sensor reported an unrecoverable error, e.g. too many attempts. */
+        SENSOR_ERROR,
+        /** A fingerprint matched. */
+        MATCH,
+        /** The success state has been shown for long enough. */
+        SUCCESS_SHOWN,
+        /** The work started by {@link #ACTION_START_FINGERPRINT_WORK} has finished. */
+        WORK_DONE,
+        /** The password was checked and is correct. */
+        PASSWORD_ACCEPTED,
+        /** The user cancelled the dialog. */
+        CANCEL
+    }
+
+    private static final State[] STATES = State.values();
+    private static final int STATE_COUNT = STATES.length;
+    private static final int EVENT_COUNT = Event.values().length;
+
+    private static final Table SEQUENTIAL = new Table(false);
+    private static final Table PIPELINED = new Table(true);
+
+    private final Table mTable;
+    private int mState;
+
+    /**
+     * @param initial {@link State#FINGERPRINT}, {@link State#PASSWORD} or
+     *                {@link State#NEW_FINGERPRINT_ENROLLED}
+     * @param pipelined {@code true} to start the work as soon as a fingerprint matches
+     */
+    public AuthStateMachine(State initial, boolean pipelined) {
+        if (initial != State.FINGERPRINT && initial != State.PASSWORD
+                && initial != State.NEW_FINGERPRINT_ENROLLED) {
+            throw new IllegalArgumentException("Can't start in " + initial);
+        }
+        mTable = pipelined ? PIPELINED : SEQUENTIAL;
+        mState = initial.ordinal();
+    }
+
+    public State getState() {
+        return STATES[mState];
+    }
+
+    public boolean isPipelined() {
+        return mTable == PIPELINED;
+    }
+
+    /**
+     * Moves to the next state for {@code event}.
+     *
+     * @return the {@code ACTION_*} flags to perform, 0 if the event doesn't apply
+     */
+    public int fire(Event event) {
+        int index = mState * EVENT_COUNT + event.ordinal();
+        mState = mTable.mNextStates[index];
+        return mTable.mActions[index];
+    }
+
+    /**
+     * The flattened transition table: entry {@code state * EVENT_COUNT + event} holds the next
+     * state and the actions. Entries which are not set keep the state and have no actions.
+     */
+    private static final class Table {
+
+        private final int[] mNextStates = new int[STATE_COUNT * EVENT_COUNT];
+        private final int[] mActions = new int[STATE_COUNT * EVENT_COUNT];
+
+        Table(boolean pipelined) {
+            for (int state = 0; state < STATE_COUNT; state++) {
+                for (int event = 0; event < EVENT_COUNT; event++) {
+                    mNextStates[state * EVENT_COUNT + event] = state;
+                }
+                // Listening is stopped whenever the dialog is hidden, whatever the state.
+                set(STATES[state], Event.PAUSE, STATES[state], ACTION_STOP_LISTENING);
+            }
+
+            set(State.FINGERPRINT, Event.VIEW_CREATED, State.FINGERPRINT,
+                    ACTION_SHOW_FINGERPRINT);
+            set(State.FINGERPRINT, Event.RESUME, State.FINGERPRINT, ACTION_START_LISTENING);
+            set(State.FINGERPRINT, Event.FINGERPRINT_UNAVAILABLE, State.PASSWORD,
+                    ACTION_STOP_LISTENING | ACTION_SHOW_PASSWORD);
+            set(State.FINGERPRINT, Event.USE_PASSWORD, State.PASSWORD,
+                    ACTION_STOP_LISTENING | ACTION_SHOW_PASSWORD);
+            set(State.FINGERPRINT, Event.SENSOR_ERROR, State.PASSWORD,
+                    ACTION_STOP_LISTENING | ACTION_SHOW_PASSWORD);
+            set(State.FINGERPRINT, Event.MATCH, State.MATCHED,
+                    pipelined ? ACTION_START_FINGERPRINT_WORK : 0);
+            set(State.FINGERPRINT, Event.CANCEL, State.CANCELLED,
+                    ACTION_STOP_LISTENING | ACTION_DISMISS);
+
+            for (State state : new State[] {State.PASSWORD, State.NEW_FINGERPRINT_ENROLLED}) {
+                set(state, Event.VIEW_CREATED, state, ACTION_SHOW_PASSWORD);
+                set(state, Event.CANCEL, State.CANCELLED, ACTION_DISMISS);
+            }
+            set(State.PASSWORD, Event.PASSWORD_ACCEPTED, State.DONE,
+                    ACTION_SIGN_IN_WITH_PASSWORD | ACTION_DISMISS);
+            set(State.NEW_FINGERPRINT_ENROLLED, Event.PASSWORD_ACCEPTED, State.DONE,
+                    ACTION_SAVE_ENROLLMENT_CHOICE | ACTION_SIGN_IN_WITH_PASSWORD
+                            | ACTION_DISMISS);
+
+            // Pausing the dialog cancels the success hold, so coming back counts as the hold
+            // being over; otherwise the dialog would stay on the success state for good.
+            for (Event event : new Event[] {Event.SUCCESS_SHOWN, Event.RESUME}) {
+                if (pipelined) {
+                    set(State.MATCHED, event, State.AWAITING_WORK, 0);
+                    set(State.AWAITING_SUCCESS_SHOWN, event, State.DONE, ACTION_DISMISS);
+                } else {
+                    set(State.MATCHED, event, State.DONE,
+                            ACTION_START_FINGERPRINT_WORK | ACTION_DISMISS);
+                }
+            }
+            if (pipelined) {
+                set(State.MATCHED, Event.WORK_DONE, State.AWAITING_SUCCESS_SHOWN, 0);
+                set(State.AWAITING_WORK, Event.WORK_DONE, State.DONE, ACTION_DISMISS);
+            }
+            for (State state : new State[] {
+                    State.MATCHED, State.AWAITING_WORK, State.AWAITING_SUCCESS_SHOWN}) {
+                // Work which has already started keeps running, the dialog just goes away.
+                set(state, Event.CANCEL, State.CANCELLED, ACTION_DISMISS);
+            }
+        }
+
+        private void set(State state, Event event, State next, int actions) {
+            int index = state.ordinal() * EVENT_COUNT + event.ordinal();
+            mNextStates[index] = next.ordinal();
+            mActions[index] = actions;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+/**
+ * A source of biometric authentication results, e.g. the platform's {@code FingerprintManager}.
+ *
+ * <p>Keeping the sensor behind this interface lets the authentication flow run against a fake
+ * on the JVM.
+ *
+ * @param <C> the crypto object type which an authentication unlocks
+ */
+public interface Authenticator<C> {
+
+    /**
+     * @return {@code true} if there is a sensor and at least one enrolled fingerprint
+     */
+    boolean isAvailable();
+
+    /**
+     * Starts listening for a fingerprint. The listener receives callbacks until either
+     * {@link Listener#onSucceeded()} or {@link Listener#onError(int, CharSequence)} is called;
+     * a session which is cancelled may still report an error afterwards.
+     *
+     * @return a handle to stop listening
+     */
+    Cancellable authenticate(C cryptoObject, Listener listener);
+
+    /**
+     * Stops an authentication session, like {@code android.os.CancellationSignal}.
+     */
+    interface Cancellable {
+
+        void cancel();
+    }
+
+    /**
+     * The callbacks of one authentication session, like
+     * {@code FingerprintManager.AuthenticationCallback}.
+     */
+    interface Listener {
+
+        /** An unrecoverable error; the session is over. */
+        void onError(int errorCode, CharSequence message);
+
+        /** A recoverable problem the user can fix, e.g. moving the finger too fast. */
+        void onHelp(int helpCode, CharSequence message);
+
+        /** A fingerprint was read but not recognized. */
+        void onFailed();
+
+        /** A fingerprint matched; the session is over. */
+        void onSucceeded();
+    }
+}
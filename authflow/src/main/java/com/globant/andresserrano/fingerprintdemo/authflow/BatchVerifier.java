@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+
+/**
+ * Stand-in for the backend check of a {@link PurchaseBatch.SignedBatch}: a purchase is accepted
+ * if the root signature verifies with the device's public key and the purchase's proof leads to
+ * that root. Only plain JCA is used, so it runs on the JVM as well as on the device.
+ */
+public final class BatchVerifier {
+
+    private final PublicKey mPublicKey;
+
+    /**
+     * @param publicKey the public half of the signing key, exported from the device
+     */
+    public BatchVerifier(PublicKey publicKey) {
+        mPublicKey = publicKey;
+    }
+
+    /**
+     * @return {@code true} if {@code signature} is a valid signature of {@code root}
+     */
+    public boolean verifyRoot(byte[] root, byte[] signature) {
+        try {
+            Signature verifier = Signature.getInstance(PurchaseBatch.SIGNATURE_ALGORITHM);
+            verifier.initVerify(mPublicKey);
+            verifier.update(root);
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code payload} is included under a correctly signed root
+     */
+    public boolean verify(byte[] payload, MerkleTree.Proof proof, byte[] root, byte[] signature) {
+        return verifyRoot(root, signature) && proof.verify(payload, root);
+    }
+
+    /**
+     * @return {@code true} if every entry of {@code batch} verifies
+     */
+    public boolean verify(PurchaseBatch.SignedBatch batch) {
+        byte[] root = batch.getRoot();
+        if (!verifyRoot(root, batch.getSignature())) {
+            return false;
+        }
+        for (PurchaseBatch.SignedBatch.Entry entry : batch.getEntries()) {
+            if (!entry.getProof().verify(entry.getPayload(), root)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Runs a stream through a {@link Cipher} in fixed-size chunks with {@link Cipher#update},
+ * reusing one input and one output buffer, so a payload of any size takes constant memory.
+ *
+ * <p>The output buffer is sized from the chunk size, never from {@link Cipher#getOutputSize}:
+ * a decrypting GCM cipher holds back all its input until {@link Cipher#doFinal}, so that size
+ * grows with every chunk. Only the final block, which then releases everything held back, may
+ * need a larger buffer, and that one is allocated once. A cipher which releases more than a
+ * chunk from {@link Cipher#update} gets a one-off array for it instead.
+ *
+ * <p>Only plain JCA is used, so the chunk size can be tuned on the JVM with the benchmarks
+ * module. An instance is not thread safe.
+ */
+public final class ChunkedCipher {
+
+    /** Room for a block held back by the cipher plus an authentication tag. */
+    private static final int OUTPUT_SLACK = 64;
+
+    private final int mChunkSize;
+    private final byte[] mInput;
+    private final byte[] mOutput;
+
+    /**
+     * @param chunkSize how many bytes to read and pass to {@link Cipher#update} at a time
+     */
+    public ChunkedCipher(int chunkSize) {
+        mChunkSize = chunkSize;
+        mInput = new byte[chunkSize];
+        mOutput = new byte[chunkSize + OUTPUT_SLACK];
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    /**
+     * Writes the transformation of everything in {@code in} to {@code out}, finishing with
+     * {@link Cipher#doFinal}. Neither stream is closed.
+     *
+     * @return the number of bytes read from {@code in}
+     */
+    public long transform(Cipher cipher, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        long total = 0;
+        int read;
+        while ((read = in.read(mInput, 0, mChunkSize)) >= 0) {
+            if (read == 0) {
+                continue;
+            }
+            total += read;
+            try {
+                int written = cipher.update(mInput, 0, read, mOutput, 0);
+                out.write(mOutput, 0, written);
+            } catch (ShortBufferException e) {
+                write(out, cipher.update(mInput, 0, read));
+            }
+        }
+        try {
+            int written = cipher.doFinal(mOutput, 0);
+            out.write(mOutput, 0, written);
+        } catch (ShortBufferException e) {
+            write(out, cipher.doFinal());
+        }
+        return total;
+    }
+
+    /**
+     * Channel variant of {@link #transform(Cipher, InputStream, OutputStream)}.
+     */
+    public long transform(Cipher cipher, ReadableByteChannel in, WritableByteChannel out)
+            throws IOException, GeneralSecurityException {
+        long total = 0;
+        ByteBuffer input = ByteBuffer.wrap(mInput);
+        int read;
+        while ((read = in.read(input)) >= 0) {
+            if (read == 0) {
+                continue;
+            }
+            total += read;
+            input.flip();
+            try {
+                int written = cipher.update(mInput, 0, input.limit(), mOutput, 0);
+                writeFully(out, ByteBuffer.wrap(mOutput, 0, written));
+            } catch (ShortBufferException e) {
+                byte[] chunk = cipher.update(mInput, 0, input.limit());
+                if (chunk != null) {
+                    writeFully(out, ByteBuffer.wrap(chunk));
+                }
+            }
+            input.clear();
+        }
+        try {
+            int written = cipher.doFinal(mOutput, 0);
+            writeFully(out, ByteBuffer.wrap(mOutput, 0, written));
+        } catch (ShortBufferException e) {
+            writeFully(out, ByteBuffer.wrap(cipher.doFinal()));
+        }
+        return total;
+    }
+
+    private static void write(OutputStream out, byte[] bytes) throws IOException {
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+/**
+ * Reusable output of one encryption: the ciphertext bytes and their Base64 text, which is
+ * exposed as a {@link CharSequence} over an internal {@code char[]}.
+ *
+ * <p>Once the buffers have grown to the largest output seen, {@link #encrypt} allocates nothing,
+ * so repeated purchases don't produce garbage. The text matches
+ * {@code android.util.Base64.encodeToString(ciphertext, Base64.DEFAULT)}: padded, with a
+ * newline after every 76 characters and at the end.
+ *
+ * <p>The contents change on every {@link #encrypt}, so a buffer must not be encrypted into while
+ * its text is still on screen; {@link Pool} hands out buffers for that.
+ */
+public final class CiphertextBuffer implements CharSequence {
+
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    /** {@code android.util.Base64} writes 19 groups of 4 characters per line. */
+    private static final int BYTES_PER_LINE = 19 * 3;
+
+    private byte[] mCiphertext;
+    private int mCiphertextLength;
+    private char[] mChars;
+    private int mLength;
+
+    public CiphertextBuffer(int initialCapacity) {
+        mCiphertext = new byte[initialCapacity];
+        mChars = new char[encodedLength(initialCapacity)];
+    }
+
+    /**
+     * Encrypts {@code length} bytes of {@code plaintext} with {@code cipher}, which must be
+     * initialized, and encodes the result.
+     *
+     * @return this buffer, holding the Base64 text of the ciphertext
+     */
+    public CiphertextBuffer encrypt(Cipher cipher, byte[] plaintext, int offset, int length)
+            throws GeneralSecurityException {
+        int outputSize = cipher.getOutputSize(length);
+        if (mCiphertext.length < outputSize) {
+            mCiphertext = new byte[outputSize];
+        }
+        mCiphertextLength = cipher.doFinal(plaintext, offset, length, mCiphertext, 0);
+        encode();
+        return this;
+    }
+
+    /**
+     * The ciphertext of the last {@link #encrypt}; valid up to {@link #getCiphertextLength()}.
+     */
+    public byte[] getCiphertext() {
+        return mCiphertext;
+    }
+
+    public int getCiphertextLength() {
+        return mCiphertextLength;
+    }
+
+    /**
+     * The Base64 text of the last {@link #encrypt}; valid up to {@link #length()}. Handy for
+     * {@code TextView.setText(char[], int, int)}, which doesn't copy.
+     */
+    public char[] getChars() {
+        return mChars;
+    }
+
+    @Override
+    public int length() {
+        return mLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= mLength) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + mLength);
+        }
+        return mChars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(mChars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mChars, 0, mLength);
+    }
+
+    private void encode() {
+        int needed = encodedLength(mCiphertextLength);
+        if (mChars.length < needed) {
+            mChars = new char[needed];
+        }
+        byte[] in = mCiphertext;
+        char[] out = mChars;
+        int end = mCiphertextLength;
+        int i = 0;
+        int j = 0;
+        int lineStart = 0;
+        while (end - i >= 3) {
+            int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff);
+            out[j++] = ALPHABET[bits >>> 18];
+            out[j++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[j++] = ALPHABET[(bits >>> 6) & 0x3f];
+            out[j++] = ALPHABET[bits & 0x3f];
+            i += 3;
+            if (i - lineStart == BYTES_PER_LINE) {
+                out[j++] = '\n';
+                lineStart = i;
+            }
+        }
+        if (end - i == 1) {
+            int bits = (in[i] & 0xff) << 16;
+            out[j++] = ALPHABET[bits >>> 18];
+            out[j++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[j++] = '=';
+            out[j++] = '=';
+            i++;
+        } else if (end - i == 2) {
+            int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8;
+            out[j++] = ALPHABET[bits >>> 18];
+            out[j++] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[j++] = ALPHABET[(bits >>> 6) & 0x3f];
+            out[j++] = '=';
+            i += 2;
+        }
+        if (i > lineStart) {
+            out[j++] = '\n';
+        }
+        mLength = j;
+    }
+
+    private static int encodedLength(int bytes) {
+        int lines = (bytes + BYTES_PER_LINE - 1) / BYTES_PER_LINE;
+        return (bytes + 2) / 3 * 4 + lines;
+    }
+
+    /**
+     * A fixed set of buffers, so one can be encrypted into while another is on screen. Safe to
+     * use from any thread.
+     */
+    public static final class Pool {
+
+        private final CiphertextBuffer[] mFree;
+        private int mFreeCount;
+        private final int mInitialCapacity;
+
+        /**
+         * @param size how many buffers are kept; more are created if all of them are in use
+         * @param initialCapacity the ciphertext size each buffer starts with
+         */
+        public Pool(int size, int initialCapacity) {
+            mFree = new CiphertextBuffer[size];
+            mInitialCapacity = initialCapacity;
+            for (int i = 0; i < size; i++) {
+                mFree[mFreeCount++] = new CiphertextBuffer(initialCapacity);
+            }
+        }
+
+        public synchronized CiphertextBuffer acquire() {
+            if (mFreeCount == 0) {
+                return new CiphertextBuffer(mInitialCapacity);
+            }
+            CiphertextBuffer buffer = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+            return buffer;
+        }
+
+        /**
+         * Returns {@code buffer} once its text is no longer shown. Extra buffers are dropped.
+         */
+        public synchronized void release(CiphertextBuffer buffer) {
+            if (mFreeCount < mFree.length) {
+                mFree[mFreeCount++] = buffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps recently decrypted records in memory for a short while, so reading one again needs
+ * neither the key store nor the user.
+ *
+ * <p>The cache is bounded by entry count and by total bytes, evicting the least recently read
+ * entry first. An entry expires a fixed time after it was decrypted, however often it is read.
+ * Evicted and expired plaintext is overwritten with zeros, and {@link #wipe()} drops everything,
+ * which owners should call when they go to the background. Expired entries are also swept on the
+ * {@link Scheduler} given to the constructor, so plaintext doesn't linger in an idle app. Safe to
+ * use from any thread as long as the scheduler is.
+ */
+public final class DecryptedEntryCache {
+
+    private final int mMaxEntries;
+    private final long mMaxBytes;
+    private final long mTtlNanos;
+    private final Scheduler mScheduler;
+    private final LinkedHashMap<Integer, Entry> mEntries =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long mBytes;
+    private boolean mSweepPending;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param maxEntries how many records to keep at most
+     * @param maxBytes how many bytes of plaintext to keep at most
+     * @param ttlMillis how long after decryption a record is dropped
+     * @param scheduler runs the sweep of expired records
+     */
+    public DecryptedEntryCache(int maxEntries, long maxBytes, long ttlMillis,
+            Scheduler scheduler) {
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        mScheduler = scheduler;
+    }
+
+    /**
+     * @return a copy of the plaintext of record {@code index}, or {@code null} if it isn't cached
+     */
+    public synchronized byte[] get(int index) {
+        Entry entry = mEntries.get(index);
+        if (entry != null && entry.isExpired(System.nanoTime())) {
+            remove(index);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.mPlaintext.clone();
+    }
+
+    /**
+     * Caches a copy of the plaintext of record {@code index}. Plaintext larger than the whole
+     * cache isn't kept.
+     */
+    public synchronized void put(int index, byte[] plaintext) {
+        remove(index);
+        if (plaintext.length > mMaxBytes || mMaxEntries == 0) {
+            return;
+        }
+        mEntries.put(index, new Entry(plaintext.clone(), System.nanoTime() + mTtlNanos));
+        mBytes += plaintext.length;
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while (mEntries.size() > mMaxEntries || mBytes > mMaxBytes) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            drop(entry);
+        }
+        if (!mSweepPending) {
+            mSweepPending = true;
+            mScheduler.postDelayed(mSweep, TimeUnit.NANOSECONDS.toMillis(mTtlNanos));
+        }
+    }
+
+    private void remove(int index) {
+        Entry entry = mEntries.remove(index);
+        if (entry != null) {
+            drop(entry);
+        }
+    }
+
+    private void drop(Entry entry) {
+        mBytes -= entry.mPlaintext.length;
+        Arrays.fill(entry.mPlaintext, (byte) 0);
+    }
+
+    /**
+     * Drops and zeroes every cached record.
+     */
+    public synchronized void wipe() {
+        for (Entry entry : mEntries.values()) {
+            Arrays.fill(entry.mPlaintext, (byte) 0);
+        }
+        mEntries.clear();
+        mBytes = 0;
+        if (mSweepPending) {
+            mSweepPending = false;
+            mScheduler.cancel(mSweep);
+        }
+    }
+
+    private synchronized void sweep() {
+        mSweepPending = false;
+        long now = System.nanoTime();
+        long nextExpiry = Long.MAX_VALUE;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.isExpired(now)) {
+                iterator.remove();
+                drop(entry);
+            } else {
+                nextExpiry = Math.min(nextExpiry, entry.mExpiresAtNanos);
+            }
+        }
+        if (nextExpiry != Long.MAX_VALUE) {
+            mSweepPending = true;
+            mScheduler.postDelayed(mSweep,
+                    Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextExpiry - now)));
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return the bytes of plaintext held
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private final Runnable mSweep = new Runnable() {
+        @Override
+        public void run() {
+            sweep();
+        }
+    };
+
+    private static final class Entry {
+
+        final byte[] mPlaintext;
+        final long mExpiresAtNanos;
+
+        Entry(byte[] plaintext, long expiresAtNanos) {
+            mPlaintext = plaintext;
+            mExpiresAtNanos = expiresAtNanos;
+        }
+
+        boolean isExpired(long nowNanos) {
+            return nowNanos - mExpiresAtNanos >= 0;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with power-of-two microsecond buckets.
+ *
+ * <p>{@link #record(long)} is a handful of atomic increments and never allocates, so it can be
+ * called from any thread on the hot path. Bucket {@code i} counts samples below {@code 2^i}
+ * microseconds; the last bucket also takes everything slower.
+ */
+public final class LatencyHistogram {
+
+    /** 2^24 us is about 17 seconds, longer than any authentication we care about. */
+    public static final int BUCKET_COUNT = 25;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        mBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        mCount.incrementAndGet();
+        mSumNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSumNanos.set(0);
+        mMaxNanos.set(0);
+    }
+
+    /**
+     * Copies the current counts. Samples recorded while copying may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new Snapshot(mName, buckets, mCount.get(), mSumNanos.get(), mMaxNanos.get());
+    }
+
+    /**
+     * An immutable copy of a {@link LatencyHistogram}.
+     */
+    public static final class Snapshot {
+
+        private final String mName;
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSumNanos;
+        private final long mMaxNanos;
+
+        Snapshot(String name, long[] buckets, long count, long sumNanos, long maxNanos) {
+            mName = name;
+            mBuckets = buckets;
+            mCount = count;
+            mSumNanos = sumNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public double getMeanMillis() {
+            return mCount == 0 ? 0 : mSumNanos / 1e6 / mCount;
+        }
+
+        public double getMaxMillis() {
+            return mMaxNanos / 1e6;
+        }
+
+        public long getBucketCount(int bucket) {
+            return mBuckets[bucket];
+        }
+
+        /**
+         * @return the upper bound in milliseconds of the bucket holding the given percentile, so
+         * the real value is at most this and more than half of it
+         */
+        public double getPercentileMillis(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return i == mBuckets.length - 1
+                            ? getMaxMillis() : Math.min((1L << i) / 1000.0, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s: n=%d mean=%.1fms p50<=%.1fms p90<=%.1fms p99<=%.1fms max=%.1fms",
+                    mName, mCount, getMeanMillis(), getPercentileMillis(50),
+                    getPercentileMillis(90), getPercentileMillis(99), getMaxMillis());
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only file of variable-length records, memory-mapped so a record is read straight from
+ * the page cache without reading anything before it.
+ *
+ * <p>Records live in a data file as {@code length (4 bytes) | bytes}. A second, index file holds
+ * the offset of every record after a small header, so record {@code i} is found with one lookup
+ * and nothing has to be scanned when the store is opened; the index stays off the heap however
+ * many records there are. An append writes the record, then its offset, then bumps the count in
+ * the header, so a crash can lose the record being appended but never exposes a partial one.
+ * Call {@link #sync()} to also survive losing power. Safe to use from any thread.
+ */
+public final class MappedRecordStore implements Closeable {
+
+    private static final int INDEX_MAGIC = 0x56415531;
+    /** Magic, record count, end of the data. */
+    private static final int INDEX_HEADER_BYTES = 16;
+    private static final int COUNT_OFFSET = 4;
+    private static final int DATA_END_OFFSET = 8;
+    private static final int OFFSET_BYTES = 8;
+    private static final int LENGTH_BYTES = 4;
+    private static final long MIN_MAPPING_BYTES = 64 * 1024;
+
+    private final RandomAccessFile mDataFile;
+    private final RandomAccessFile mIndexFile;
+    private MappedByteBuffer mData;
+    private MappedByteBuffer mIndex;
+    private int mCount;
+    private long mDataEnd;
+
+    /**
+     * Opens the store kept in {@code dataFile} and {@code indexFile}, creating both if needed.
+     */
+    public MappedRecordStore(File dataFile, File indexFile) throws IOException {
+        mDataFile = new RandomAccessFile(dataFile, "rw");
+        mIndexFile = new RandomAccessFile(indexFile, "rw");
+        try {
+            mIndex = map(mIndexFile, Math.max(mIndexFile.length(), MIN_MAPPING_BYTES));
+            mData = map(mDataFile, Math.max(mDataFile.length(), MIN_MAPPING_BYTES));
+            if (mIndex.getInt(0) != INDEX_MAGIC) {
+                // A new store, or data whose index was lost; either way there are no records.
+                mIndex.putLong(DATA_END_OFFSET, 0);
+                mIndex.putInt(COUNT_OFFSET, 0);
+                mIndex.putInt(0, INDEX_MAGIC);
+            }
+            mCount = mIndex.getInt(COUNT_OFFSET);
+            mDataEnd = mIndex.getLong(DATA_END_OFFSET);
+        } catch (IOException | RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Store is full");
+        }
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @return the index of the record
+     */
+    public synchronized int append(byte[] record, int offset, int length) throws IOException {
+        checkOpen();
+        long start = mDataEnd;
+        long end = start + LENGTH_BYTES + length;
+        if (end > mData.capacity()) {
+            mData = map(mDataFile, grow(mData.capacity(), end));
+        }
+        long indexEnd = INDEX_HEADER_BYTES + (long) (mCount + 1) * OFFSET_BYTES;
+        if (indexEnd > mIndex.capacity()) {
+            mIndex = map(mIndexFile, grow(mIndex.capacity(), indexEnd));
+        }
+        mData.putInt((int) start, length);
+        mData.position((int) start + LENGTH_BYTES);
+        mData.put(record, offset, length);
+        mIndex.putLong(INDEX_HEADER_BYTES + mCount * OFFSET_BYTES, start);
+        mIndex.putLong(DATA_END_OFFSET, end);
+        mIndex.putInt(COUNT_OFFSET, mCount + 1);
+        mDataEnd = end;
+        return mCount++;
+    }
+
+    private static long grow(long capacity, long needed) {
+        long size = Math.max(capacity, MIN_MAPPING_BYTES);
+        while (size < needed) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    /**
+     * @return the length of record {@code index}
+     */
+    public synchronized int length(int index) {
+        return mData.getInt((int) offsetOf(index));
+    }
+
+    /**
+     * @return a copy of record {@code index}
+     */
+    public synchronized byte[] read(int index) {
+        byte[] record = new byte[length(index)];
+        read(index, record, 0);
+        return record;
+    }
+
+    /**
+     * Copies record {@code index} into {@code destination}, which must have room for it.
+     *
+     * @return the length of the record
+     */
+    public synchronized int read(int index, byte[] destination, int offset) {
+        int start = (int) offsetOf(index);
+        int length = mData.getInt(start);
+        mData.position(start + LENGTH_BYTES);
+        mData.get(destination, offset, length);
+        return length;
+    }
+
+    private long offsetOf(int index) {
+        checkOpen();
+        if (index < 0 || index >= mCount) {
+            throw new IndexOutOfBoundsException("No record " + index + " of " + mCount);
+        }
+        return mIndex.getLong(INDEX_HEADER_BYTES + index * OFFSET_BYTES);
+    }
+
+    /**
+     * @return the number of records
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * @return the bytes taken by the records, including their lengths
+     */
+    public synchronized long getDataLength() {
+        return mDataEnd;
+    }
+
+    /**
+     * Writes the records appended so far through to storage. Appends made meanwhile aren't held
+     * up, but aren't necessarily written either.
+     */
+    public void sync() {
+        MappedByteBuffer data;
+        MappedByteBuffer index;
+        synchronized (this) {
+            checkOpen();
+            data = mData;
+            index = mIndex;
+        }
+        data.force();
+        index.force();
+    }
+
+    /**
+     * Drops every record. The files keep their size, to be reused by the next appends.
+     */
+    public synchronized void clear() {
+        checkOpen();
+        mIndex.putInt(COUNT_OFFSET, 0);
+        mIndex.putLong(DATA_END_OFFSET, 0);
+        mCount = 0;
+        mDataEnd = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mData == null) {
+            return;
+        }
+        mData = null;
+        mIndex = null;
+        // The mappings go away when they are collected; closing the files doesn't unmap them.
+        try {
+            mDataFile.close();
+        } finally {
+            mIndexFile.close();
+        }
+    }
+
+    private void closeQuietly() {
+        mData = null;
+        mIndex = null;
+        try {
+            mDataFile.close();
+            mIndexFile.close();
+        } catch (IOException ignored) {
+            // Already failing.
+        }
+    }
+
+    private void checkOpen() {
+        if (mData == null) {
+            throw new IllegalStateException("Record store is closed");
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A binary SHA-256 Merkle tree over a list of payloads, so a single signature over the
+ * {@link #getRoot() root} authorizes all of them and each payload can be checked on its own with
+ * its {@link Proof}.
+ *
+ * <p>Leaves are hashed as {@code SHA-256(0x00 | payload)} and inner nodes as
+ * {@code SHA-256(0x01 | left | right)}, so a leaf can never be passed off as an inner node. A
+ * node without a sibling is promoted to the next level unchanged.
+ */
+public final class MerkleTree {
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    /** {@code mLevels[0]} holds the leaf hashes, the last level holds the root. */
+    private final List<byte[][]> mLevels = new ArrayList<>();
+
+    /**
+     * @param payloads the leaves, in order; must not be empty
+     */
+    public MerkleTree(List<byte[]> payloads) {
+        if (payloads.isEmpty()) {
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf");
+        }
+        MessageDigest digest = newDigest();
+        byte[][] level = new byte[payloads.size()][];
+        for (int i = 0; i < level.length; i++) {
+            level[i] = hash(digest, LEAF_PREFIX, payloads.get(i), null);
+        }
+        mLevels.add(level);
+        while (level.length > 1) {
+            byte[][] parent = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parent.length; i++) {
+                int left = 2 * i;
+                parent[i] = left + 1 < level.length
+                        ? hash(digest, NODE_PREFIX, level[left], level[left + 1])
+                        : level[left];
+            }
+            mLevels.add(parent);
+            level = parent;
+        }
+    }
+
+    public int size() {
+        return mLevels.get(0).length;
+    }
+
+    public byte[] getRoot() {
+        return mLevels.get(mLevels.size() - 1)[0].clone();
+    }
+
+    /**
+     * @return the proof that the payload at {@code index} is included under the root
+     */
+    public Proof getProof(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("No leaf " + index);
+        }
+        List<byte[]> siblings = new ArrayList<>();
+        List<Boolean> siblingOnLeft = new ArrayList<>();
+        int position = index;
+        for (int i = 0; i < mLevels.size() - 1; i++) {
+            byte[][] level = mLevels.get(i);
+            int sibling = position ^ 1;
+            if (sibling < level.length) {
+                siblings.add(level[sibling]);
+                siblingOnLeft.add(sibling < position);
+            }
+            position /= 2;
+        }
+        boolean[] onLeft = new boolean[siblingOnLeft.size()];
+        for (int i = 0; i < onLeft.length; i++) {
+            onLeft[i] = siblingOnLeft.get(i);
+        }
+        return new Proof(index, siblings.toArray(new byte[siblings.size()][]), onLeft);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] hash(MessageDigest digest, byte prefix, byte[] first, byte[] second) {
+        digest.reset();
+        digest.update(prefix);
+        digest.update(first);
+        if (second != null) {
+            digest.update(second);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * The sibling hashes on the path from one leaf up to the root.
+     */
+    public static final class Proof {
+
+        private final int mLeafIndex;
+        private final byte[][] mSiblings;
+        private final boolean[] mSiblingOnLeft;
+
+        Proof(int leafIndex, byte[][] siblings, boolean[] siblingOnLeft) {
+            mLeafIndex = leafIndex;
+            mSiblings = siblings;
+            mSiblingOnLeft = siblingOnLeft;
+        }
+
+        public int getLeafIndex() {
+            return mLeafIndex;
+        }
+
+        /**
+         * @return the number of hashes in the proof, about log2 of the tree size
+         */
+        public int length() {
+            return mSiblings.length;
+        }
+
+        /**
+         * @return {@code true} if {@code payload} hashes up to {@code root} along this proof
+         */
+        public boolean verify(byte[] payload, byte[] root) {
+            MessageDigest digest = newDigest();
+            byte[] node = hash(digest, LEAF_PREFIX, payload, null);
+            for (int i = 0; i < mSiblings.length; i++) {
+                node = mSiblingOnLeft[i]
+                        ? hash(digest, NODE_PREFIX, mSiblings[i], node)
+                        : hash(digest, NODE_PREFIX, node, mSiblings[i]);
+            }
+            return MessageDigest.isEqual(node, root);
+        }
+
+        @Override
+        public String toString() {
+            return "Proof{leaf=" + mLeafIndex + ", siblings=" + mSiblings.length
+                    + ", onLeft=" + Arrays.toString(mSiblingOnLeft) + "}";
+        }
+    }
+}
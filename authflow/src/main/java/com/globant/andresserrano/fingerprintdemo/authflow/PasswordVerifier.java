@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Checks passwords with the backend without blocking the caller.
+ *
+ * <p>A request {@code POST}s the UTF-8 password to the endpoint, which answers
+ * {@link #STATUS_ACCEPTED} or {@link #STATUS_REJECTED}. Every response is read to the end, so
+ * {@link HttpURLConnection} keeps the connection alive for the next request. Verifying a password
+ * which is already in flight joins that request rather than sending it again, so submitting
+ * twice costs one round trip. Every request ends with a callback, even if it fails with an
+ * unexpected exception, so a later verification never joins a request which is stuck. Safe to
+ * use from any thread.
+ */
+public final class PasswordVerifier {
+
+    public static final int STATUS_ACCEPTED = 200;
+    public static final int STATUS_REJECTED = 401;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final URL mEndpoint;
+    private final ExecutorService mExecutor;
+    private final Executor mCallbackExecutor;
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+    /** The requests in flight, by password. Guards the callbacks of every {@link Call} too. */
+    private final Map<String, Call> mCalls = new HashMap<>();
+
+    /**
+     * @param executor runs the blocking requests, one task per distinct password in flight;
+     *                 requests only wait for each other if the executor is bounded
+     * @param callbackExecutor delivers the results, e.g. on the main thread
+     */
+    public PasswordVerifier(URL endpoint, ExecutorService executor, Executor callbackExecutor,
+            int connectTimeoutMillis, int readTimeoutMillis) {
+        mEndpoint = endpoint;
+        mExecutor = executor;
+        mCallbackExecutor = callbackExecutor;
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Starts verifying {@code password}, or joins the request already verifying it. Exactly one
+     * of the callback's methods is called, unless the returned handle is cancelled first. Once
+     * every caller of a request has cancelled, the request itself is aborted.
+     */
+    public Authenticator.Cancellable verify(String password, Callback callback) {
+        synchronized (mCalls) {
+            Call call = mCalls.get(password);
+            if (call == null) {
+                call = new Call(password);
+                mExecutor.execute(call);
+                mCalls.put(password, call);
+            }
+            Handle handle = new Handle(call, callback);
+            call.mHandles.add(handle);
+            return handle;
+        }
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int getPendingCount() {
+        synchronized (mCalls) {
+            return mCalls.size();
+        }
+    }
+
+    private boolean post(Call call) throws IOException {
+        byte[] body = call.mPassword.getBytes(UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection();
+        call.mConnection = connection;
+        if (call.mAborted) {
+            throw new IOException("Cancelled");
+        }
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            // Reading to the end hands the connection back to the keep-alive pool.
+            try {
+                byte[] buffer = new byte[256];
+                while (in.read(buffer) != -1) {
+                    // Discard.
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (status == STATUS_ACCEPTED) {
+            return true;
+        } else if (status == STATUS_REJECTED) {
+            return false;
+        }
+        throw new IOException("Unexpected response " + status + " from " + mEndpoint);
+    }
+
+    private void finish(Call call, final boolean accepted, final IOException error) {
+        final List<Handle> handles;
+        synchronized (mCalls) {
+            if (mCalls.get(call.mPassword) == call) {
+                mCalls.remove(call.mPassword);
+            }
+            handles = new ArrayList<>(call.mHandles);
+            call.mHandles.clear();
+        }
+        if (handles.isEmpty()) {
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Handle handle : handles) {
+                    // Re-checked here, so a cancel on the callback thread always wins.
+                    if (handle.mCancelled) {
+                        continue;
+                    }
+                    if (error != null) {
+                        handle.mCallback.onError(error);
+                    } else {
+                        handle.mCallback.onVerified(accepted);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * One request to the backend, shared by everyone verifying the same password meanwhile.
+     */
+    private final class Call implements Runnable {
+
+        final String mPassword;
+        final List<Handle> mHandles = new ArrayList<>(2);
+        volatile HttpURLConnection mConnection;
+        volatile boolean mAborted;
+
+        Call(String password) {
+            mPassword = password;
+        }
+
+        @Override
+        public void run() {
+            if (mAborted) {
+                return;
+            }
+            boolean accepted = false;
+            IOException error = null;
+            try {
+                accepted = post(this);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("Failed to verify the password", e);
+            } catch (Error e) {
+                error = new IOException("Failed to verify the password", e);
+                throw e;
+            } finally {
+                // Also removes the call, so nobody joins it after it died.
+                finish(this, accepted, error);
+            }
+        }
+
+        void abort() {
+            mAborted = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                // Closes the socket, which unblocks the request thread.
+                connection.disconnect();
+            }
+        }
+    }
+
+    private final class Handle implements Authenticator.Cancellable {
+
+        final Call mCall;
+        final Callback mCallback;
+        volatile boolean mCancelled;
+
+        Handle(Call call, Callback callback) {
+            mCall = call;
+            mCallback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            synchronized (mCalls) {
+                if (mCall.mHandles.remove(this) && mCall.mHandles.isEmpty()
+                        && mCalls.get(mCall.mPassword) == mCall) {
+                    mCalls.remove(mCall.mPassword);
+                    mCall.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * The result of a verification, delivered on the callback executor.
+     */
+    public interface Callback {
+
+        void onVerified(boolean accepted);
+
+        /** The backend couldn't be reached, timed out or answered something unexpected. */
+        void onError(IOException e);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects purchase payloads and authorizes all of them with one fingerprint-authenticated
+ * {@link Signature} over the root of a {@link MerkleTree}.
+ *
+ * <p>Signing N purchases therefore costs one biometric prompt and one key store signature, and
+ * every purchase comes with a {@link MerkleTree.Proof} the backend can check with
+ * {@link BatchVerifier}.
+ */
+public final class PurchaseBatch {
+
+    /** The signature algorithm of the signing key, which must be an EC key. */
+    public static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+
+    private final List<byte[]> mPending = new ArrayList<>();
+
+    public synchronized void add(byte[] payload) {
+        mPending.add(payload.clone());
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Signs the root of a Merkle tree over every pending payload and clears the batch. The pending
+     * payloads are kept if signing fails.
+     *
+     * @param signature a signature initialized for signing and authorized by fingerprint
+     * @throws IllegalStateException if the batch is empty
+     */
+    public SignedBatch sign(Signature signature) throws SignatureException {
+        List<byte[]> payloads;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                throw new IllegalStateException("Nothing to sign");
+            }
+            payloads = new ArrayList<>(mPending);
+        }
+        MerkleTree tree = new MerkleTree(payloads);
+        byte[] root = tree.getRoot();
+        signature.update(root);
+        byte[] rootSignature = signature.sign();
+
+        List<SignedBatch.Entry> entries = new ArrayList<>(payloads.size());
+        for (int i = 0; i < payloads.size(); i++) {
+            entries.add(new SignedBatch.Entry(payloads.get(i), tree.getProof(i)));
+        }
+        synchronized (this) {
+            mPending.subList(0, payloads.size()).clear();
+        }
+        return new SignedBatch(root, rootSignature, entries);
+    }
+
+    /**
+     * A signed Merkle root with the inclusion proof of every purchase under it.
+     */
+    public static final class SignedBatch {
+
+        private final byte[] mRoot;
+        private final byte[] mSignature;
+        private final List<Entry> mEntries;
+
+        SignedBatch(byte[] root, byte[] signature, List<Entry> entries) {
+            mRoot = root;
+            mSignature = signature;
+            mEntries = Collections.unmodifiableList(entries);
+        }
+
+        public byte[] getRoot() {
+            return mRoot.clone();
+        }
+
+        public byte[] getSignature() {
+            return mSignature.clone();
+        }
+
+        public List<Entry> getEntries() {
+            return mEntries;
+        }
+
+        /**
+         * A purchase payload and its proof of inclusion under the signed root.
+         */
+        public static final class Entry {
+
+            private final byte[] mPayload;
+            private final MerkleTree.Proof mProof;
+
+            Entry(byte[] payload, MerkleTree.Proof proof) {
+                mPayload = payload;
+                mProof = proof;
+            }
+
+            public byte[] getPayload() {
+                return mPayload.clone();
+            }
+
+            public MerkleTree.Proof getProof() {
+                return mProof;
+            }
+        }
+    }
+}
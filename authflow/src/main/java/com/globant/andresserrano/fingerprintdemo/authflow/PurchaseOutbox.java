@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers purchases to the backend at least once, even across process death and while the
+ * backend can't be reached.
+ *
+ * <p>{@link #enqueue} appends the purchase to a {@link MappedRecordStore} and returns once it is
+ * on storage. Concurrent callers share a sync: whoever syncs covers everything appended before,
+ * so the others only wait for it. Purchases are then {@code POST}ed in order, as many per request
+ * as are waiting up to a limit, and a cursor file records how many the backend has acknowledged.
+ * A failed request is retried with exponential backoff and jitter. A purchase may be sent again
+ * after a crash, so each carries an idempotency key which the backend deduplicates by; the same
+ * key is also never queued twice. The files are reset once everything is delivered.
+ *
+ * <p>A request body is a sequence of {@code key length (2) | UTF-8 key | payload length (4) |
+ * payload}, answered with {@link #STATUS_ACCEPTED}. Safe to use from any thread.
+ */
+public final class PurchaseOutbox implements Closeable {
+
+    public static final int STATUS_ACCEPTED = 200;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_KEY_BYTES = 0xffff;
+    private static final int CURSOR_BYTES = 8;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    private final MappedRecordStore mStore;
+    private final RandomAccessFile mCursorFile;
+    private final MappedByteBuffer mCursor;
+    private final URL mEndpoint;
+    private final ScheduledExecutorService mExecutor;
+    private final int mMaxBatchRecords;
+    private final long mMinBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final Listener mListener;
+    private final Random mRandom = new Random();
+    /** Held while syncing, so appends can go on meanwhile. */
+    private final Object mSyncLock = new Object();
+
+    private final Set<String> mPendingKeys = new HashSet<>();
+    /** Records before this index have been acknowledged. */
+    private int mAcknowledged;
+    /** Appends since the outbox was opened, and how many of them are known to be on storage. */
+    private long mAppended;
+    private long mSynced;
+    private boolean mFlushScheduled;
+    private ScheduledFuture<?> mRetry;
+    private int mConsecutiveFailures;
+    private boolean mClosed;
+    private byte[] mRecord = new byte[256];
+    private long mDeliveredCount;
+    private long mBatchCount;
+    private long mFailedAttemptCount;
+    private long mSyncCount;
+
+    /**
+     * Opens the outbox kept in {@code directory} under {@code name}, and starts delivering
+     * whatever an earlier process left in it.
+     *
+     * @param executor delivers the purchases; must run one task at a time
+     * @param maxBatchRecords how many purchases to send in one request at most
+     * @param minBackoffMillis how long to wait before retrying the first failure
+     * @param maxBackoffMillis how long to wait between retries at most
+     * @param listener told about deliveries on the executor's thread, may be {@code null}
+     */
+    public PurchaseOutbox(File directory, String name, URL endpoint,
+            ScheduledExecutorService executor, int maxBatchRecords, long minBackoffMillis,
+            long maxBackoffMillis, Listener listener) throws IOException {
+        mStore = new MappedRecordStore(new File(directory, name),
+                new File(directory, name + ".idx"));
+        mEndpoint = endpoint;
+        mExecutor = executor;
+        mMaxBatchRecords = maxBatchRecords;
+        mMinBackoffMillis = minBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        mListener = listener;
+        try {
+            mCursorFile = new RandomAccessFile(new File(directory, name + ".cursor"), "rw");
+            mCursor = mCursorFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    CURSOR_BYTES);
+        } catch (IOException e) {
+            mStore.close();
+            throw e;
+        }
+        mAcknowledged = (int) Math.min(mCursor.getLong(0), mStore.size());
+        for (int i = mAcknowledged; i < mStore.size(); i++) {
+            mPendingKeys.add(decodeKey(mStore.read(i)));
+        }
+        if (getPendingCount() > 0) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Queues a purchase and returns once it would survive the process dying.
+     *
+     * @param idempotencyKey identifies the purchase to the backend
+     * @param payload what to deliver, e.g. the purchase's ciphertext
+     * @return {@code false} if a purchase with the same key is already queued
+     */
+    public boolean enqueue(String idempotencyKey, byte[] payload) throws IOException {
+        byte[] key = idempotencyKey.getBytes(UTF_8);
+        if (key.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Idempotency key too long");
+        }
+        long sequence;
+        synchronized (this) {
+            checkOpen();
+            if (!mPendingKeys.add(idempotencyKey)) {
+                return false;
+            }
+            int size = 2 + key.length + payload.length;
+            if (mRecord.length < size) {
+                mRecord = new byte[Math.max(size, mRecord.length * 2)];
+            }
+            mRecord[0] = (byte) (key.length >> 8);
+            mRecord[1] = (byte) key.length;
+            System.arraycopy(key, 0, mRecord, 2, key.length);
+            System.arraycopy(payload, 0, mRecord, 2 + key.length, payload.length);
+            try {
+                mStore.append(mRecord, 0, size);
+            } catch (IOException | RuntimeException e) {
+                mPendingKeys.remove(idempotencyKey);
+                throw e;
+            }
+            sequence = ++mAppended;
+        }
+        awaitSynced(sequence);
+        scheduleFlush();
+        return true;
+    }
+
+    /**
+     * Group commit: syncs unless a sync which started after append {@code sequence} has already
+     * finished.
+     */
+    private void awaitSynced(long sequence) {
+        synchronized (mSyncLock) {
+            if (mSynced >= sequence) {
+                return;
+            }
+            long appended;
+            synchronized (this) {
+                appended = mAppended;
+            }
+            mStore.sync();
+            mSynced = appended;
+            synchronized (this) {
+                mSyncCount++;
+            }
+        }
+    }
+
+    /**
+     * Delivers right away rather than when the current backoff ends, e.g. because the network
+     * has come back.
+     */
+    public synchronized void flushNow() {
+        if (mRetry != null) {
+            mRetry.cancel(false);
+            mRetry = null;
+        }
+        mConsecutiveFailures = 0;
+        scheduleFlush();
+    }
+
+    private synchronized void scheduleFlush() {
+        if (mClosed || mFlushScheduled || mRetry != null) {
+            return;
+        }
+        mFlushScheduled = true;
+        mExecutor.execute(mFlush);
+    }
+
+    private void flush() {
+        synchronized (this) {
+            mFlushScheduled = false;
+            mRetry = null;
+        }
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                if (mClosed || getPendingCount() == 0) {
+                    return;
+                }
+                batch = nextBatch();
+            }
+            try {
+                post(batch.mBody);
+            } catch (IOException e) {
+                long delayMillis;
+                synchronized (this) {
+                    mFailedAttemptCount++;
+                    if (mClosed) {
+                        return;
+                    }
+                    delayMillis = backoffMillis(++mConsecutiveFailures);
+                    mRetry = mExecutor.schedule(mFlush, delayMillis, TimeUnit.MILLISECONDS);
+                }
+                if (mListener != null) {
+                    mListener.onDeliveryFailed(e, delayMillis);
+                }
+                return;
+            }
+            synchronized (this) {
+                if (mClosed) {
+                    // Sent again by the next process, where the backend drops it as a duplicate.
+                    return;
+                }
+                mConsecutiveFailures = 0;
+                acknowledge(batch);
+            }
+            if (mListener != null) {
+                mListener.onDelivered(batch.mKeys);
+            }
+        }
+    }
+
+    private Batch nextBatch() {
+        int end = Math.min(mStore.size(), mAcknowledged + mMaxBatchRecords);
+        List<String> keys = new ArrayList<>(end - mAcknowledged);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        try {
+            for (int i = mAcknowledged; i < end; i++) {
+                byte[] record = mStore.read(i);
+                int keyLength = keyLength(record);
+                keys.add(new String(record, 2, keyLength, UTF_8));
+                out.writeShort(keyLength);
+                out.write(record, 2, keyLength);
+                out.writeInt(record.length - 2 - keyLength);
+                out.write(record, 2 + keyLength, record.length - 2 - keyLength);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new Batch(keys, body.toByteArray());
+    }
+
+    private void acknowledge(Batch batch) {
+        mAcknowledged += batch.mKeys.size();
+        mPendingKeys.removeAll(batch.mKeys);
+        mDeliveredCount += batch.mKeys.size();
+        mBatchCount++;
+        if (mAcknowledged == mStore.size()) {
+            // Drained: rewind the cursor first, so a crash in between only causes duplicates.
+            writeCursor(0);
+            mStore.clear();
+            mAcknowledged = 0;
+        } else {
+            writeCursor(mAcknowledged);
+        }
+    }
+
+    private void writeCursor(long value) {
+        mCursor.putLong(0, value);
+        mCursor.force();
+    }
+
+    private long backoffMillis(int failures) {
+        long backoff = Math.min(mMaxBackoffMillis,
+                mMinBackoffMillis << Math.min(failures - 1, 30));
+        // Half fixed, half random, so clients which failed together don't retry together.
+        return backoff / 2 + (long) (mRandom.nextDouble() * (backoff - backoff / 2));
+    }
+
+    private void post(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mEndpoint.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            // Reading to the end hands the connection back to the keep-alive pool.
+            try {
+                byte[] buffer = new byte[256];
+                while (in.read(buffer) != -1) {
+                    // Discard.
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (status != STATUS_ACCEPTED) {
+            throw new IOException("Unexpected response " + status + " from " + mEndpoint);
+        }
+    }
+
+    private static int keyLength(byte[] record) {
+        return ((record[0] & 0xff) << 8) | (record[1] & 0xff);
+    }
+
+    private static String decodeKey(byte[] record) {
+        return new String(record, 2, keyLength(record), UTF_8);
+    }
+
+    /**
+     * @return the number of purchases not yet acknowledged by the backend
+     */
+    public synchronized int getPendingCount() {
+        return mClosed ? 0 : mStore.size() - mAcknowledged;
+    }
+
+    /**
+     * @return the number of purchases acknowledged since the outbox was opened
+     */
+    public synchronized long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * @return the number of requests which were acknowledged
+     */
+    public synchronized long getBatchCount() {
+        return mBatchCount;
+    }
+
+    /**
+     * @return the number of requests which failed
+     */
+    public synchronized long getFailedAttemptCount() {
+        return mFailedAttemptCount;
+    }
+
+    /**
+     * @return the number of syncs, at most one per {@link #enqueue} and fewer under load
+     */
+    public synchronized long getSyncCount() {
+        return mSyncCount;
+    }
+
+    /**
+     * Stops delivering and closes the files. Purchases not yet acknowledged are delivered by the
+     * next outbox opened on the same files.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mRetry != null) {
+            mRetry.cancel(false);
+            mRetry = null;
+        }
+        try {
+            mStore.close();
+        } finally {
+            mCursorFile.close();
+        }
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("Outbox is closed");
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static final class Batch {
+
+        final List<String> mKeys;
+        final byte[] mBody;
+
+        Batch(List<String> keys, byte[] body) {
+            mKeys = keys;
+            mBody = body;
+        }
+    }
+
+    /**
+     * Told about deliveries, on the outbox's executor.
+     */
+    public interface Listener {
+
+        /** The backend has acknowledged the purchases with these keys. */
+        void onDelivered(List<String> idempotencyKeys);
+
+        /** A request failed and will be retried in {@code retryInMillis}. */
+        void onDeliveryFailed(IOException e, long retryInMillis);
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+/**
+ * Runs delayed work on the thread which drives the authentication flow, like a
+ * {@code Handler} on the main thread.
+ */
+public interface Scheduler {
+
+    void postDelayed(Runnable runnable, long delayMillis);
+
+    /**
+     * Removes every pending post of {@code runnable}. Does nothing if none is pending.
+     */
+    void cancel(Runnable runnable);
+}
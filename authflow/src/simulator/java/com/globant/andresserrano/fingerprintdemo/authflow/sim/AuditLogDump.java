@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.AuditLogReader;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Prints the records of an {@link com.globant.andresserrano.fingerprintdemo.authflow.AuditLog},
+ * one per line, noting where records were dropped or a new process started.
+ *
+ * <p>Pull the log off a device with {@code adb exec-out run-as <package> tar c files/audit | tar x}
+ * and run {@code ./gradlew :authflow:auditLogDump -PsimArgs="--dir=/path/to/files/audit"}.
+ */
+public final class AuditLogDump {
+
+    private AuditLogDump() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        File directory = null;
+        for (String arg : args) {
+            if (arg.startsWith("--dir=")) {
+                directory = new File(arg.substring("--dir=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (directory == null || !directory.isDirectory()) {
+            throw new IllegalArgumentException("Pass the log directory with --dir=");
+        }
+
+        long records = 0;
+        long dropped = 0;
+        for (File segment : AuditLogReader.listSegments(directory)) {
+            List<AuditLogReader.Record> segmentRecords = AuditLogReader.readSegment(segment);
+            System.out.println("# " + segment.getName());
+            int expected = -1;
+            for (AuditLogReader.Record record : segmentRecords) {
+                int sequence = record.getSequence();
+                if (sequence == 0 && expected != 0) {
+                    System.out.println("# process started");
+                } else if (expected >= 0 && sequence != expected) {
+                    System.out.println("# " + (sequence - expected) + " records dropped");
+                    dropped += sequence - expected;
+                }
+                System.out.println(record);
+                expected = sequence + 1;
+            }
+            records += segmentRecords.size();
+        }
+        System.out.println("# " + records + " records, " + dropped + " dropped");
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.AuditLog;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuditLogReader;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine;
+import com.globant.andresserrano.fingerprintdemo.authflow.LatencyHistogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Measures how long {@link AuditLog#record} holds up its caller, and checks that what was
+ * recorded reads back with {@link AuditLogReader}, that segments rotate within their limits and
+ * that a record cut short by a crash is skipped.
+ *
+ * <p>Run it with {@code ./gradlew :authflow:auditLogLoadTest}, or pass options with
+ * {@code -PsimArgs="--records=200000 --capacity=4096 --interval=20"}, where the interval is how
+ * many microseconds apart paced records are. The exit status is 1 if any check fails.
+ */
+public final class AuditLogLoadTest {
+
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+    private static final long SMALL_SEGMENT_BYTES = 16 * 1024;
+    private static final int SMALL_SEGMENT_COUNT = 4;
+    private static final AuditLog.Event[] EVENTS = AuditLog.Event.values();
+    private static final int STATE_COUNT = AuthStateMachine.State.values().length;
+
+    private AuditLogLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int records = 200000;
+        int capacity = 4096;
+        long intervalMicros = 20;
+        for (String arg : args) {
+            if (arg.startsWith("--records=")) {
+                records = Integer.parseInt(arg.substring("--records=".length()));
+            } else if (arg.startsWith("--capacity=")) {
+                capacity = Integer.parseInt(arg.substring("--capacity=".length()));
+            } else if (arg.startsWith("--interval=")) {
+                intervalMicros = Long.parseLong(arg.substring("--interval=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        int failures = 0;
+        ThreadFactory threadFactory = Executors.defaultThreadFactory();
+        File directory = createTempDirectory();
+        try {
+            // As fast as the caller can go: the ring may overflow, but nothing is lost unseen.
+            AuditLog log = new AuditLog(directory, capacity, Long.MAX_VALUE, Integer.MAX_VALUE,
+                    FLUSH_INTERVAL_MILLIS, threadFactory);
+            LatencyHistogram burst = new LatencyHistogram("burst");
+            long start = System.nanoTime();
+            record(log, records, 0, burst);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            log.close();
+            print("records=%d", records);
+            print("burst_records_per_s=%.0f", records / seconds);
+            print("burst_record_p50_ms<=%.4f", burst.snapshot().getPercentileMillis(50));
+            print("burst_record_p99_ms<=%.4f", burst.snapshot().getPercentileMillis(99));
+            print("burst_dropped=%d", log.getDroppedCount());
+            boolean accounted = checkReadBack(directory, log, records);
+            print("burst_accounted=%b", accounted);
+            if (!accounted) {
+                failures++;
+            }
+
+            // Paced like a busy authentication flow, but still far faster: nothing is dropped.
+            clear(directory);
+            log = new AuditLog(directory, capacity, Long.MAX_VALUE, Integer.MAX_VALUE,
+                    FLUSH_INTERVAL_MILLIS, threadFactory);
+            LatencyHistogram paced = new LatencyHistogram("paced");
+            int pacedRecords = Math.min(records, 50000);
+            record(log, pacedRecords, intervalMicros, paced);
+            log.close();
+            print("paced_interval_us=%d", intervalMicros);
+            print("paced_record_p50_ms<=%.4f", paced.snapshot().getPercentileMillis(50));
+            print("paced_record_p99_ms<=%.4f", paced.snapshot().getPercentileMillis(99));
+            print("paced_dropped=%d", log.getDroppedCount());
+            boolean complete = log.getDroppedCount() == 0
+                    && checkReadBack(directory, log, pacedRecords);
+            print("paced_complete=%b", complete);
+            if (!complete) {
+                failures++;
+            }
+
+            // Small segments: old ones go, the newest records stay, the size stays capped.
+            clear(directory);
+            log = new AuditLog(directory, capacity, SMALL_SEGMENT_BYTES, SMALL_SEGMENT_COUNT,
+                    FLUSH_INTERVAL_MILLIS, threadFactory);
+            record(log, pacedRecords, intervalMicros, null);
+            log.close();
+            List<File> segments = AuditLogReader.listSegments(directory);
+            long bytes = 0;
+            boolean segmentsCapped = segments.size() <= SMALL_SEGMENT_COUNT;
+            for (File segment : segments) {
+                bytes += segment.length();
+                segmentsCapped &= segment.length() <= SMALL_SEGMENT_BYTES;
+            }
+            List<AuditLogReader.Record> kept = AuditLogReader.readAll(directory);
+            boolean newestKept = log.getDroppedCount() == 0 && !kept.isEmpty()
+                    && kept.get(kept.size() - 1).getSequence() == pacedRecords - 1;
+            print("capped_segments=%d", segments.size());
+            print("capped_bytes=%d", bytes);
+            print("capped_records=%d", kept.size());
+            print("capped_within_limits=%b", segmentsCapped && newestKept);
+            if (!segmentsCapped || !newestKept) {
+                failures++;
+            }
+
+            // The process dies halfway through a record; the next one starts a new segment.
+            File last = segments.get(segments.size() - 1);
+            int whole = AuditLogReader.readSegment(last).size();
+            RandomAccessFile file = new RandomAccessFile(last, "rw");
+            try {
+                file.setLength(file.length() - AuditLog.RECORD_BYTES / 2);
+            } finally {
+                file.close();
+            }
+            boolean tornSkipped = AuditLogReader.readSegment(last).size() == whole - 1;
+            log = new AuditLog(directory, capacity, SMALL_SEGMENT_BYTES, SMALL_SEGMENT_COUNT,
+                    FLUSH_INTERVAL_MILLIS, threadFactory);
+            log.beginSession();
+            log.record(AuditLog.Event.SESSION_STARTED, 0, 0);
+            log.close();
+            segments = AuditLogReader.listSegments(directory);
+            List<AuditLogReader.Record> restarted =
+                    AuditLogReader.readSegment(segments.get(segments.size() - 1));
+            boolean resumed = segments.size() == SMALL_SEGMENT_COUNT
+                    && segments.get(segments.size() - 2).equals(last)
+                    && restarted.size() == 1 && restarted.get(0).getSequence() == 0;
+            print("torn_record_skipped=%b", tornSkipped);
+            print("restart_new_segment=%b", resumed);
+            if (!tornSkipped || !resumed) {
+                failures++;
+            }
+        } finally {
+            clear(directory);
+            directory.delete();
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Records {@code count} events of sessions 10 events long, {@code intervalMicros} apart.
+     */
+    private static void record(AuditLog log, int count, long intervalMicros,
+            LatencyHistogram latency) {
+        long next = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 0) {
+                log.beginSession();
+            }
+            if (intervalMicros > 0) {
+                next += intervalMicros * 1000;
+                while (System.nanoTime() < next) {
+                    // Spin; sleeping can't wait this little.
+                }
+            }
+            long start = latency != null ? System.nanoTime() : 0;
+            log.record(EVENTS[i % EVENTS.length], i % STATE_COUNT, i);
+            if (latency != null) {
+                latency.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if every record written reads back in order, decodes to what was
+     * recorded, and the gaps in sequence numbers add up to the drops
+     */
+    private static boolean checkReadBack(File directory, AuditLog log, int records)
+            throws IOException {
+        List<AuditLogReader.Record> read = AuditLogReader.readAll(directory);
+        if (read.size() != log.getWrittenCount()
+                || read.size() + log.getDroppedCount() != records) {
+            return false;
+        }
+        int expected = 0;
+        long gaps = 0;
+        for (AuditLogReader.Record record : read) {
+            int sequence = record.getSequence();
+            if (sequence < expected
+                    || record.getEvent() != EVENTS[sequence % EVENTS.length]
+                    || record.getState() != sequence % STATE_COUNT
+                    || record.getCode() != sequence
+                    || record.getSession() != sequence / 10 + 1) {
+                return false;
+            }
+            gaps += sequence - expected;
+            expected = sequence + 1;
+        }
+        gaps += records - expected;
+        return gaps == log.getDroppedCount();
+    }
+
+    private static void clear(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("audit", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        return directory;
+    }
+
+    private static void print(String format, Object value) {
+        System.out.println(String.format(Locale.US, format, value));
+    }
+}
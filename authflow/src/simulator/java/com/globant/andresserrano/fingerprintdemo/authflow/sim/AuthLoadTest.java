@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.State;
+import com.globant.andresserrano.fingerprintdemo.authflow.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Runs many simulated fingerprint dialogs against {@link FakeAuthenticator} and reports
+ * throughput, callback-to-UI latency and anything the flow left behind.
+ *
+ * <p>Run it with {@code ./gradlew :authflow:simulate}, or pass options with
+ * {@code -PsimArgs="--sessions=100000 --seed=7 --mode=pipelined --script=HFFS"}. The script is
+ * a recorded session as described in {@link FakeAuthenticator#recordedScript(String, long)};
+ * without it every callback is random. The exit status is 1 if any session leaked a
+ * cancellation handle or a runnable, updated the UI after being dismissed, or got stuck.
+ */
+public final class AuthLoadTest {
+
+    /** A session which takes this many steps is considered stuck. */
+    private static final int MAX_STEPS_PER_SESSION = 10000;
+
+    private AuthLoadTest() {
+    }
+
+    public static void main(String[] args) {
+        long sessions = 1000000;
+        long seed = 42;
+        String mode = "mixed";
+        String script = null;
+        for (String arg : args) {
+            if (arg.startsWith("--sessions=")) {
+                sessions = Long.parseLong(arg.substring("--sessions=".length()));
+            } else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(arg.substring("--seed=".length()));
+            } else if (arg.startsWith("--mode=")) {
+                mode = arg.substring("--mode=".length());
+            } else if (arg.startsWith("--script=")) {
+                script = arg.substring("--script=".length());
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        Random random = new Random(seed);
+        VirtualScheduler scheduler = new VirtualScheduler();
+        FakeAuthenticator authenticator = new FakeAuthenticator(scheduler, random,
+                script != null
+                        ? FakeAuthenticator.recordedScript(script, 100)
+                        : FakeAuthenticator.randomScript());
+        LatencyHistogram uiLatency = new LatencyHistogram("callback_to_ui");
+
+        long fingerprint = 0;
+        long password = 0;
+        long cancelled = 0;
+        long leakedCancellables = 0;
+        long leakedRunnables = 0;
+        long lateUpdates = 0;
+        long stuck = 0;
+        long simulatedMillis = 0;
+
+        long start = System.nanoTime();
+        for (long i = 0; i < sessions; i++) {
+            scheduler.clear();
+            authenticator.reset();
+            long sessionStart = scheduler.nowMillis();
+            boolean pipelined = "pipelined".equals(mode)
+                    || ("mixed".equals(mode) && random.nextBoolean());
+            SimulatedDialog dialog = new SimulatedDialog(scheduler, authenticator, random,
+                    pipelined, uiLatency);
+            dialog.start();
+
+            boolean checked = false;
+            int steps = 0;
+            while (steps < MAX_STEPS_PER_SESSION && scheduler.runNext()) {
+                steps++;
+                if (dialog.isFinished() && !checked) {
+                    // Whatever is still armed once the dialog is gone has leaked. Keep running
+                    // afterwards so late callbacks get a chance to reach the dismissed dialog.
+                    checked = true;
+                    leakedCancellables += authenticator.getActiveSessions();
+                    leakedRunnables += scheduler.getPendingCount(VirtualScheduler.OWNER_FLOW);
+                }
+            }
+            simulatedMillis += scheduler.nowMillis() - sessionStart;
+            if (!dialog.isFinished()) {
+                stuck++;
+                continue;
+            }
+            lateUpdates += dialog.getLateUpdates();
+            if (dialog.getState() == State.CANCELLED) {
+                cancelled++;
+            } else if (dialog.isFingerprintWorkStarted()) {
+                fingerprint++;
+            } else {
+                password++;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        double seconds = elapsedNanos / 1e9;
+        LatencyHistogram.Snapshot latency = uiLatency.snapshot();
+        System.out.println(String.format(Locale.US, "sessions=%d", sessions));
+        System.out.println(String.format(Locale.US, "mode=%s", mode));
+        System.out.println(String.format(Locale.US, "script=%s",
+                script != null ? script : "random"));
+        System.out.println(String.format(Locale.US, "elapsed_s=%.3f", seconds));
+        System.out.println(String.format(Locale.US, "sessions_per_s=%.0f", sessions / seconds));
+        System.out.println(String.format(Locale.US, "callbacks=%d",
+                authenticator.getCallbacks()));
+        System.out.println(String.format(Locale.US, "callbacks_per_s=%.0f",
+                authenticator.getCallbacks() / seconds));
+        System.out.println(String.format(Locale.US, "callbacks_after_cancel=%d",
+                authenticator.getCallbacksAfterCancel()));
+        System.out.println(String.format(Locale.US, "simulated_s=%d", simulatedMillis / 1000));
+        System.out.println(String.format(Locale.US, "callback_to_ui_p50_us=%.3f",
+                latency.getPercentileMillis(50) * 1000));
+        System.out.println(String.format(Locale.US, "callback_to_ui_p99_us=%.3f",
+                latency.getPercentileMillis(99) * 1000));
+        System.out.println(String.format(Locale.US, "callback_to_ui_max_us=%.3f",
+                latency.getMaxMillis() * 1000));
+        System.out.println(String.format(Locale.US, "outcome_fingerprint=%d", fingerprint));
+        System.out.println(String.format(Locale.US, "outcome_password=%d", password));
+        System.out.println(String.format(Locale.US, "outcome_cancelled=%d", cancelled));
+        System.out.println(String.format(Locale.US, "leaked_cancellation_signals=%d",
+                leakedCancellables));
+        System.out.println(String.format(Locale.US, "leaked_runnables=%d", leakedRunnables));
+        System.out.println(String.format(Locale.US, "late_ui_updates=%d", lateUpdates));
+        System.out.println(String.format(Locale.US, "stuck_sessions=%d", stuck));
+
+        if (leakedCancellables + leakedRunnables + lateUpdates + stuck > 0) {
+            System.exit(1);
+        }
+    }
+}
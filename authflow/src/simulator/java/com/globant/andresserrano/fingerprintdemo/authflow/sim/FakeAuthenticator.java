@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.Authenticator;
+
+import java.util.Random;
+
+/**
+ * A scriptable stand-in for the fingerprint sensor. Each session delivers the steps of a
+ * {@link Script} on the {@link VirtualScheduler}, and like the platform it locks out after
+ * {@link #MAX_FAILED_ATTEMPTS} failures and may still report an error after being cancelled.
+ *
+ * <p>It counts sessions which were neither cancelled nor finished, the equivalent of a leaked
+ * {@code CancellationSignal}.
+ */
+final class FakeAuthenticator implements Authenticator<Object> {
+
+    static final int STEP_HELP = 0;
+    static final int STEP_FAILED = 1;
+    static final int STEP_SUCCEEDED = 2;
+    static final int STEP_LOCKOUT = 3;
+    static final int STEP_HW_ERROR = 4;
+
+    /** Same as {@code FingerprintManager.FINGERPRINT_ERROR_CANCELED}. */
+    static final int ERROR_CANCELED = 5;
+    /** Same as {@code FingerprintManager.FINGERPRINT_ERROR_LOCKOUT}. */
+    static final int ERROR_LOCKOUT = 7;
+    static final int ERROR_HW_UNAVAILABLE = 1;
+
+    static final int MAX_FAILED_ATTEMPTS = 5;
+
+    private final VirtualScheduler mScheduler;
+    private final Random mRandom;
+    private final Script mScript;
+
+    private int mActiveSessions;
+    private long mSessions;
+    private long mCallbacks;
+    private long mCallbacksAfterCancel;
+    private long mLastDeliveryNanos;
+
+    FakeAuthenticator(VirtualScheduler scheduler, Random random, Script script) {
+        mScheduler = scheduler;
+        mRandom = random;
+        mScript = script;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public Cancellable authenticate(Object cryptoObject, Listener listener) {
+        Session session = new Session(listener);
+        mActiveSessions++;
+        mSessions++;
+        mScheduler.post(session, mScript.delayMillis(0, mRandom), VirtualScheduler.OWNER_SENSOR);
+        return session;
+    }
+
+    /**
+     * @return the sessions which are still running because nobody cancelled them
+     */
+    int getActiveSessions() {
+        return mActiveSessions;
+    }
+
+    long getSessions() {
+        return mSessions;
+    }
+
+    long getCallbacks() {
+        return mCallbacks;
+    }
+
+    long getCallbacksAfterCancel() {
+        return mCallbacksAfterCancel;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} right before the last callback was delivered
+     */
+    long getLastDeliveryNanos() {
+        return mLastDeliveryNanos;
+    }
+
+    /**
+     * Forgets sessions left over from a previous run, after they have been counted.
+     */
+    void reset() {
+        mActiveSessions = 0;
+    }
+
+    private final class Session implements Cancellable, Runnable {
+
+        private final Listener mListener;
+        private boolean mCancelled;
+        private boolean mFinished;
+        private int mStep;
+        private int mFailures;
+
+        Session(Listener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public void cancel() {
+            if (mCancelled || mFinished) {
+                return;
+            }
+            mCancelled = true;
+            mActiveSessions--;
+        }
+
+        @Override
+        public void run() {
+            if (mFinished) {
+                return;
+            }
+            if (mCancelled) {
+                mFinished = true;
+                if (mScript.reportsCancel(mRandom)) {
+                    // The platform confirms a cancel with an error, which races with whatever
+                    // the app did in the meantime.
+                    mCallbacksAfterCancel++;
+                    deliverError(ERROR_CANCELED, "Fingerprint operation canceled.");
+                }
+                return;
+            }
+            int step = mScript.step(mStep++, mRandom);
+            if (step == STEP_FAILED && ++mFailures >= MAX_FAILED_ATTEMPTS) {
+                step = STEP_LOCKOUT;
+            }
+            switch (step) {
+                case STEP_HELP:
+                    mCallbacks++;
+                    mLastDeliveryNanos = System.nanoTime();
+                    mListener.onHelp(1, "Finger moved too fast.");
+                    break;
+                case STEP_FAILED:
+                    mCallbacks++;
+                    mLastDeliveryNanos = System.nanoTime();
+                    mListener.onFailed();
+                    break;
+                case STEP_SUCCEEDED:
+                    finish();
+                    mCallbacks++;
+                    mLastDeliveryNanos = System.nanoTime();
+                    mListener.onSucceeded();
+                    return;
+                case STEP_LOCKOUT:
+                    finish();
+                    deliverError(ERROR_LOCKOUT, "Too many attempts. Try again later.");
+                    return;
+                default:
+                    finish();
+                    deliverError(ERROR_HW_UNAVAILABLE, "Fingerprint hardware not available.");
+                    return;
+            }
+            mScheduler.post(this, mScript.delayMillis(mStep, mRandom),
+                    VirtualScheduler.OWNER_SENSOR);
+        }
+
+        private void finish() {
+            mFinished = true;
+            mActiveSessions--;
+        }
+
+        private void deliverError(int errorCode, CharSequence message) {
+            mCallbacks++;
+            mLastDeliveryNanos = System.nanoTime();
+            mListener.onError(errorCode, message);
+        }
+    }
+
+    /**
+     * What the fake sensor reports within one session.
+     */
+    interface Script {
+
+        /**
+         * @return one of the {@code STEP_*} constants for the {@code index}-th callback
+         */
+        int step(int index, Random random);
+
+        /**
+         * @return the delay before the {@code index}-th callback
+         */
+        long delayMillis(int index, Random random);
+
+        /**
+         * @return {@code true} if a cancelled session still reports {@link #ERROR_CANCELED}
+         */
+        boolean reportsCancel(Random random);
+    }
+
+    /**
+     * @return a script which picks every step at random; help and failures are frequent, so
+     * sessions see storms of them before they succeed or lock out
+     */
+    static Script randomScript() {
+        return new Script() {
+            @Override
+            public int step(int index, Random random) {
+                int roll = random.nextInt(100);
+                if (roll < 30) {
+                    return STEP_HELP;
+                } else if (roll < 60) {
+                    return STEP_FAILED;
+                } else if (roll < 97) {
+                    return STEP_SUCCEEDED;
+                } else if (roll < 99) {
+                    return STEP_LOCKOUT;
+                }
+                return STEP_HW_ERROR;
+            }
+
+            @Override
+            public long delayMillis(int index, Random random) {
+                // Mostly human speed, sometimes back-to-back.
+                return random.nextInt(4) == 0 ? 0 : 50 + random.nextInt(1500);
+            }
+
+            @Override
+            public boolean reportsCancel(Random random) {
+                return random.nextBoolean();
+            }
+        };
+    }
+
+    /**
+     * @param steps a recorded session, one letter per callback: {@code H}elp, {@code F}ailed,
+     *              {@code S}ucceeded, {@code L}ockout or hardware {@code E}rror. It repeats if
+     *              the session outlives it.
+     * @param delayMillis the delay before each callback
+     */
+    static Script recordedScript(String steps, final long delayMillis) {
+        final int[] recorded = new int[steps.length()];
+        for (int i = 0; i < recorded.length; i++) {
+            int step = "HFSLE".indexOf(steps.charAt(i));
+            if (step < 0) {
+                throw new IllegalArgumentException("Unknown step " + steps.charAt(i));
+            }
+            recorded[i] = step;
+        }
+        return new Script() {
+            @Override
+            public int step(int index, Random random) {
+                return recorded[index % recorded.length];
+            }
+
+            @Override
+            public long delayMillis(int index, Random random) {
+                return delayMillis;
+            }
+
+            @Override
+            public boolean reportsCancel(Random random) {
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.LatencyHistogram;
+import com.globant.andresserrano.fingerprintdemo.authflow.PurchaseOutbox;
+import com.globant.andresserrano.fingerprintdemo.authflow.StandInPurchaseServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures {@link PurchaseOutbox} throughput and latency against {@link StandInPurchaseServer}
+ * with many concurrent purchasers, and checks that purchases survive an outage and a restart
+ * and are delivered once.
+ *
+ * <p>Run it with {@code ./gradlew :authflow:outboxLoadTest}, or pass options with
+ * {@code -PsimArgs="--producers=8 --purchases=2000 --batch=100 --latency=2"}. The exit status
+ * is 1 if any check fails.
+ */
+public final class OutboxLoadTest {
+
+    private static final String NAME = "outbox";
+    private static final int PAYLOAD_BYTES = 96;
+    private static final long MIN_BACKOFF_MILLIS = 20;
+    private static final long MAX_BACKOFF_MILLIS = 500;
+    private static final long DRAIN_TIMEOUT_MILLIS = 30000;
+
+    private OutboxLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int producers = 8;
+        int purchases = 2000;
+        int batch = 100;
+        long latencyMillis = 2;
+        for (String arg : args) {
+            if (arg.startsWith("--producers=")) {
+                producers = Integer.parseInt(arg.substring("--producers=".length()));
+            } else if (arg.startsWith("--purchases=")) {
+                purchases = Integer.parseInt(arg.substring("--purchases=".length()));
+            } else if (arg.startsWith("--batch=")) {
+                batch = Integer.parseInt(arg.substring("--batch=".length()));
+            } else if (arg.startsWith("--latency=")) {
+                latencyMillis = Long.parseLong(arg.substring("--latency=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        int failures = 0;
+        File directory = createTempDirectory();
+        StandInPurchaseServer server = new StandInPurchaseServer(latencyMillis);
+        URL url = server.start();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        final ConcurrentMap<String, Long> enqueuedAt = new ConcurrentHashMap<>();
+        final LatencyHistogram endToEnd = new LatencyHistogram("end_to_end");
+        PurchaseOutbox.Listener listener = new PurchaseOutbox.Listener() {
+            @Override
+            public void onDelivered(List<String> keys) {
+                long now = System.nanoTime();
+                for (String key : keys) {
+                    Long start = enqueuedAt.remove(key);
+                    if (start != null) {
+                        endToEnd.record(now - start);
+                    }
+                }
+            }
+
+            @Override
+            public void onDeliveryFailed(IOException e, long retryInMillis) {
+            }
+        };
+        try {
+            PurchaseOutbox outbox = new PurchaseOutbox(directory, NAME, url, executor, batch,
+                    MIN_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS, listener);
+            LatencyHistogram enqueue = new LatencyHistogram("enqueue");
+            long start = System.nanoTime();
+            runProducers(outbox, producers, purchases, enqueue, enqueuedAt);
+            boolean drained = awaitDrained(outbox);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long total = (long) producers * purchases;
+            LatencyHistogram.Snapshot enqueueLatency = enqueue.snapshot();
+            LatencyHistogram.Snapshot deliveryLatency = endToEnd.snapshot();
+            print("producers=%d", producers);
+            print("purchases=%d", total);
+            print("server_latency_ms=%d", latencyMillis);
+            print("elapsed_s=%.3f", seconds);
+            print("purchases_per_s=%.0f", total / seconds);
+            print("enqueue_p50_ms<=%.3f", enqueueLatency.getPercentileMillis(50));
+            print("enqueue_p99_ms<=%.3f", enqueueLatency.getPercentileMillis(99));
+            print("syncs=%d", outbox.getSyncCount());
+            print("requests=%d", outbox.getBatchCount());
+            print("purchases_per_request=%.1f",
+                    (double) outbox.getDeliveredCount() / Math.max(1, outbox.getBatchCount()));
+            print("delivery_p50_ms<=%.3f", deliveryLatency.getPercentileMillis(50));
+            print("delivery_p99_ms<=%.3f", deliveryLatency.getPercentileMillis(99));
+            print("connections=%d", server.getConnectionCount());
+            boolean exactlyOnce = drained && server.getUniqueCount() == total
+                    && server.getDuplicateCount() == 0;
+            print("delivered_once=%b", exactlyOnce);
+            if (!exactlyOnce) {
+                failures++;
+            }
+
+            // The backend goes away; purchases wait and are retried with backoff.
+            server.setAvailable(false);
+            long before = server.getUniqueCount();
+            for (int i = 0; i < 200; i++) {
+                outbox.enqueue("outage-" + i, new byte[PAYLOAD_BYTES]);
+            }
+            Thread.sleep(MAX_BACKOFF_MILLIS);
+            boolean held = outbox.getPendingCount() == 200 && outbox.getFailedAttemptCount() > 1;
+            server.setAvailable(true);
+            outbox.flushNow();
+            boolean recovered = held && awaitDrained(outbox)
+                    && server.getUniqueCount() - before == 200;
+            print("outage_retries=%d", outbox.getFailedAttemptCount());
+            print("outage_recovered=%b", recovered);
+            if (!recovered) {
+                failures++;
+            }
+
+            // Queued twice, and queued again after delivery: one purchase reaches the backend.
+            before = server.getUniqueCount();
+            boolean first = outbox.enqueue("double-submit", new byte[PAYLOAD_BYTES]);
+            boolean second = outbox.enqueue("double-submit", new byte[PAYLOAD_BYTES]);
+            awaitDrained(outbox);
+            outbox.enqueue("double-submit", new byte[PAYLOAD_BYTES]);
+            awaitDrained(outbox);
+            boolean deduplicated = first && !second && server.getUniqueCount() - before == 1;
+            print("idempotency_deduplicated=%b", deduplicated);
+            if (!deduplicated) {
+                failures++;
+            }
+
+            // The process dies with purchases queued; the next one delivers them.
+            server.setAvailable(false);
+            before = server.getUniqueCount();
+            for (int i = 0; i < 100; i++) {
+                outbox.enqueue("restart-" + i, new byte[PAYLOAD_BYTES]);
+            }
+            outbox.close();
+            server.setAvailable(true);
+            outbox = new PurchaseOutbox(directory, NAME, url, executor, batch,
+                    MIN_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS, null);
+            int restored = outbox.getPendingCount();
+            boolean survived = restored == 100 && awaitDrained(outbox)
+                    && server.getUniqueCount() - before == 100;
+            print("restored_after_restart=%d", restored);
+            print("survived_restart=%b", survived);
+            if (!survived) {
+                failures++;
+            }
+            outbox.close();
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+            for (String suffix : new String[] {"", ".idx", ".cursor"}) {
+                new File(directory, NAME + suffix).delete();
+            }
+            directory.delete();
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Has every producer queue {@code purchases} purchases one after the other.
+     */
+    private static void runProducers(final PurchaseOutbox outbox, int producers,
+            final int purchases, final LatencyHistogram enqueue,
+            final ConcurrentMap<String, Long> enqueuedAt) throws InterruptedException {
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[producers];
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] payload = new byte[PAYLOAD_BYTES];
+                    for (int j = 0; j < purchases; j++) {
+                        String key = "purchase-" + producer + "-" + j;
+                        long start = System.nanoTime();
+                        enqueuedAt.put(key, start);
+                        try {
+                            outbox.enqueue(key, payload);
+                        } catch (IOException e) {
+                            errors.incrementAndGet();
+                        }
+                        enqueue.record(System.nanoTime() - start);
+                    }
+                }
+            }, "producer-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (errors.get() > 0) {
+            throw new IllegalStateException(errors.get() + " purchases failed to queue");
+        }
+    }
+
+    private static boolean awaitDrained(PurchaseOutbox outbox) throws InterruptedException {
+        long deadline = System.nanoTime() + DRAIN_TIMEOUT_MILLIS * 1000000L;
+        while (outbox.getPendingCount() > 0) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("outbox", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        return directory;
+    }
+
+    private static void print(String format, Object value) {
+        System.out.println(String.format(Locale.US, format, value));
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.Authenticator;
+import com.globant.andresserrano.fingerprintdemo.authflow.LatencyHistogram;
+import com.globant.andresserrano.fingerprintdemo.authflow.PasswordVerifier;
+import com.globant.andresserrano.fingerprintdemo.authflow.StandInPasswordServer;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures {@link PasswordVerifier} round trips against {@link StandInPasswordServer} with many
+ * concurrent callers, and checks that double submits share a request, that cancelled requests
+ * stay silent and that a slow backend times out.
+ *
+ * <p>Run it with {@code ./gradlew :authflow:passwordLoadTest}, or pass options with
+ * {@code -PsimArgs="--clients=16 --requests=2000 --latency=5"}. The exit status is 1 if any
+ * check fails.
+ */
+public final class PasswordLoadTest {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = 2000;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private PasswordLoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = 8;
+        int requests = 1000;
+        long latencyMillis = 2;
+        for (String arg : args) {
+            if (arg.startsWith("--clients=")) {
+                clients = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--requests=")) {
+                requests = Integer.parseInt(arg.substring("--requests=".length()));
+            } else if (arg.startsWith("--latency=")) {
+                latencyMillis = Long.parseLong(arg.substring("--latency=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        // HttpURLConnection keeps at most 5 idle connections per host by default.
+        System.setProperty("http.maxConnections", String.valueOf(clients));
+
+        int failures = 0;
+        StandInPasswordServer server = new StandInPasswordServer(latencyMillis);
+        URL url = server.start();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        PasswordVerifier verifier = new PasswordVerifier(url, executor, DIRECT,
+                CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+        try {
+            LatencyHistogram roundTrips = new LatencyHistogram("round_trip");
+            long start = System.nanoTime();
+            int errors = runClients(verifier, clients, requests, roundTrips);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            LatencyHistogram.Snapshot latency = roundTrips.snapshot();
+            long total = (long) clients * requests;
+            print("clients=%d", clients);
+            print("requests=%d", total);
+            print("server_latency_ms=%d", latencyMillis);
+            print("elapsed_s=%.3f", seconds);
+            print("requests_per_s=%.0f", total / seconds);
+            print("round_trip_p50_ms=%.3f", latency.getPercentileMillis(50));
+            print("round_trip_p99_ms=%.3f", latency.getPercentileMillis(99));
+            print("round_trip_max_ms=%.3f", latency.getMaxMillis());
+            print("connections=%d", server.getConnectionCount());
+            print("errors=%d", errors);
+            if (errors > 0 || server.getConnectionCount() > clients) {
+                failures++;
+            }
+
+            long before = server.getRequestCount();
+            boolean deduplicated = checkDoubleSubmit(verifier)
+                    && server.getRequestCount() - before == 1;
+            print("double_submit_deduplicated=%b", deduplicated);
+            if (!deduplicated) {
+                failures++;
+            }
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+
+        boolean cancelled = checkCancel(latencyMillis);
+        print("cancel_silenced=%b", cancelled);
+        boolean timedOut = checkTimeout();
+        print("timeout_reported=%b", timedOut);
+        if (!cancelled) {
+            failures++;
+        }
+        if (!timedOut) {
+            failures++;
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Has every client verify {@code requests} passwords one after the other.
+     *
+     * @return the number of requests which failed
+     */
+    private static int runClients(final PasswordVerifier verifier, int clients,
+            final int requests, final LatencyHistogram roundTrips) throws InterruptedException {
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < requests; j++) {
+                        long start = System.nanoTime();
+                        Result result = verifyAndWait(verifier, "password-" + client + "-" + j);
+                        roundTrips.record(System.nanoTime() - start);
+                        if (result.mError != null || !result.mAccepted) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, "client-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return errors.get();
+    }
+
+    /**
+     * Submits the same password twice, as the keyboard's "Go" and the OK button would, and
+     * checks that both callers get the result.
+     */
+    private static boolean checkDoubleSubmit(PasswordVerifier verifier)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicInteger accepted = new AtomicInteger();
+        PasswordVerifier.Callback callback = new PasswordVerifier.Callback() {
+            @Override
+            public void onVerified(boolean ok) {
+                if (ok) {
+                    accepted.incrementAndGet();
+                }
+                done.countDown();
+            }
+
+            @Override
+            public void onError(IOException e) {
+                done.countDown();
+            }
+        };
+        verifier.verify("double-submit", callback);
+        verifier.verify("double-submit", callback);
+        return done.await(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS) && accepted.get() == 2;
+    }
+
+    /**
+     * Cancels a request to a slow backend right away, as dismissing the dialog does, and checks
+     * that its callback never runs.
+     */
+    private static boolean checkCancel(long latencyMillis) throws Exception {
+        StandInPasswordServer server = new StandInPasswordServer(Math.max(latencyMillis, 200));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            PasswordVerifier verifier = new PasswordVerifier(server.start(), executor, DIRECT,
+                    CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+            final AtomicInteger callbacks = new AtomicInteger();
+            Authenticator.Cancellable request = verifier.verify("cancelled",
+                    new PasswordVerifier.Callback() {
+                        @Override
+                        public void onVerified(boolean accepted) {
+                            callbacks.incrementAndGet();
+                        }
+
+                        @Override
+                        public void onError(IOException e) {
+                            callbacks.incrementAndGet();
+                        }
+                    });
+            Thread.sleep(20);
+            request.cancel();
+            executor.shutdown();
+            boolean finished = executor.awaitTermination(READ_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+            return finished && callbacks.get() == 0 && verifier.getPendingCount() == 0;
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    /**
+     * Checks that a backend slower than the read timeout is reported as an error.
+     */
+    private static boolean checkTimeout() throws Exception {
+        StandInPasswordServer server = new StandInPasswordServer(1000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            PasswordVerifier verifier = new PasswordVerifier(server.start(), executor, DIRECT,
+                    CONNECT_TIMEOUT_MILLIS, 100);
+            Result result = verifyAndWait(verifier, "slow");
+            return result.mError != null;
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    private static Result verifyAndWait(PasswordVerifier verifier, String password) {
+        final Result result = new Result();
+        final CountDownLatch done = new CountDownLatch(1);
+        verifier.verify(password, new PasswordVerifier.Callback() {
+            @Override
+            public void onVerified(boolean accepted) {
+                result.mAccepted = accepted;
+                done.countDown();
+            }
+
+            @Override
+            public void onError(IOException e) {
+                result.mError = e;
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return result;
+    }
+
+    private static void print(String format, Object value) {
+        System.out.println(String.format(Locale.US, format, value));
+    }
+
+    private static final class Result {
+
+        volatile boolean mAccepted;
+        volatile IOException mError;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthController;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.Event;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.State;
+import com.globant.andresserrano.fingerprintdemo.authflow.LatencyHistogram;
+
+import java.util.Random;
+
+/**
+ * Plays the part of {@code FingerprintAuthenticationDialogFragment} and its user for one
+ * simulated session: it feeds the same events to an {@link AuthStateMachine}, performs the
+ * actions with an {@link AuthController}, and randomly cancels, switches to the password or
+ * goes to the background and back.
+ */
+final class SimulatedDialog implements AuthController.View, AuthController.Callback {
+
+    private final VirtualScheduler mScheduler;
+    private final FakeAuthenticator mAuthenticator;
+    private final Random mRandom;
+    private final LatencyHistogram mUiLatency;
+    private final AuthStateMachine mStateMachine;
+    private final AuthController<Object> mController;
+
+    private boolean mFinished;
+    private boolean mFingerprintWorkStarted;
+    private int mLateUpdates;
+
+    SimulatedDialog(VirtualScheduler scheduler, FakeAuthenticator authenticator, Random random,
+            boolean pipelined, LatencyHistogram uiLatency) {
+        mScheduler = scheduler;
+        mAuthenticator = authenticator;
+        mRandom = random;
+        mUiLatency = uiLatency;
+        mStateMachine = new AuthStateMachine(State.FINGERPRINT, pipelined);
+        mController = new AuthController<>(authenticator, scheduler, this, this,
+                1300 /* successDelayMillis */, 1600 /* errorTimeoutMillis */);
+    }
+
+    void start() {
+        fire(Event.VIEW_CREATED);
+        fire(Event.RESUME);
+        int roll = mRandom.nextInt(100);
+        if (roll < 10) {
+            postUserEvent(Event.CANCEL, mRandom.nextInt(3000));
+        } else if (roll < 15) {
+            postUserEvent(Event.USE_PASSWORD, mRandom.nextInt(3000));
+        } else if (roll < 25) {
+            // The dialog goes to the background and comes back, which restarts the sensor
+            // while callbacks of the old session may still be on their way.
+            long at = mRandom.nextInt(2000);
+            postUserEvent(Event.PAUSE, at);
+            postUserEvent(Event.RESUME, at + mRandom.nextInt(50));
+        }
+    }
+
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    State getState() {
+        return mStateMachine.getState();
+    }
+
+    boolean isFingerprintWorkStarted() {
+        return mFingerprintWorkStarted;
+    }
+
+    /**
+     * @return view updates and callbacks which arrived after the dialog was dismissed
+     */
+    int getLateUpdates() {
+        return mLateUpdates;
+    }
+
+    private void postUserEvent(final Event event, long delayMillis) {
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                fire(event);
+            }
+        }, delayMillis, VirtualScheduler.OWNER_APP);
+    }
+
+    private void fire(Event event) {
+        int actions = mStateMachine.fire(event);
+        if ((actions & AuthStateMachine.ACTION_STOP_LISTENING) != 0) {
+            mController.stopListening();
+        }
+        if ((actions & AuthStateMachine.ACTION_SHOW_PASSWORD) != 0) {
+            postUserEvent(Event.PASSWORD_ACCEPTED, 500 + mRandom.nextInt(3500));
+        }
+        if ((actions & AuthStateMachine.ACTION_START_LISTENING) != 0) {
+            mController.startListening(null);
+        }
+        if ((actions & AuthStateMachine.ACTION_START_FINGERPRINT_WORK) != 0) {
+            mFingerprintWorkStarted = true;
+            postUserEvent(Event.WORK_DONE, mRandom.nextInt(30));
+        }
+        if ((actions & AuthStateMachine.ACTION_DISMISS) != 0) {
+            mFinished = true;
+            // A dismissed dialog is paused right away.
+            fire(Event.PAUSE);
+        }
+    }
+
+    private void onUiUpdate() {
+        mUiLatency.record(System.nanoTime() - mAuthenticator.getLastDeliveryNanos());
+        if (mFinished) {
+            mLateUpdates++;
+        }
+    }
+
+    @Override
+    public void showListening() {
+        if (mFinished) {
+            mLateUpdates++;
+        }
+    }
+
+    @Override
+    public void showHelp(CharSequence message) {
+        onUiUpdate();
+    }
+
+    @Override
+    public void showFailed() {
+        onUiUpdate();
+    }
+
+    @Override
+    public void showError(CharSequence message) {
+        onUiUpdate();
+    }
+
+    @Override
+    public void showSuccess() {
+        onUiUpdate();
+    }
+
+    @Override
+    public void showHint() {
+        if (mFinished) {
+            mLateUpdates++;
+        }
+    }
+
+    @Override
+    public void onMatched() {
+        fire(Event.MATCH);
+    }
+
+    @Override
+    public void onAuthenticated() {
+        if (mFinished) {
+            mLateUpdates++;
+        }
+        fire(Event.SUCCESS_SHOWN);
+    }
+
+    @Override
+    public void onError() {
+        if (mFinished) {
+            mLateUpdates++;
+        }
+        fire(Event.SENSOR_ERROR);
+    }
+}
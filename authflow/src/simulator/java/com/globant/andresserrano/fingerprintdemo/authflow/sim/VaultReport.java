@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.DecryptedEntryCache;
+import com.globant.andresserrano.fingerprintdemo.authflow.LatencyHistogram;
+import com.globant.andresserrano.fingerprintdemo.authflow.MappedRecordStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Reports read latency and memory of a {@link MappedRecordStore} of encrypted records with a
+ * {@link DecryptedEntryCache} in front, and checks that records read back intact and that the
+ * cache is wiped.
+ *
+ * <p>Records are {@code IV | AES-GCM ciphertext} under a software key, so decryption here is far
+ * cheaper than through the key store on a device; the store and cache costs are the same. Run it
+ * with {@code ./gradlew :authflow:vaultReport}, or pass options with
+ * {@code -PsimArgs="--records=100000 --reads=200000 --cache=64"}. The exit status is 1 if any
+ * check fails.
+ */
+public final class VaultReport {
+
+    private static final int PLAINTEXT_BYTES = 64;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final long CACHE_TTL_MILLIS = 200;
+
+    private VaultReport() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int records = 100000;
+        int reads = 200000;
+        int cacheEntries = 64;
+        for (String arg : args) {
+            if (arg.startsWith("--records=")) {
+                records = Integer.parseInt(arg.substring("--records=".length()));
+            } else if (arg.startsWith("--reads=")) {
+                reads = Integer.parseInt(arg.substring("--reads=".length()));
+            } else if (arg.startsWith("--cache=")) {
+                cacheEntries = Integer.parseInt(arg.substring("--cache=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        File directory = createTempDirectory();
+        File dataFile = new File(directory, "vault");
+        File indexFile = new File(directory, "vault.idx");
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        SecretKey key = keyGenerator.generateKey();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        int failures = 0;
+        try {
+            long start = System.nanoTime();
+            MappedRecordStore store = new MappedRecordStore(dataFile, indexFile);
+            SecureRandom random = new SecureRandom();
+            for (int i = 0; i < records; i++) {
+                byte[] record = encrypt(cipher, key, random, plaintextOf(i));
+                store.append(record, 0, record.length);
+            }
+            store.sync();
+            double writeSeconds = (System.nanoTime() - start) / 1e9;
+            store.close();
+            print("records=%d", records);
+            print("write_s=%.3f", writeSeconds);
+            print("data_file_bytes=%d", dataFile.length());
+            print("index_file_bytes=%d", indexFile.length());
+
+            long heapBefore = usedHeap();
+            start = System.nanoTime();
+            store = new MappedRecordStore(dataFile, indexFile);
+            double openMillis = (System.nanoTime() - start) / 1e6;
+            long heapAfterOpen = usedHeap();
+            print("open_ms=%.3f", openMillis);
+            print("heap_for_open_store_bytes=%d", Math.max(0, heapAfterOpen - heapBefore));
+            if (store.size() != records) {
+                failures++;
+            }
+
+            Random order = new Random(42);
+            LatencyHistogram raw = new LatencyHistogram("read");
+            LatencyHistogram decrypted = new LatencyHistogram("read_and_decrypt");
+            long rawNanos = 0;
+            long decryptNanos = 0;
+            int corrupted = 0;
+            for (int i = 0; i < reads; i++) {
+                int index = order.nextInt(records);
+                long t0 = System.nanoTime();
+                byte[] record = store.read(index);
+                long t1 = System.nanoTime();
+                byte[] plaintext = decrypt(cipher, key, record);
+                long t2 = System.nanoTime();
+                raw.record(t1 - t0);
+                decrypted.record(t2 - t0);
+                rawNanos += t1 - t0;
+                decryptNanos += t2 - t0;
+                if (!Arrays.equals(plaintext, plaintextOf(index))) {
+                    corrupted++;
+                }
+            }
+            print("read_mean_us=%.3f", rawNanos / 1e3 / reads);
+            print("read_p99_ms<=%.3f", raw.snapshot().getPercentileMillis(99));
+            print("read_and_decrypt_mean_us=%.3f", decryptNanos / 1e3 / reads);
+            print("read_and_decrypt_p99_ms<=%.3f", decrypted.snapshot().getPercentileMillis(99));
+            print("corrupted_records=%d", corrupted);
+            if (corrupted > 0) {
+                failures++;
+            }
+
+            VirtualScheduler scheduler = new VirtualScheduler();
+            DecryptedEntryCache cache = new DecryptedEntryCache(cacheEntries,
+                    (long) cacheEntries * PLAINTEXT_BYTES, CACHE_TTL_MILLIS, scheduler);
+            long hitNanos = 0;
+            for (int i = 0; i < reads; i++) {
+                // Mostly the same few records, the way a history screen is scrolled.
+                int index = order.nextInt(cacheEntries);
+                long t0 = System.nanoTime();
+                byte[] plaintext = cache.get(index);
+                if (plaintext == null) {
+                    plaintext = decrypt(cipher, key, store.read(index));
+                    cache.put(index, plaintext);
+                }
+                hitNanos += System.nanoTime() - t0;
+            }
+            print("cached_read_mean_us=%.3f", hitNanos / 1e3 / reads);
+            print("cache_hits=%d", cache.getHitCount());
+            print("cache_misses=%d", cache.getMissCount());
+            print("cache_plaintext_bytes=%d", cache.getBytes());
+
+            Thread.sleep(CACHE_TTL_MILLIS + 50);
+            while (scheduler.runNext()) {
+                // Sweeps until nothing is left to expire.
+            }
+            boolean expired = cache.size() == 0 && cache.getBytes() == 0;
+            print("expired_on_timeout=%b", expired);
+            cache.put(0, plaintextOf(0));
+            cache.wipe();
+            boolean wiped = cache.size() == 0 && cache.get(0) == null;
+            print("wiped=%b", wiped);
+            if (!expired || !wiped) {
+                failures++;
+            }
+            store.close();
+        } finally {
+            dataFile.delete();
+            indexFile.delete();
+            directory.delete();
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static byte[] plaintextOf(int index) {
+        byte[] plaintext = new byte[PLAINTEXT_BYTES];
+        byte[] label = ("purchase-" + index).getBytes();
+        System.arraycopy(label, 0, plaintext, 0, label.length);
+        return plaintext;
+    }
+
+    private static byte[] encrypt(Cipher cipher, SecretKey key, SecureRandom random,
+            byte[] plaintext) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_BYTES];
+        random.nextBytes(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        byte[] record = new byte[IV_BYTES + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(iv, 0, record, 0, IV_BYTES);
+        cipher.doFinal(plaintext, 0, plaintext.length, record, IV_BYTES);
+        return record;
+    }
+
+    private static byte[] decrypt(Cipher cipher, SecretKey key, byte[] record)
+            throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, record, 0, IV_BYTES));
+        return cipher.doFinal(record, IV_BYTES, record.length - IV_BYTES);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("vault", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        return directory;
+    }
+
+    private static void print(String format, Object value) {
+        System.out.println(String.format(Locale.US, format, value));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow.sim;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.Scheduler;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * A single-threaded {@link Scheduler} on a virtual clock, so simulated seconds of sensor and
+ * user activity take microseconds to run.
+ *
+ * <p>Every post is tagged with an owner, so the harness can tell runnables left behind by the
+ * code under test apart from its own.
+ */
+final class VirtualScheduler implements Scheduler {
+
+    /** Posts made through the {@link Scheduler} interface, i.e. by the code under test. */
+    static final int OWNER_FLOW = 0;
+    /** Posts of the fake sensor. */
+    static final int OWNER_SENSOR = 1;
+    /** Posts of the simulated user and app. */
+    static final int OWNER_APP = 2;
+
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<>();
+    private final int[] mPending = new int[3];
+    private long mNowMillis;
+    private long mSequence;
+
+    long nowMillis() {
+        return mNowMillis;
+    }
+
+    @Override
+    public void postDelayed(Runnable runnable, long delayMillis) {
+        post(runnable, delayMillis, OWNER_FLOW);
+    }
+
+    void post(Runnable runnable, long delayMillis, int owner) {
+        mQueue.add(new Task(mNowMillis + Math.max(0, delayMillis), mSequence++, runnable, owner));
+        mPending[owner]++;
+    }
+
+    @Override
+    public void cancel(Runnable runnable) {
+        Iterator<Task> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            Task task = iterator.next();
+            if (task.mRunnable == runnable) {
+                iterator.remove();
+                mPending[task.mOwner]--;
+            }
+        }
+    }
+
+    /**
+     * Advances the clock to the next post and runs it.
+     *
+     * @return {@code false} if nothing was pending
+     */
+    boolean runNext() {
+        Task task = mQueue.poll();
+        if (task == null) {
+            return false;
+        }
+        mPending[task.mOwner]--;
+        mNowMillis = task.mAtMillis;
+        task.mRunnable.run();
+        return true;
+    }
+
+    int getPendingCount(int owner) {
+        return mPending[owner];
+    }
+
+    void clear() {
+        mQueue.clear();
+        mPending[OWNER_FLOW] = 0;
+        mPending[OWNER_SENSOR] = 0;
+        mPending[OWNER_APP] = 0;
+    }
+
+    private static final class Task implements Comparable<Task> {
+
+        final long mAtMillis;
+        final long mSequence;
+        final Runnable mRunnable;
+        final int mOwner;
+
+        Task(long atMillis, long sequence, Runnable runnable, int owner) {
+            mAtMillis = atMillis;
+            mSequence = sequence;
+            mRunnable = runnable;
+            mOwner = owner;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mAtMillis != other.mAtMillis) {
+                return mAtMillis < other.mAtMillis ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : mSequence == other.mSequence ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small HTTP/1.1 server on the loopback interface which stands in for a backend endpoint in
+ * debug builds of the app and in load tests. Subclasses answer {@code POST}s to one path.
+ *
+ * <p>Connections are kept alive, so {@link #getConnectionCount()} shows whether clients reuse
+ * them, and an artificial latency can be added to every response.
+ *
+ * <p>Any app on the device can connect to the loopback interface, so requests are not trusted: a
+ * missing, malformed or oversized {@code Content-Length}, or a body the subclass can't parse, is
+ * answered with a 400 and only ever ends the connection it came on.
+ */
+public abstract class StandInHttpServer {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_LINE_LENGTH = 8192;
+    /** Far more than a password or a batch of purchases takes. */
+    static final int MAX_BODY_BYTES = 4 * 1024 * 1024;
+    private static final int STATUS_BAD_REQUEST = 400;
+    private static final int STATUS_NOT_FOUND = 404;
+
+    private final String mName;
+    private final String mPath;
+    private final long mLatencyMillis;
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final Set<Socket> mSockets = new HashSet<>();
+    private ExecutorService mExecutor;
+    private ServerSocket mServerSocket;
+
+    /**
+     * @param name names the server's threads
+     * @param path the only path answered, everything else is a 404
+     * @param latencyMillis how long every request is held before it is answered
+     */
+    StandInHttpServer(String name, String path, long latencyMillis) {
+        mName = name;
+        mPath = path;
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Answers a {@code POST} to the path.
+     *
+     * @param response receives the ASCII body of the response
+     * @return the status of the response
+     * @throws RuntimeException if the body is malformed, which is answered with a 400
+     */
+    abstract int respond(byte[] body, StringBuilder response);
+
+    /**
+     * @return the reason phrase of a status {@link #respond} returns
+     */
+    abstract String reason(int status);
+
+    /**
+     * Starts listening on an ephemeral port.
+     *
+     * @return the URL of the path
+     */
+    public synchronized URL start() throws IOException {
+        if (mServerSocket != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, mName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final ServerSocket serverSocket = mServerSocket;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(serverSocket);
+            }
+        });
+        return getUrl();
+    }
+
+    public synchronized URL getUrl() {
+        try {
+            return new URL("http", "127.0.0.1", mServerSocket.getLocalPort(), mPath);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Closes the server and every open connection.
+     */
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        closeQuietly(mServerSocket);
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                closeQuietly(socket);
+            }
+            mSockets.clear();
+        }
+        mExecutor.shutdownNow();
+        mServerSocket = null;
+    }
+
+    /**
+     * @return the number of connections accepted so far
+     */
+    public long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    /**
+     * @return the number of requests answered so far
+     */
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mConnections.incrementAndGet();
+            synchronized (mSockets) {
+                mSockets.add(socket);
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException e) {
+                        // The client went away.
+                    } catch (RuntimeException e) {
+                        // A bug, or a client we don't understand; it only costs the connection.
+                    } finally {
+                        synchronized (mSockets) {
+                            mSockets.remove(socket);
+                        }
+                        closeQuietly(socket);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Answers requests on one connection until the client closes it or asks to.
+     */
+    private void serve(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            int contentLength = 0;
+            boolean close = false;
+            String header;
+            while ((header = readLine(in)) != null && !header.isEmpty()) {
+                String lower = header.toLowerCase(Locale.US);
+                if (lower.startsWith("content-length:")) {
+                    contentLength = parseContentLength(lower.substring(15).trim());
+                } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                    close = true;
+                }
+            }
+            if (header == null) {
+                return;
+            }
+            if (contentLength < 0) {
+                // Without a length the body can't be skipped, so the connection is done.
+                write(out, STATUS_BAD_REQUEST, "Bad Request", "", true);
+                return;
+            }
+            byte[] body = new byte[contentLength];
+            new DataInputStream(in).readFully(body);
+            if (mLatencyMillis > 0) {
+                try {
+                    Thread.sleep(mLatencyMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            StringBuilder response = new StringBuilder();
+            int status;
+            String reason;
+            if (requestLine.startsWith("POST " + mPath + " ")) {
+                try {
+                    status = respond(body, response);
+                    reason = reason(status);
+                } catch (RuntimeException e) {
+                    response.setLength(0);
+                    status = STATUS_BAD_REQUEST;
+                    reason = "Bad Request";
+                }
+            } else {
+                status = STATUS_NOT_FOUND;
+                reason = "Not Found";
+            }
+            mRequests.incrementAndGet();
+            write(out, status, reason, response, close);
+            if (close) {
+                return;
+            }
+        }
+    }
+
+    private static void write(OutputStream out, int status, String reason, CharSequence body,
+            boolean close) throws IOException {
+        // One write, so Nagle's algorithm never holds back the body.
+        out.write(("HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Length: " + body.length() + "\r\n"
+                + (close ? "Connection: close\r\n" : "")
+                + "\r\n" + body).getBytes(ASCII));
+        out.flush();
+    }
+
+    /**
+     * @return the length, or -1 if it isn't a number between 0 and {@link #MAX_BODY_BYTES}
+     */
+    private static int parseContentLength(String value) {
+        if (value.isEmpty() || value.length() > 10) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length <= MAX_BODY_BYTES ? (int) length : -1;
+    }
+
+    /**
+     * @return the next CRLF terminated line without its terminator, or {@code null} at the end
+     * of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Line too long");
+            }
+            line.append((char) c);
+        }
+        return null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do.
+        }
+    }
+}
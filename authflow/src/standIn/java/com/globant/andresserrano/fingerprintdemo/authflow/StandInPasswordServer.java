@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+/**
+ * Answers {@link PasswordVerifier} requests, standing in for the backend in debug builds and in
+ * load tests. Like the dialog always assumed, any non-empty password is accepted.
+ */
+public final class StandInPasswordServer extends StandInHttpServer {
+
+    public static final String PATH = "/verify-password";
+
+    /**
+     * @param latencyMillis how long every request is held before it is answered
+     */
+    public StandInPasswordServer(long latencyMillis) {
+        super("stand-in-password-server", PATH, latencyMillis);
+    }
+
+    @Override
+    int respond(byte[] body, StringBuilder response) {
+        return body.length > 0
+                ? PasswordVerifier.STATUS_ACCEPTED : PasswordVerifier.STATUS_REJECTED;
+    }
+
+    @Override
+    String reason(int status) {
+        return status == PasswordVerifier.STATUS_ACCEPTED ? "OK" : "Unauthorized";
+    }
+}
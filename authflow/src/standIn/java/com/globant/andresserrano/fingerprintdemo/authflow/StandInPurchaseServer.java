@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Takes {@link PurchaseOutbox} deliveries, standing in for the backend in debug builds and in
+ * load tests. Purchases are deduplicated by idempotency key and otherwise dropped; the response
+ * body is {@code <accepted> <duplicates>}. {@link #setAvailable(boolean)} simulates an outage.
+ */
+public final class StandInPurchaseServer extends StandInHttpServer {
+
+    public static final String PATH = "/purchases";
+
+    private static final int STATUS_BAD_REQUEST = 400;
+    private static final int STATUS_UNAVAILABLE = 503;
+
+    private final Set<String> mKeys = new HashSet<>();
+    private volatile boolean mAvailable = true;
+    private long mReceivedCount;
+    private long mDuplicateCount;
+
+    /**
+     * @param latencyMillis how long every request is held before it is answered
+     */
+    public StandInPurchaseServer(long latencyMillis) {
+        super("stand-in-purchase-server", PATH, latencyMillis);
+    }
+
+    /**
+     * Answers every delivery with 503 while {@code false}.
+     */
+    public void setAvailable(boolean available) {
+        mAvailable = available;
+    }
+
+    @Override
+    int respond(byte[] body, StringBuilder response) {
+        if (!mAvailable) {
+            return STATUS_UNAVAILABLE;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int accepted = 0;
+        int duplicates = 0;
+        try {
+            synchronized (this) {
+                while (in.available() > 0) {
+                    byte[] key = new byte[in.readUnsignedShort()];
+                    in.readFully(key);
+                    int payloadLength = in.readInt();
+                    if (payloadLength < 0 || in.skipBytes(payloadLength) != payloadLength) {
+                        return STATUS_BAD_REQUEST;
+                    }
+                    mReceivedCount++;
+                    if (mKeys.add(new String(key, "UTF-8"))) {
+                        accepted++;
+                    } else {
+                        mDuplicateCount++;
+                        duplicates++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            return STATUS_BAD_REQUEST;
+        }
+        response.append(accepted).append(' ').append(duplicates);
+        return PurchaseOutbox.STATUS_ACCEPTED;
+    }
+
+    @Override
+    String reason(int status) {
+        switch (status) {
+            case PurchaseOutbox.STATUS_ACCEPTED:
+                return "OK";
+            case STATUS_UNAVAILABLE:
+                return "Service Unavailable";
+            default:
+                return "Bad Request";
+        }
+    }
+
+    /**
+     * @return the purchases received, duplicates included
+     */
+    public synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return the distinct purchases received
+     */
+    public synchronized long getUniqueCount() {
+        return mKeys.size();
+    }
+
+    /**
+     * @return the purchases received again under a known idempotency key
+     */
+    public synchronized long getDuplicateCount() {
+        return mDuplicateCount;
+    }
+}
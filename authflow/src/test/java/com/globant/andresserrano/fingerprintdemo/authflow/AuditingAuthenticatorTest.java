@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class AuditingAuthenticatorTest {
+
+    private File mDirectory;
+    private AuditLog mLog;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("audit", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("Failed to create " + mDirectory);
+        }
+        mLog = new AuditLog(mDirectory, 64, 4096, 4, 1000, Executors.defaultThreadFactory());
+    }
+
+    @After
+    public void tearDown() {
+        mLog.close();
+        for (File file : AuditLogReader.listSegments(mDirectory)) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void constructor_withoutLog_failsRightAway() {
+        // What a dialog bound before it is attached would do if it had no log yet.
+        new AuditingAuthenticator<>(new CapturingAuthenticator(), null);
+    }
+
+    @Test
+    public void callbacks_afterBindingAheadOfSession_areRecordedAndPassedOn() throws IOException {
+        // Bound ahead of time, like a preinflated dialog, and shown later.
+        CapturingAuthenticator sensor = new CapturingAuthenticator();
+        Authenticator<Object> authenticator = new AuditingAuthenticator<>(sensor, mLog);
+        int session = mLog.beginSession();
+        RecordingListener listener = new RecordingListener();
+        authenticator.authenticate(null, listener);
+
+        sensor.mListener.onHelp(5, "Too fast");
+        sensor.mListener.onFailed();
+        sensor.mListener.onError(7, "Lockout");
+        sensor.mListener.onSucceeded();
+        mLog.close();
+
+        List<AuditLogReader.Record> records = AuditLogReader.readAll(mDirectory);
+        assertEquals(4, records.size());
+        assertRecord(records.get(0), session, AuditLog.Event.FINGERPRINT_HELP, 5);
+        assertRecord(records.get(1), session, AuditLog.Event.FINGERPRINT_FAILED, 0);
+        assertRecord(records.get(2), session, AuditLog.Event.FINGERPRINT_ERROR, 7);
+        assertRecord(records.get(3), session, AuditLog.Event.FINGERPRINT_SUCCEEDED, 0);
+        assertEquals("help 5, failed, error 7, succeeded", listener.toString());
+    }
+
+    private static void assertRecord(AuditLogReader.Record record, int session,
+            AuditLog.Event event, int code) {
+        assertEquals(session, record.getSession());
+        assertEquals(event, record.getEvent());
+        assertEquals(AuditLog.NO_STATE, record.getState());
+        assertEquals(code, record.getCode());
+    }
+
+    private static final class CapturingAuthenticator implements Authenticator<Object> {
+
+        private Listener mListener;
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public Cancellable authenticate(Object cryptoObject, Listener listener) {
+            mListener = listener;
+            return new Cancellable() {
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+    }
+
+    private static final class RecordingListener implements Authenticator.Listener {
+
+        private final List<String> mCalls = new ArrayList<>();
+
+        @Override
+        public void onError(int errorCode, CharSequence message) {
+            mCalls.add("error " + errorCode);
+        }
+
+        @Override
+        public void onHelp(int helpCode, CharSequence message) {
+            mCalls.add("help " + helpCode);
+        }
+
+        @Override
+        public void onFailed() {
+            mCalls.add("failed");
+        }
+
+        @Override
+        public void onSucceeded() {
+            mCalls.add("succeeded");
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder calls = new StringBuilder();
+            for (String call : mCalls) {
+                calls.append(calls.length() > 0 ? ", " : "").append(call);
+            }
+            return calls.toString();
+        }
+    }
+}
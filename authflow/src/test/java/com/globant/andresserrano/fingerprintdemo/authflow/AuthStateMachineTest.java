@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.Event;
+import com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.State;
+
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.ACTION_DISMISS;
+import static com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.ACTION_SAVE_ENROLLMENT_CHOICE;
+import static com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.ACTION_SHOW_FINGERPRINT;
+import static com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.ACTION_SHOW_PASSWORD;
+import static com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.ACTION_SIGN_IN_WITH_PASSWORD;
+import static com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.ACTION_START_FINGERPRINT_WORK;
+import static com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.ACTION_START_LISTENING;
+import static com.globant.andresserrano.fingerprintdemo.authflow.AuthStateMachine.ACTION_STOP_LISTENING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AuthStateMachineTest {
+
+    private static final int SWITCH_TO_PASSWORD = ACTION_STOP_LISTENING | ACTION_SHOW_PASSWORD;
+
+    /** The transitions both modes share: state, event, next state, actions. */
+    private static final Object[][] COMMON = {
+            {State.FINGERPRINT, Event.VIEW_CREATED, State.FINGERPRINT, ACTION_SHOW_FINGERPRINT},
+            {State.FINGERPRINT, Event.RESUME, State.FINGERPRINT, ACTION_START_LISTENING},
+            {State.FINGERPRINT, Event.FINGERPRINT_UNAVAILABLE, State.PASSWORD,
+                    SWITCH_TO_PASSWORD},
+            {State.FINGERPRINT, Event.USE_PASSWORD, State.PASSWORD, SWITCH_TO_PASSWORD},
+            {State.FINGERPRINT, Event.SENSOR_ERROR, State.PASSWORD, SWITCH_TO_PASSWORD},
+            {State.FINGERPRINT, Event.CANCEL, State.CANCELLED,
+                    ACTION_STOP_LISTENING | ACTION_DISMISS},
+            {State.PASSWORD, Event.VIEW_CREATED, State.PASSWORD, ACTION_SHOW_PASSWORD},
+            {State.PASSWORD, Event.PASSWORD_ACCEPTED, State.DONE,
+                    ACTION_SIGN_IN_WITH_PASSWORD | ACTION_DISMISS},
+            {State.PASSWORD, Event.CANCEL, State.CANCELLED, ACTION_DISMISS},
+            {State.NEW_FINGERPRINT_ENROLLED, Event.VIEW_CREATED, State.NEW_FINGERPRINT_ENROLLED,
+                    ACTION_SHOW_PASSWORD},
+            {State.NEW_FINGERPRINT_ENROLLED, Event.PASSWORD_ACCEPTED, State.DONE,
+                    ACTION_SAVE_ENROLLMENT_CHOICE | ACTION_SIGN_IN_WITH_PASSWORD
+                            | ACTION_DISMISS},
+            {State.NEW_FINGERPRINT_ENROLLED, Event.CANCEL, State.CANCELLED, ACTION_DISMISS},
+            {State.MATCHED, Event.CANCEL, State.CANCELLED, ACTION_DISMISS},
+    };
+
+    private static final Object[][] SEQUENTIAL = {
+            {State.FINGERPRINT, Event.MATCH, State.MATCHED, 0},
+            {State.MATCHED, Event.SUCCESS_SHOWN, State.DONE,
+                    ACTION_START_FINGERPRINT_WORK | ACTION_DISMISS},
+            {State.MATCHED, Event.RESUME, State.DONE,
+                    ACTION_START_FINGERPRINT_WORK | ACTION_DISMISS},
+    };
+
+    private static final Object[][] PIPELINED = {
+            {State.FINGERPRINT, Event.MATCH, State.MATCHED, ACTION_START_FINGERPRINT_WORK},
+            {State.MATCHED, Event.SUCCESS_SHOWN, State.AWAITING_WORK, 0},
+            {State.MATCHED, Event.RESUME, State.AWAITING_WORK, 0},
+            {State.MATCHED, Event.WORK_DONE, State.AWAITING_SUCCESS_SHOWN, 0},
+            {State.AWAITING_WORK, Event.WORK_DONE, State.DONE, ACTION_DISMISS},
+            {State.AWAITING_WORK, Event.CANCEL, State.CANCELLED, ACTION_DISMISS},
+            {State.AWAITING_SUCCESS_SHOWN, Event.SUCCESS_SHOWN, State.DONE, ACTION_DISMISS},
+            {State.AWAITING_SUCCESS_SHOWN, Event.RESUME, State.DONE, ACTION_DISMISS},
+            {State.AWAITING_SUCCESS_SHOWN, Event.CANCEL, State.CANCELLED, ACTION_DISMISS},
+    };
+
+    @Test
+    public void sequential_everyStateAndEvent_matchesTheTable() {
+        checkTable(false, EnumSet.complementOf(
+                EnumSet.of(State.AWAITING_WORK, State.AWAITING_SUCCESS_SHOWN)));
+    }
+
+    @Test
+    public void pipelined_everyStateAndEvent_matchesTheTable() {
+        checkTable(true, EnumSet.allOf(State.class));
+    }
+
+    @Test
+    public void constructor_acceptsOnlyTheStartStates() {
+        EnumSet<State> starts = EnumSet.of(
+                State.FINGERPRINT, State.PASSWORD, State.NEW_FINGERPRINT_ENROLLED);
+        for (State state : State.values()) {
+            for (boolean pipelined : new boolean[] {false, true}) {
+                try {
+                    AuthStateMachine machine = new AuthStateMachine(state, pipelined);
+                    assertTrue("Started in " + state, starts.contains(state));
+                    assertEquals(state, machine.getState());
+                    assertEquals(pipelined, machine.isPipelined());
+                } catch (IllegalArgumentException e) {
+                    assertFalse("Rejected " + state, starts.contains(state));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sequential_match_startsTheWorkOnlyAfterTheSuccessIsShown() {
+        AuthStateMachine machine = new AuthStateMachine(State.FINGERPRINT, false);
+
+        assertEquals(ACTION_SHOW_FINGERPRINT, machine.fire(Event.VIEW_CREATED));
+        assertEquals(ACTION_START_LISTENING, machine.fire(Event.RESUME));
+        assertEquals(0, machine.fire(Event.MATCH));
+        assertEquals(0, machine.fire(Event.WORK_DONE));
+        assertEquals(State.MATCHED, machine.getState());
+        assertEquals(ACTION_START_FINGERPRINT_WORK | ACTION_DISMISS,
+                machine.fire(Event.SUCCESS_SHOWN));
+        assertEquals(State.DONE, machine.getState());
+    }
+
+    @Test
+    public void pipelined_workFinishingFirst_dismissesWhenTheSuccessIsShown() {
+        AuthStateMachine machine = new AuthStateMachine(State.FINGERPRINT, true);
+
+        assertEquals(ACTION_START_FINGERPRINT_WORK, machine.fire(Event.MATCH));
+        assertEquals(0, machine.fire(Event.WORK_DONE));
+        assertEquals(0, machine.fire(Event.MATCH));
+        assertEquals(ACTION_DISMISS, machine.fire(Event.SUCCESS_SHOWN));
+        assertEquals(State.DONE, machine.getState());
+    }
+
+    @Test
+    public void pipelined_successShownFirst_dismissesWhenTheWorkIsDone() {
+        AuthStateMachine machine = new AuthStateMachine(State.FINGERPRINT, true);
+
+        assertEquals(ACTION_START_FINGERPRINT_WORK, machine.fire(Event.MATCH));
+        assertEquals(0, machine.fire(Event.SUCCESS_SHOWN));
+        assertEquals(0, machine.fire(Event.SUCCESS_SHOWN));
+        assertEquals(ACTION_DISMISS, machine.fire(Event.WORK_DONE));
+        assertEquals(State.DONE, machine.getState());
+    }
+
+    @Test
+    public void pausedDuringTheSuccessHold_resumeEndsTheHold() {
+        for (boolean pipelined : new boolean[] {false, true}) {
+            AuthStateMachine machine = new AuthStateMachine(State.FINGERPRINT, pipelined);
+            machine.fire(Event.MATCH);
+
+            assertEquals(ACTION_STOP_LISTENING, machine.fire(Event.PAUSE));
+            machine.fire(Event.RESUME);
+            if (pipelined) {
+                assertEquals(State.AWAITING_WORK, machine.getState());
+                assertEquals(ACTION_DISMISS, machine.fire(Event.WORK_DONE));
+            }
+            assertEquals(State.DONE, machine.getState());
+        }
+    }
+
+    @Test
+    public void newEnrollment_requiresThePasswordAndSavesTheChoice() {
+        for (boolean pipelined : new boolean[] {false, true}) {
+            AuthStateMachine machine =
+                    new AuthStateMachine(State.NEW_FINGERPRINT_ENROLLED, pipelined);
+
+            assertEquals(ACTION_SHOW_PASSWORD, machine.fire(Event.VIEW_CREATED));
+            assertEquals(0, machine.fire(Event.RESUME));
+            assertEquals(0, machine.fire(Event.MATCH));
+            assertEquals(0, machine.fire(Event.USE_PASSWORD));
+            assertEquals(State.NEW_FINGERPRINT_ENROLLED, machine.getState());
+            assertEquals(ACTION_SAVE_ENROLLMENT_CHOICE | ACTION_SIGN_IN_WITH_PASSWORD
+                    | ACTION_DISMISS, machine.fire(Event.PASSWORD_ACCEPTED));
+            assertEquals(State.DONE, machine.getState());
+        }
+    }
+
+    @Test
+    public void lateMatchOnThePasswordScreen_isIgnored() {
+        AuthStateMachine machine = new AuthStateMachine(State.FINGERPRINT, true);
+        assertEquals(SWITCH_TO_PASSWORD, machine.fire(Event.USE_PASSWORD));
+
+        assertEquals(0, machine.fire(Event.MATCH));
+        assertEquals(0, machine.fire(Event.WORK_DONE));
+        assertEquals(State.PASSWORD, machine.getState());
+    }
+
+    @Test
+    public void finishedDialogs_ignoreEverythingButPause() {
+        for (State end : new State[] {State.DONE, State.CANCELLED}) {
+            AuthStateMachine machine = machineIn(end, true);
+            for (Event event : Event.values()) {
+                int expected = event == Event.PAUSE ? ACTION_STOP_LISTENING : 0;
+                assertEquals(end + " " + event, expected, machine.fire(event));
+                assertEquals(end, machine.getState());
+            }
+        }
+    }
+
+    private static void checkTable(boolean pipelined, EnumSet<State> states) {
+        Object[][] specific = pipelined ? PIPELINED : SEQUENTIAL;
+        for (State state : states) {
+            for (Event event : Event.values()) {
+                Object[] row = find(specific, state, event);
+                if (row == null) {
+                    row = find(COMMON, state, event);
+                }
+                State expectedState = row != null ? (State) row[2] : state;
+                int expectedActions = row != null ? (Integer) row[3]
+                        : event == Event.PAUSE ? ACTION_STOP_LISTENING : 0;
+
+                AuthStateMachine machine = machineIn(state, pipelined);
+                String transition = (pipelined ? "pipelined " : "sequential ") + state + " "
+                        + event;
+                assertEquals(transition, expectedActions, machine.fire(event));
+                assertEquals(transition, expectedState, machine.getState());
+            }
+        }
+    }
+
+    private static Object[] find(Object[][] table, State state, Event event) {
+        for (Object[] row : table) {
+            if (row[0] == state && row[1] == event) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drives a new machine into {@code state} through its public events.
+     */
+    private static AuthStateMachine machineIn(State state, boolean pipelined) {
+        AuthStateMachine machine;
+        switch (state) {
+            case FINGERPRINT:
+            case PASSWORD:
+            case NEW_FINGERPRINT_ENROLLED:
+                return new AuthStateMachine(state, pipelined);
+            case MATCHED:
+                machine = new AuthStateMachine(State.FINGERPRINT, pipelined);
+                machine.fire(Event.MATCH);
+                break;
+            case AWAITING_WORK:
+                machine = machineIn(State.MATCHED, pipelined);
+                machine.fire(Event.SUCCESS_SHOWN);
+                break;
+            case AWAITING_SUCCESS_SHOWN:
+                machine = machineIn(State.MATCHED, pipelined);
+                machine.fire(Event.WORK_DONE);
+                break;
+            case DONE:
+                machine = new AuthStateMachine(State.PASSWORD, pipelined);
+                machine.fire(Event.PASSWORD_ACCEPTED);
+                break;
+            case CANCELLED:
+                machine = new AuthStateMachine(State.FINGERPRINT, pipelined);
+                machine.fire(Event.CANCEL);
+                break;
+            default:
+                fail("Unknown state " + state);
+                return null;
+        }
+        assertEquals(state, machine.getState());
+        return machine;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import com.sun.management.ThreadMXBean;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkedCipherTest {
+
+    private static final SecretKey KEY = new SecretKeySpec(new byte[16], "AES");
+    private static final byte[] IV = new byte[16];
+    private static final int[] CHUNK_SIZES = {1, 16, 1000, 4096};
+    private static final int[] PAYLOAD_SIZES = {0, 1, 15, 16, 4095, 4096, 10000};
+    private static final int LARGE_PAYLOAD_SIZE = 8 * 1024 * 1024;
+    private static final int LARGE_CHUNK_SIZE = 16 * 1024;
+    private static final long MAX_ALLOCATION_PER_PAYLOAD_BYTE = 16;
+
+    @Test
+    public void cbc_matchesOneShotAndRoundTrips() throws Exception {
+        for (int chunkSize : CHUNK_SIZES) {
+            for (int payloadSize : PAYLOAD_SIZES) {
+                check("AES/CBC/PKCS5Padding", chunkSize, payloadSize, false);
+                check("AES/CBC/PKCS5Padding", chunkSize, payloadSize, true);
+            }
+        }
+    }
+
+    @Test
+    public void gcm_matchesOneShotAndRoundTrips() throws Exception {
+        for (int chunkSize : CHUNK_SIZES) {
+            for (int payloadSize : PAYLOAD_SIZES) {
+                check("AES/GCM/NoPadding", chunkSize, payloadSize, false);
+                check("AES/GCM/NoPadding", chunkSize, payloadSize, true);
+            }
+        }
+    }
+
+    @Test
+    public void gcm_decryptingLargeStream_allocatesLinearly() throws Exception {
+        if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean)) {
+            return;
+        }
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        byte[] payload = new byte[LARGE_PAYLOAD_SIZE];
+        new Random(LARGE_PAYLOAD_SIZE).nextBytes(payload);
+        byte[] ciphertext = init("AES/GCM/NoPadding", Cipher.ENCRYPT_MODE).doFinal(payload);
+        CountingOutputStream out = new CountingOutputStream();
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        new ChunkedCipher(LARGE_CHUNK_SIZE).transform(init("AES/GCM/NoPadding",
+                Cipher.DECRYPT_MODE), new ByteArrayInputStream(ciphertext), out);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(LARGE_PAYLOAD_SIZE, out.mCount);
+        // The provider buffers the whole ciphertext, so allocation is linear in its size.
+        // Growing the output buffer from getOutputSize on every chunk was quadratic instead.
+        assertTrue("Allocated " + allocated + " bytes",
+                allocated < MAX_ALLOCATION_PER_PAYLOAD_BYTE * LARGE_PAYLOAD_SIZE);
+    }
+
+    private static void check(String transformation, int chunkSize, int payloadSize,
+            boolean channels) throws Exception {
+        byte[] payload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(payload);
+        ChunkedCipher chunked = new ChunkedCipher(chunkSize);
+
+        byte[] expected = init(transformation, Cipher.ENCRYPT_MODE).doFinal(payload);
+        byte[] ciphertext = run(chunked, init(transformation, Cipher.ENCRYPT_MODE), payload,
+                channels);
+        assertArrayEquals(expected, ciphertext);
+
+        byte[] plaintext = run(chunked, init(transformation, Cipher.DECRYPT_MODE), ciphertext,
+                channels);
+        assertArrayEquals(payload, plaintext);
+    }
+
+    private static byte[] run(ChunkedCipher chunked, Cipher cipher, byte[] input,
+            boolean channels) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long read;
+        if (channels) {
+            read = chunked.transform(cipher, Channels.newChannel(new ByteArrayInputStream(input)),
+                    Channels.newChannel(out));
+        } else {
+            read = chunked.transform(cipher, new ByteArrayInputStream(input), out);
+        }
+        assertEquals(input.length, read);
+        return out.toByteArray();
+    }
+
+    private static Cipher init(String transformation, int mode) throws Exception {
+        Cipher cipher = Cipher.getInstance(transformation);
+        if (transformation.contains("GCM")) {
+            cipher.init(mode, KEY, new GCMParameterSpec(128, IV, 0, 12));
+        } else {
+            cipher.init(mode, KEY, new IvParameterSpec(IV));
+        }
+        return cipher;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MerkleTreeTest {
+
+    private static final int MAX_LEAVES = 17;
+
+    @Test
+    public void proofs_forEveryLeafOfEverySize_verify() {
+        for (int size = 1; size <= MAX_LEAVES; size++) {
+            List<byte[]> payloads = payloads(size);
+            MerkleTree tree = new MerkleTree(payloads);
+            byte[] root = tree.getRoot();
+            assertEquals(size, tree.size());
+            for (int i = 0; i < size; i++) {
+                MerkleTree.Proof proof = tree.getProof(i);
+                assertEquals(i, proof.getLeafIndex());
+                assertTrue("leaf " + i + " of " + size, proof.verify(payloads.get(i), root));
+            }
+        }
+    }
+
+    @Test
+    public void singleLeaf_rootIsTheLeafHash_andProofIsEmpty() throws Exception {
+        byte[] payload = "only".getBytes("UTF-8");
+        MerkleTree tree = new MerkleTree(Collections.singletonList(payload));
+
+        assertArrayEquals(sha256((byte) 0, payload), tree.getRoot());
+        assertEquals(0, tree.getProof(0).length());
+        assertTrue(tree.getProof(0).verify(payload, tree.getRoot()));
+    }
+
+    @Test
+    public void oddLeafCount_lastLeafIsPromotedWithShorterProof() {
+        MerkleTree tree = new MerkleTree(payloads(5));
+
+        assertEquals(3, tree.getProof(0).length());
+        assertEquals(1, tree.getProof(4).length());
+    }
+
+    @Test
+    public void tamperedPayload_failsForEveryLeaf() {
+        for (int size = 1; size <= MAX_LEAVES; size++) {
+            List<byte[]> payloads = payloads(size);
+            MerkleTree tree = new MerkleTree(payloads);
+            for (int i = 0; i < size; i++) {
+                byte[] tampered = payloads.get(i).clone();
+                tampered[0] ^= 1;
+                assertFalse(tree.getProof(i).verify(tampered, tree.getRoot()));
+            }
+        }
+    }
+
+    @Test
+    public void payloadOfAnotherLeaf_fails() {
+        List<byte[]> payloads = payloads(4);
+        MerkleTree tree = new MerkleTree(payloads);
+
+        assertFalse(tree.getProof(0).verify(payloads.get(1), tree.getRoot()));
+    }
+
+    @Test
+    public void tamperedSibling_fails() {
+        List<byte[]> payloads = payloads(2);
+        MerkleTree tree = new MerkleTree(payloads);
+        byte[] sibling = sha256((byte) 0, payloads.get(1));
+
+        MerkleTree.Proof honest = new MerkleTree.Proof(0, new byte[][] {sibling},
+                new boolean[] {false});
+        assertTrue(honest.verify(payloads.get(0), tree.getRoot()));
+
+        byte[] tampered = sibling.clone();
+        tampered[tampered.length - 1] ^= 1;
+        MerkleTree.Proof forged = new MerkleTree.Proof(0, new byte[][] {tampered},
+                new boolean[] {false});
+        assertFalse(forged.verify(payloads.get(0), tree.getRoot()));
+
+        MerkleTree.Proof swapped = new MerkleTree.Proof(0, new byte[][] {sibling},
+                new boolean[] {true});
+        assertFalse(swapped.verify(payloads.get(0), tree.getRoot()));
+    }
+
+    @Test
+    public void wrongRoot_fails() {
+        List<byte[]> payloads = payloads(3);
+        byte[] otherRoot = new MerkleTree(payloads(4)).getRoot();
+
+        assertFalse(new MerkleTree(payloads).getProof(1).verify(payloads.get(1), otherRoot));
+    }
+
+    @Test
+    public void leafHash_isNotAcceptedAsInnerNode() {
+        List<byte[]> payloads = payloads(2);
+        MerkleTree tree = new MerkleTree(payloads);
+        byte[] left = sha256((byte) 0, payloads.get(0));
+        byte[] right = sha256((byte) 0, payloads.get(1));
+        byte[] concatenated = new byte[left.length + right.length];
+        System.arraycopy(left, 0, concatenated, 0, left.length);
+        System.arraycopy(right, 0, concatenated, left.length, right.length);
+
+        assertFalse(new MerkleTree.Proof(0, new byte[0][], new boolean[0])
+                .verify(concatenated, tree.getRoot()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyTree_isRejected() {
+        new MerkleTree(new ArrayList<byte[]>());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void proofPastTheLastLeaf_isRejected() {
+        new MerkleTree(payloads(3)).getProof(3);
+    }
+
+    static List<byte[]> payloads(int count) {
+        List<byte[]> payloads = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            payloads.add(("item-" + i).getBytes());
+        }
+        return payloads;
+    }
+
+    private static byte[] sha256(byte prefix, byte[] payload) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(prefix);
+            digest.update(payload);
+            return digest.digest();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
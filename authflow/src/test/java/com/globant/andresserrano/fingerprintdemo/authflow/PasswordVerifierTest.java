@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PasswordVerifierTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void unexpectedException_isReportedAndForgotten() throws Exception {
+        final AtomicInteger connections = new AtomicInteger();
+        URL endpoint = new URL(null, "http://127.0.0.1/verify-password", new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL url) {
+                connections.incrementAndGet();
+                throw new IllegalStateException("No network stack");
+            }
+        });
+        PasswordVerifier verifier = new PasswordVerifier(endpoint, mExecutor, DIRECT, 1000, 1000);
+
+        ErrorCallback first = new ErrorCallback();
+        verifier.verify("secret", first);
+        assertTrue(first.await());
+        assertEquals(0, verifier.getPendingCount());
+
+        // A new request rather than joining the one which died.
+        ErrorCallback second = new ErrorCallback();
+        verifier.verify("secret", second);
+        assertTrue(second.await());
+        assertEquals(2, connections.get());
+        assertEquals(0, verifier.getPendingCount());
+    }
+
+    @Test
+    public void acceptedPassword_isReported() throws Exception {
+        StandInPasswordServer server = new StandInPasswordServer(0);
+        try {
+            PasswordVerifier verifier =
+                    new PasswordVerifier(server.start(), mExecutor, DIRECT, 1000, 1000);
+            final CountDownLatch verified = new CountDownLatch(1);
+            verifier.verify("secret", new PasswordVerifier.Callback() {
+                @Override
+                public void onVerified(boolean accepted) {
+                    if (accepted) {
+                        verified.countDown();
+                    }
+                }
+
+                @Override
+                public void onError(IOException e) {
+                }
+            });
+            assertTrue(verified.await(5, TimeUnit.SECONDS));
+            assertEquals(0, verifier.getPendingCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static final class ErrorCallback implements PasswordVerifier.Callback {
+
+        private final CountDownLatch mError = new CountDownLatch(1);
+
+        @Override
+        public void onVerified(boolean accepted) {
+        }
+
+        @Override
+        public void onError(IOException e) {
+            mError.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mError.await(5, TimeUnit.SECONDS);
+        }
+    }
+}
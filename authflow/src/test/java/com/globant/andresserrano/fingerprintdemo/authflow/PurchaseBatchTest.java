@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PurchaseBatchTest {
+
+    private KeyPair mKeyPair;
+    private BatchVerifier mVerifier;
+
+    @Before
+    public void setUp() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        mKeyPair = generator.generateKeyPair();
+        mVerifier = new BatchVerifier(mKeyPair.getPublic());
+    }
+
+    @Test
+    public void signedBatch_verifiesAndClearsTheBatch() throws GeneralSecurityException {
+        PurchaseBatch batch = batchOf(5);
+
+        PurchaseBatch.SignedBatch signed = batch.sign(newSigner());
+
+        assertEquals(0, batch.size());
+        assertEquals(5, signed.getEntries().size());
+        assertTrue(mVerifier.verify(signed));
+        for (PurchaseBatch.SignedBatch.Entry entry : signed.getEntries()) {
+            assertTrue(mVerifier.verify(entry.getPayload(), entry.getProof(), signed.getRoot(),
+                    signed.getSignature()));
+        }
+    }
+
+    @Test
+    public void singleItemBatch_verifies() throws GeneralSecurityException {
+        PurchaseBatch.SignedBatch signed = batchOf(1).sign(newSigner());
+
+        assertEquals(0, signed.getEntries().get(0).getProof().length());
+        assertTrue(mVerifier.verify(signed));
+    }
+
+    @Test
+    public void tamperedPayload_fails() throws GeneralSecurityException {
+        PurchaseBatch.SignedBatch signed = batchOf(3).sign(newSigner());
+        PurchaseBatch.SignedBatch.Entry entry = signed.getEntries().get(2);
+        byte[] tampered = entry.getPayload();
+        tampered[0] ^= 1;
+
+        assertFalse(mVerifier.verify(tampered, entry.getProof(), signed.getRoot(),
+                signed.getSignature()));
+    }
+
+    @Test
+    public void tamperedSignature_fails() throws GeneralSecurityException {
+        PurchaseBatch.SignedBatch signed = batchOf(3).sign(newSigner());
+        byte[] signature = signed.getSignature();
+        signature[signature.length - 1] ^= 1;
+
+        assertFalse(mVerifier.verifyRoot(signed.getRoot(), signature));
+    }
+
+    @Test
+    public void tamperedRoot_fails() throws GeneralSecurityException {
+        PurchaseBatch.SignedBatch signed = batchOf(3).sign(newSigner());
+        byte[] root = signed.getRoot();
+        root[0] ^= 1;
+
+        assertFalse(mVerifier.verifyRoot(root, signed.getSignature()));
+    }
+
+    @Test
+    public void otherKey_fails() throws GeneralSecurityException {
+        PurchaseBatch.SignedBatch signed = batchOf(3).sign(newSigner());
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+
+        assertFalse(new BatchVerifier(generator.generateKeyPair().getPublic()).verify(signed));
+    }
+
+    @Test
+    public void entriesAreCopies_soCallersCannotTamperWithTheBatch()
+            throws GeneralSecurityException {
+        PurchaseBatch.SignedBatch signed = batchOf(2).sign(newSigner());
+        signed.getEntries().get(0).getPayload()[0] ^= 1;
+        signed.getRoot()[0] ^= 1;
+
+        assertTrue(mVerifier.verify(signed));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void emptyBatch_isRejected() throws GeneralSecurityException {
+        new PurchaseBatch().sign(newSigner());
+    }
+
+    @Test
+    public void failedSignature_keepsThePendingPurchases() throws GeneralSecurityException {
+        PurchaseBatch batch = batchOf(2);
+        Signature uninitialized = Signature.getInstance(PurchaseBatch.SIGNATURE_ALGORITHM);
+
+        try {
+            batch.sign(uninitialized);
+        } catch (GeneralSecurityException expected) {
+            assertEquals(2, batch.size());
+            return;
+        }
+        fail("An uninitialized signature must not sign");
+    }
+
+    private Signature newSigner() throws GeneralSecurityException {
+        Signature signature = Signature.getInstance(PurchaseBatch.SIGNATURE_ALGORITHM);
+        signature.initSign(mKeyPair.getPrivate());
+        return signature;
+    }
+
+    private static PurchaseBatch batchOf(int count) {
+        PurchaseBatch batch = new PurchaseBatch();
+        List<byte[]> payloads = MerkleTreeTest.payloads(count);
+        for (byte[] payload : payloads) {
+            batch.add(payload);
+        }
+        return batch;
+    }
+}
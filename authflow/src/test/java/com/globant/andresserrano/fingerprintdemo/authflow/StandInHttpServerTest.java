@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.authflow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StandInHttpServerTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private StandInPasswordServer mServer;
+    private URL mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new StandInPasswordServer(0);
+        mUrl = mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+    }
+
+    @Test
+    public void validRequest_isAnswered() throws IOException {
+        assertTrue(exchange(post("6")).startsWith("HTTP/1.1 200 "));
+    }
+
+    @Test
+    public void malformedContentLength_isBadRequest() throws IOException {
+        assertTrue(exchange(post("abc")).startsWith("HTTP/1.1 400 "));
+    }
+
+    @Test
+    public void negativeContentLength_isBadRequest() throws IOException {
+        assertTrue(exchange(post("-1")).startsWith("HTTP/1.1 400 "));
+    }
+
+    @Test
+    public void overflowingContentLength_isBadRequest() throws IOException {
+        assertTrue(exchange(post("99999999999999999999")).startsWith("HTTP/1.1 400 "));
+    }
+
+    @Test
+    public void oversizedContentLength_isBadRequestWithoutReadingTheBody() throws IOException {
+        String length = String.valueOf(StandInHttpServer.MAX_BODY_BYTES + 1);
+        assertTrue(exchange(post(length)).startsWith("HTTP/1.1 400 "));
+    }
+
+    @Test
+    public void badRequests_leaveTheServerUp() throws IOException {
+        exchange(post("-1"));
+        exchange(post("abc"));
+        assertTrue(exchange(post("6")).startsWith("HTTP/1.1 200 "));
+        assertEquals(3, mServer.getConnectionCount());
+    }
+
+    private String post(String contentLength) {
+        return "POST " + StandInPasswordServer.PATH + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n"
+                + "secret";
+    }
+
+    /**
+     * Sends {@code request} on a new connection and reads until the server closes it.
+     */
+    private String exchange(String request) throws IOException {
+        Socket socket = new Socket(mUrl.getHost(), mUrl.getPort());
+        try {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes(ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+            return new String(response.toByteArray(), ASCII);
+        } finally {
+            socket.close();
+        }
+    }
+}
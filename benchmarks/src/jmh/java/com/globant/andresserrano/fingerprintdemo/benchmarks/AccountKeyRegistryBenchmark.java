@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.benchmarks;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.AccountKeyRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Key lookups through an {@link AccountKeyRegistry} holding 10, 1,000 and 10,000 accounts.
+ *
+ * <p>The registry runs against a key store kept in a map, like the Android Key Store it needs no
+ * password, so the numbers are the registry's own cost plus a cheap key store. On a device a
+ * cache miss costs a binder call to keystore on top. {@code getKeyHot} stays within the key cache,
+ * {@code getKeyRandom} picks any account, so it misses once there are more accounts than cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AccountKeyRegistryBenchmark {
+
+    private static final int KEY_CACHE_SIZE = 16;
+    private static final int CIPHER_CACHE_SIZE = 4;
+    private static final int HOT_ACCOUNTS = 8;
+    /** A power of two, so the next index is a mask away. */
+    private static final int RANDOM_ORDER_LENGTH = 1 << 14;
+
+    @Param({"10", "1000", "10000"})
+    public int aliasCount;
+
+    private AccountKeyRegistry mRegistry;
+    private String[] mAccounts;
+    private int[] mRandomOrder;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyStore keyStore = new KeyStore(new MapKeyStoreSpi(), null, "Map") {
+        };
+        keyStore.load(null);
+        final KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        mRegistry = new AccountKeyRegistry(keyStore, null, "account:", "AES/CBC/PKCS5Padding",
+                new AccountKeyRegistry.KeyCreator() {
+                    @Override
+                    public void createKey(KeyStore keyStore, String alias)
+                            throws GeneralSecurityException {
+                        keyStore.setKeyEntry(alias, keyGenerator.generateKey(), null, null);
+                    }
+                }, KEY_CACHE_SIZE, CIPHER_CACHE_SIZE);
+        mAccounts = new String[aliasCount];
+        for (int i = 0; i < aliasCount; i++) {
+            mAccounts[i] = "user" + i + "@example.com";
+            mRegistry.getKey(mAccounts[i]);
+        }
+        Random random = new Random(42);
+        mRandomOrder = new int[RANDOM_ORDER_LENGTH];
+        for (int i = 0; i < RANDOM_ORDER_LENGTH; i++) {
+            mRandomOrder[i] = random.nextInt(aliasCount);
+        }
+    }
+
+    @Benchmark
+    public String aliasFor() {
+        return mRegistry.aliasFor(mAccounts[mRandomOrder[mNext++ & (RANDOM_ORDER_LENGTH - 1)]]);
+    }
+
+    @Benchmark
+    public SecretKey getKeyHot() throws GeneralSecurityException {
+        return mRegistry.getKey(mAccounts[mNext++ % Math.min(HOT_ACCOUNTS, aliasCount)]);
+    }
+
+    @Benchmark
+    public SecretKey getKeyRandom() throws GeneralSecurityException {
+        return mRegistry.getKey(mAccounts[mRandomOrder[mNext++ & (RANDOM_ORDER_LENGTH - 1)]]);
+    }
+
+    @Benchmark
+    public List<String> listAliases() throws KeyStoreException {
+        return mRegistry.listAliases();
+    }
+
+    /**
+     * Secret keys in a map, the way the Android Key Store holds them: no password, no
+     * certificates.
+     */
+    private static final class MapKeyStoreSpi extends KeyStoreSpi {
+
+        private final Map<String, Key> mKeys = new ConcurrentHashMap<>();
+
+        @Override
+        public Key engineGetKey(String alias, char[] password) {
+            return mKeys.get(alias);
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            return null;
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            return null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            return null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password,
+                Certificate[] chain) {
+            mKeys.put(alias, key);
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            mKeys.remove(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            return Collections.enumeration(mKeys.keySet());
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            return mKeys.containsKey(alias);
+        }
+
+        @Override
+        public int engineSize() {
+            return mKeys.size();
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            return mKeys.containsKey(alias);
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 encoding of ciphertext before it is shown. {@code android.util.Base64} isn't available
+ * on the JVM; its {@code DEFAULT} flags, which the app uses, wrap lines at 76 characters like the
+ * JDK's MIME encoder, and {@code NO_WRAP} matches the basic encoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class Base64Benchmark {
+
+    /** Ciphertext sizes: the secret message under CBC and GCM, and two larger payloads. */
+    @Param({"32", "35", "1040", "16400"})
+    public int ciphertextSize;
+
+    private byte[] mCiphertext;
+    private final Base64.Encoder mMimeEncoder = Base64.getMimeEncoder();
+    private final Base64.Encoder mBasicEncoder = Base64.getEncoder();
+
+    @Setup
+    public void setUp() {
+        mCiphertext = new byte[ciphertextSize];
+        new Random(ciphertextSize).nextBytes(mCiphertext);
+    }
+
+    @Benchmark
+    public String encodeWrapped() {
+        return mMimeEncoder.encodeToString(mCiphertext);
+    }
+
+    @Benchmark
+    public String encodeNoWrap() {
+        return mBasicEncoder.encodeToString(mCiphertext);
+    }
+}
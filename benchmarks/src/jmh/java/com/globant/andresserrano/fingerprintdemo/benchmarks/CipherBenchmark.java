@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts a payload the way {@code MainActivity} does, once per cipher suite and payload size,
+ * with a cipher which is reused across operations and with one created for every operation.
+ *
+ * <p>The JDK names PKCS#7 padding {@code PKCS5Padding}; for AES the two are the same.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CipherBenchmark {
+
+    /** {@code CipherSuite.CBC} and {@code CipherSuite.GCM}. */
+    @Param({"AES/CBC/PKCS5Padding", "AES/GCM/NoPadding"})
+    public String transformation;
+
+    /** The app's secret message is 19 bytes; the rest cover larger purchases and streams. */
+    @Param({"19", "1024", "16384", "1048576"})
+    public int payloadSize;
+
+    private SecretKey mKey;
+    private byte[] mPayload;
+    private Cipher mCipher;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        mKey = keyGenerator.generateKey();
+        mPayload = new byte[payloadSize];
+        new Random(payloadSize).nextBytes(mPayload);
+        mCipher = Cipher.getInstance(transformation);
+    }
+
+    /**
+     * A pooled cipher: only {@code init} and {@code doFinal} per operation.
+     */
+    @Benchmark
+    public byte[] encryptReused() throws GeneralSecurityException {
+        // A fresh random IV on every init, as GCM must never reuse one with the same key.
+        mCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return mCipher.doFinal(mPayload);
+    }
+
+    /**
+     * {@code Cipher.getInstance} on every operation, as the app did before the cipher pool.
+     */
+    @Benchmark
+    public byte[] encryptFreshInstance() throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return cipher.doFinal(mPayload);
+    }
+
+    /**
+     * The lookup alone, to separate provider lookup cost from the encryption.
+     */
+    @Benchmark
+    public Cipher getInstance() throws GeneralSecurityException {
+        return Cipher.getInstance(transformation);
+    }
+}
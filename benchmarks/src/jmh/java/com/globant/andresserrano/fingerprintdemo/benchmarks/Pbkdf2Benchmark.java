@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Verifying the backup password against a stored PBKDF2 hash, which is what the password
+ * fallback of the fingerprint dialog costs on every attempt. The iteration count is the knob
+ * that trades that latency against brute-force resistance.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Pbkdf2Benchmark {
+
+    private static final char[] PASSWORD = "correct horse battery staple".toCharArray();
+    private static final int KEY_LENGTH_BITS = 256;
+
+    /** SHA-1 is what Android offers before API 26, SHA-256 from then on. */
+    @Param({"PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256"})
+    public String algorithm;
+
+    @Param({"10000", "100000"})
+    public int iterations;
+
+    private final byte[] mSalt = new byte[16];
+    private SecretKeyFactory mFactory;
+    private byte[] mStoredHash;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        mFactory = SecretKeyFactory.getInstance(algorithm);
+        mStoredHash = derive(PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verify() throws GeneralSecurityException {
+        return MessageDigest.isEqual(mStoredHash, derive(PASSWORD));
+    }
+
+    private byte[] derive(char[] password) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password, mSalt, iterations, KEY_LENGTH_BITS);
+        try {
+            return mFactory.generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
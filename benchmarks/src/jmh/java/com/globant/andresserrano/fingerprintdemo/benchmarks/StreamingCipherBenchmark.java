@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.globant.andresserrano.fingerprintdemo.benchmarks;
+
+import com.globant.andresserrano.fingerprintdemo.authflow.ChunkedCipher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts a 4 MiB document in chunks with {@link ChunkedCipher}, once per cipher suite and chunk
+ * size, next to a single {@code doFinal} over the whole document held in memory. Throughput in
+ * MiB/s is 4000 divided by the time per operation in milliseconds.
+ *
+ * <p>The ciphertext goes to a stream which discards it, so only the cipher and the chunking are
+ * measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StreamingCipherBenchmark {
+
+    private static final int DOCUMENT_SIZE = 4 * 1024 * 1024;
+
+    /** {@code CipherSuite.CBC} and {@code CipherSuite.GCM}. */
+    @Param({"AES/CBC/PKCS5Padding", "AES/GCM/NoPadding"})
+    public String transformation;
+
+    /** Powers of four from 1 KiB to 256 KiB. */
+    @Param({"1024", "4096", "16384", "65536", "262144"})
+    public int chunkSize;
+
+    private SecretKey mKey;
+    private byte[] mDocument;
+    private Cipher mCipher;
+    private ChunkedCipher mChunkedCipher;
+    private final OutputStream mSink = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(256);
+        mKey = keyGenerator.generateKey();
+        mDocument = new byte[DOCUMENT_SIZE];
+        new Random(DOCUMENT_SIZE).nextBytes(mDocument);
+        mCipher = Cipher.getInstance(transformation);
+        mChunkedCipher = new ChunkedCipher(chunkSize);
+    }
+
+    /**
+     * Constant memory: one chunk of plaintext and one of ciphertext.
+     */
+    @Benchmark
+    public long encryptChunked() throws IOException, GeneralSecurityException {
+        mCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return mChunkedCipher.transform(mCipher, new ByteArrayInputStream(mDocument), mSink);
+    }
+
+    /**
+     * The whole document and its ciphertext in memory, as {@code tryEncrypt} would need. Doesn't
+     * depend on the chunk size; it is the baseline the chunked runs are compared with.
+     */
+    @Benchmark
+    public byte[] encryptWhole() throws GeneralSecurityException {
+        mCipher.init(Cipher.ENCRYPT_MODE, mKey);
+        return mCipher.doFinal(mDocument);
+    }
+}